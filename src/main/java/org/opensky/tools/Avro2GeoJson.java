@@ -0,0 +1,216 @@
+package org.opensky.tools;
+
+import org.apache.commons.cli.*;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+import org.opensky.tools.FlightTracker.Flight;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * OpenSky AVRO to GeoJSON converter
+ * Note: We assume, that messages are more or less ordered by time
+ *
+ * Generates newline-delimited GeoJSON with one LineString feature per
+ * flight or one Point feature per position.
+ */
+public class Avro2GeoJson {
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"Avro2GeoJson [options/filters] (avro-file | -catalog dir) geojson-file",
+				"\nOpenSky AVRO to newline-delimited GeoJSON converter\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("0", "nopos", false, "do not include flight without positions" );
+		opts.addOption("p", "points", false, "write one Point feature per position instead of one LineString per flight" );
+		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
+		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
+		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
+		opts.addOption("n", "max-num", true, "max number of features written");
+		opts.addOption("t", "tolerance", true, "simplify tracks with this max. deviation (meters)");
+		opts.addOption("idle", true, "write flights idle for this many seconds and start a new flight (default: 1800, 0 keeps all flights until the end)");
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		File avro = null, jsonfile = null;
+		String filter_icao24 = null;
+		Long filter_max = null;
+		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
+		double tolerance = 0, idle = 1800;
+		String file = null, out = null;
+		boolean option_nopos = true, option_points = false;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
+				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
+				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
+				if (cmd.hasOption("n")) filter_max = Long.parseLong(cmd.getOptionValue("n"));
+				if (cmd.hasOption("0")) option_nopos = false;
+				if (cmd.hasOption("p")) option_points = true;
+				if (cmd.hasOption("t")) tolerance = Double.parseDouble(cmd.getOptionValue("t"));
+				if (cmd.hasOption("idle")) idle = Double.parseDouble(cmd.getOptionValue("idle"));
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get filename
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
+				throw new ParseException("No avro file given or invalid arguments.");
+			if (catalog == null) file = cmd.getArgList().get(0);
+			out = cmd.getArgList().get(cmd.getArgList().size()-1);
+
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		System.out.println("Opening avro file.");
+
+		// check if file exists
+		try {
+			if (catalog == null) {
+				avro = new File(file);
+				if(!avro.exists() || avro.isDirectory() || !avro.canRead()) {
+					throw new FileNotFoundException("Avro file not found or cannot be read.");
+				}
+			}
+
+			jsonfile = new File(out);
+			if(jsonfile.exists() || jsonfile.isDirectory())
+				throw new java.io.IOException("GeoJSON is a directory or file exists.");
+		} catch (FileNotFoundException e) {
+			// avro file not found
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		} catch (IOException e) {
+			// cannot write to GeoJSON
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		long msgCount = 0, good_pos_cnt = 0, bad_pos_cnt = 0, flights_cnt = 0, err_pos_cnt = 0, features_cnt = 0;
+		try {
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(avro) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
+			fileReader.setProjection(FlightTracker.FIELDS);
+
+			System.err.println("Options are:\n" +
+					"\tfile: "+(catalog == null ? file : "catalog "+catalog)+"\n"+
+					"\ticao24: "+filter_icao24+"\n"+
+					"\tstart: "+filter_start+"\n"+
+					"\tend: "+filter_end+"\n"+
+					"\tfilter: "+filter+"\n"+
+					"\tmax: "+filter_max+"\n"+
+					"\tpoints: "+option_points+"\n"+
+					"\ttolerance: "+tolerance+"\n"+
+					"\tidle: "+idle+"\n");
+
+			// stuff for handling flights
+			ModeSEncodedMessage record = new ModeSEncodedMessage();
+			FlightTracker tracker = new FlightTracker(tolerance, idle, filter_icao24, !option_points);
+			Flight flight;
+			double next_flush = 0;
+
+			GeoJsonWriter json = new GeoJsonWriter(jsonfile);
+
+			while (fileReader.hasNext()) {
+				// number of features filter
+				if (filter_max != null && json.getNumberOfFeatures()>=filter_max)
+					break;
+
+				msgCount++;
+
+				// get next record from file
+				record = fileReader.next(record);
+
+				// complete flights which have been idle for too long (checked once per second)
+				if (record.getTimeAtServer() >= next_flush) {
+					next_flush = record.getTimeAtServer()+1;
+					while ((filter_max == null || json.getNumberOfFeatures()<filter_max) &&
+							(flight = tracker.poll(record.getTimeAtServer())) != null)
+						if (!option_points && (option_nopos | flight.coords.size() > 0))
+							json.writeLineString(flight);
+				}
+
+				flight = tracker.update(record);
+				if (option_points && flight != null && tracker.hasPosition())
+					json.writePoint(flight, record.getTimeAtServer(),
+							tracker.getLongitude(), tracker.getLatitude(), tracker.getAltitude(),
+							record.getSensorSerialNumber());
+			}
+
+			// write residual flights
+			while (!option_points && (flight = tracker.poll()) != null) {
+				// number of features filter
+				if (filter_max != null && json.getNumberOfFeatures()>=filter_max)
+					break;
+				if (option_nopos | flight.coords.size() > 0)
+					json.writeLineString(flight);
+			}
+
+			fileReader.close();
+			if (fileReader.hasIndex())
+				System.err.println("Blocks skipped using the index: "+fileReader.getNumberOfBlocksSkipped());
+			json.close();
+			features_cnt = json.getNumberOfFeatures();
+			good_pos_cnt = tracker.getNumberOfGoodPositions();
+			bad_pos_cnt = tracker.getNumberOfBadPositions();
+			err_pos_cnt = tracker.getNumberOfErroneousPositions();
+			flights_cnt = tracker.getNumberOfFlights();
+
+		} catch (IOException e) {
+			// error while trying to read file
+			System.err.println("IO Error: "+e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			// something went wrong
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.err.println("Read "+msgCount+" messages.");
+		System.err.println("Good positions: "+good_pos_cnt);
+		System.err.println("Bad positions: "+bad_pos_cnt);
+		System.err.println("Erroneous positions: "+err_pos_cnt);
+		System.err.println("Flights: "+flights_cnt);
+		System.err.println("Features written: "+features_cnt);
+	}
+}
@@ -1,29 +1,14 @@
 package org.opensky.tools;
 
-import de.micromata.opengis.kml.v_2_2_0.*;
-import org.apache.avro.file.DataFileReader;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.commons.cli.*;
-import org.apache.commons.lang3.StringUtils;
 import org.opensky.avro.v2.ModeSEncodedMessage;
-import org.opensky.libadsb.ModeSDecoder;
-import org.opensky.libadsb.Position;
-import org.opensky.libadsb.exceptions.BadFormatException;
-import org.opensky.libadsb.msgs.AirbornePositionV0Msg;
-import org.opensky.libadsb.msgs.IdentificationMsg;
-import org.opensky.libadsb.msgs.ModeSReply;
-import org.opensky.libadsb.msgs.SurfacePositionV0Msg;
-import org.opensky.libadsb.tools;
+import org.opensky.tools.FlightTracker.Flight;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 
 /**
  * OpenSky AVRO to Google Maps KML converter
@@ -42,81 +27,41 @@ public class Avro2Kml {
 	private static void printHelp(Options opts) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(
-				"Avro2Kml [options/filters] avro-file kml-file",
+				"Avro2Kml [options/filters] (avro-file | -catalog dir) kml/kmz-file",
 				"\nOpenSky AVRO to Google Maps KML converter\nhttp://www.opensky-network.org\n\n",
 				opts, "");
 	}
 	
-	/**
-	 * This class is a container for all information
-	 * about flights that are relevant for the KML
-	 * generation
-	 */
-	private class Flight {
-		public String icao24;
-		public char[] callsign;
-		public double first; // first message seen
-		public double last; // last message seen
-		public List<Coordinate> coords; // ordered list of coordinates
-		public List<Integer> serials; // flight seen by these sensors
-		boolean contains_unreasonable; // true if there was one position with unreasonable flag
-		
-		public Flight () {
-			coords = new ArrayList<Coordinate>();
-			callsign = new char[0];
-			contains_unreasonable = false;
-			serials = new ArrayList<Integer>();
-		}
-	}
-	
 	/**
 	 * Class for generating the kml
 	 */
 	private class OskyKml {
-		private Kml kml;
-		private Document doc;
-		private Style style;
-		private SimpleDateFormat date_formatter;
-		private Folder unreasonable;
-		private Folder reasonable;
-		private Folder empty;
+		private KmlWriter kml;
+		private KmzWriter kmz; // null if not writing KMZ
+		private int unreasonable;
+		private int reasonable;
+		private int empty;
 		private int num_flights;
+		private long num_points_in; // number of points before simplification
+		private long num_points_out; // number of points written
 		
-		public OskyKml () {
+		public OskyKml (KmlWriter writer) throws IOException {
 			// prepare KML
-			kml = new Kml();
-			doc = kml.createAndSetDocument()
-					.withName("OpenSky Network");
+			kml = writer;
+			kmz = writer instanceof KmzWriter ? (KmzWriter) writer : null;
+			kml.addLineStyle("reasonable", "ffffffff", 1);
+			kml.addLineStyle("unreasonable", "ffd5d5ff", 1);
 			
-			style = doc.createAndAddStyle()
-					.withId("reasonable");
-			style.createAndSetLineStyle()
-			.withColor("ffffffff")
-			.withColorMode(ColorMode.NORMAL)
-			.withWidth(1);
-
-			style = doc.createAndAddStyle()
-					.withId("unreasonable");
-			style.createAndSetLineStyle()
-			.withColor("ffd5d5ff")
-			.withColorMode(ColorMode.NORMAL)
-			.withWidth(1);
-			
-			unreasonable = doc.createAndAddFolder()
-					.withName("Unreasonable Flights");
-			reasonable = doc.createAndAddFolder()
-					.withName("Reasonable Flights");
-			empty = doc.createAndAddFolder()
-					.withName("No Positions");
-			
-			date_formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+			unreasonable = kml.addFolder("Unreasonable Flights");
+			reasonable = kml.addFolder("Reasonable Flights");
+			empty = kml.addFolder("No Positions");
 		}
 		
-		public void addFlight(Flight flight) {
+		public void addFlight(Flight flight) throws IOException {
 			Date begin = new Date((long)(flight.first*1000));
 			Date end = new Date((long)(flight.last*1000));
 			
-			Folder which;
+			int which;
 			if (flight.coords.size()>0)
 				which = flight.contains_unreasonable ? unreasonable : reasonable;
 			else which = empty;
@@ -125,36 +70,70 @@ public class Avro2Kml {
 							"Callsign: "+new String(flight.callsign)+"<br />\n"+
 							"First seen: "+begin.toString()+"<br />\n"+
 							"Last seen: "+end.toString()+"<br />\n"+
-							"Seen by serials: "+StringUtils.join(flight.serials, ",");
+							"Seen by serials: "+flight.serials.join(",");
 			
-			Placemark placemark = which.createAndAddPlacemark()
-					.withName(flight.icao24)
-					.withTimePrimitive(new TimeSpan()
-							.withBegin(date_formatter.format(begin))
-							.withEnd(date_formatter.format(end)))
-					.withDescription(description)
-					.withStyleUrl(flight.contains_unreasonable ? "#unreasonable" : "#reasonable");
-			
-			placemark.createAndSetLineString()
-				.withCoordinates(flight.coords)
-				.withAltitudeMode(AltitudeMode.fromValue(AltitudeMode.ABSOLUTE.value()))
-				.withId(flight.icao24)
-				.withExtrude(false);
+			TrackBuffer coords = flight.coords;
+			if (kmz == null || coords.size() == 0) {
+				if (kmz != null) kmz.setTile(flight.first, null, null);
+				addPlacemark(flight, which, description, flight.icao24, 0, coords.size(), flight.first, flight.last);
+			}
+			else {
+				// split track at tile borders and time slices, each piece ends with the first point in the next tile
+				int start = 0, piece = 0;
+				while (true) {
+					int tile_lat = kmz.getTileIndex(coords.getLatitude(start));
+					int tile_lon = kmz.getTileIndex(coords.getLongitude(start));
+					int slice = kmz.getSliceIndex(coords.getTime(start));
+					int next = start+1;
+					while (next < coords.size() &&
+							kmz.getTileIndex(coords.getLatitude(next)) == tile_lat &&
+							kmz.getTileIndex(coords.getLongitude(next)) == tile_lon &&
+							kmz.getSliceIndex(coords.getTime(next)) == slice)
+						++next;
+
+					// pieces together cover the time span of the flight
+					int to = Math.min(next+1, coords.size());
+					kmz.setTile(coords.getTime(start), coords.getLatitude(start), coords.getLongitude(start));
+					addPlacemark(flight, which, description, flight.icao24+"-"+(piece++), start, to,
+							start == 0 ? flight.first : coords.getTime(start),
+							next >= coords.size() ? flight.last : coords.getTime(to-1));
+
+					if (next >= coords.size()) break;
+					start = next;
+				}
+			}
 			
 			num_flights++;
+			num_points_in += coords.getNumberOfAddedPoints();
+			num_points_out += coords.size();
+		}
+
+		private void addPlacemark(Flight flight, int folder, String description, String id, int from, int to,
+				double begin, double end) throws IOException {
+			kml.beginPlacemark(folder, flight.icao24, description,
+					(long)(begin*1000), (long)(end*1000),
+					flight.contains_unreasonable ? "#unreasonable" : "#reasonable",
+					id);
+			for (int i = from; i<to; ++i)
+				kml.addCoordinate(flight.coords.getLongitude(i), flight.coords.getLatitude(i), flight.coords.getAltitude(i));
+			kml.endPlacemark();
 		}
 		
-		public void writeToFile(File file) {
-			try {
-				kml.marshal(file);
-			} catch (FileNotFoundException e) {
-				System.err.println("Could not write to file '"+file.getAbsolutePath()+"'.\nReason: "+e.toString());
-			}
+		public void close() throws IOException {
+			kml.close();
 		}
 		
 		public int getNumberOfFlights() {
 			return num_flights;
 		}
+
+		public long getNumberOfPointsIn() {
+			return num_points_in;
+		}
+
+		public long getNumberOfPointsOut() {
+			return num_points_out;
+		}
 	}
 
 	public static void main(String[] args) {
@@ -166,7 +145,15 @@ public class Avro2Kml {
 		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
 		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
 		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
 		opts.addOption("n", "max-num", true, "max number of flights written to KML");
+		opts.addOption("t", "tolerance", true, "simplify tracks with this max. deviation (meters)");
+		opts.addOption("idle", true, "write flights idle for this many seconds and start a new flight (default: 1800, 0 keeps all flights until the end)");
+		opts.addOption("z", "kmz", false, "write KMZ with tiles loaded by region and time");
+		opts.addOption("tile", true, "size of KMZ tiles in degrees (default: 5)");
+		opts.addOption("slice", true, "length of KMZ time slices in seconds (default: 3600)");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -175,6 +162,11 @@ public class Avro2Kml {
 		String filter_icao24 = null;
 		Long filter_max = null;
 		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
+		double tolerance = 0, tile_size = 5, slice_length = 3600, idle = 1800;
+		boolean option_kmz = false;
 		String file = null, out = null;
 		boolean option_nopos = true;
 		try {
@@ -185,11 +177,22 @@ public class Avro2Kml {
 				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
 				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
 				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
 				if (cmd.hasOption("n")) filter_max = Long.parseLong(cmd.getOptionValue("n"));
 				if (cmd.hasOption("0")) option_nopos = false;
-			} catch (NumberFormatException e) {
+				if (cmd.hasOption("t")) tolerance = Double.parseDouble(cmd.getOptionValue("t"));
+				if (cmd.hasOption("idle")) idle = Double.parseDouble(cmd.getOptionValue("idle"));
+				if (cmd.hasOption("z")) option_kmz = true;
+				if (cmd.hasOption("tile")) tile_size = Double.parseDouble(cmd.getOptionValue("tile"));
+				if (cmd.hasOption("slice")) slice_length = Double.parseDouble(cmd.getOptionValue("slice"));
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
 				throw new ParseException("Invalid arguments: "+e.getMessage());
 			}
+			if (tile_size <= 0 || slice_length <= 0)
+				throw new ParseException("Tile size and slice length must be positive.");
 
 			// print help
 			if (cmd.hasOption("h")) {
@@ -198,10 +201,10 @@ public class Avro2Kml {
 			}
 
 			// get filename
-			if (cmd.getArgList().size() != 2)
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
 				throw new ParseException("No avro file given or invalid arguments.");
-			file = cmd.getArgList().get(0);
-			out = cmd.getArgList().get(1);
+			if (catalog == null) file = cmd.getArgList().get(0);
+			out = cmd.getArgList().get(cmd.getArgList().size()-1);
 
 		} catch (ParseException e) {
 			// parsing failed
@@ -214,9 +217,11 @@ public class Avro2Kml {
 
 		// check if file exists
 		try {
-			avro = new File(file);
-			if(!avro.exists() || avro.isDirectory() || !avro.canRead()) {
-				throw new FileNotFoundException("Avro file not found or cannot be read.");
+			if (catalog == null) {
+				avro = new File(file);
+				if(!avro.exists() || avro.isDirectory() || !avro.canRead()) {
+					throw new FileNotFoundException("Avro file not found or cannot be read.");
+				}
 			}
 
 			kmlfile = new File(out);
@@ -232,159 +237,79 @@ public class Avro2Kml {
 			System.exit(1);
 		}
 
-		DatumReader<ModeSEncodedMessage> datumReader = new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 		long msgCount = 0, good_pos_cnt = 0, bad_pos_cnt = 0, flights_cnt = 0, err_pos_cnt = 0;
+		long points_in = 0, points_out = 0;
 		try {
-			DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(avro) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
+			fileReader.setProjection(FlightTracker.FIELDS);
 
 			System.err.println("Options are:\n" + 
-					"\tfile: "+file+"\n"+
+					"\tfile: "+(catalog == null ? file : "catalog "+catalog)+"\n"+
 					"\ticao24: "+filter_icao24+"\n"+
 					"\tstart: "+filter_start+"\n"+
 					"\tend: "+filter_end+"\n"+
-					"\tmax: "+filter_max+"\n");
+					"\tfilter: "+filter+"\n"+
+					"\tmax: "+filter_max+"\n"+
+					"\ttolerance: "+tolerance+"\n"+
+					"\tidle: "+idle+"\n"+
+					"\tkmz: "+option_kmz+(option_kmz ? " (tiles: "+tile_size+" deg, "+slice_length+" s)" : "")+"\n");
 
 			// stuff for handling flights
 			ModeSEncodedMessage record = new ModeSEncodedMessage();
-			HashMap<String, Flight> flights = new HashMap<String, Flight>();
+			FlightTracker tracker = new FlightTracker(tolerance, idle, filter_icao24);
 			Flight flight;
-			String icao24;
-
-			// message registers
-			ModeSReply msg;
-			AirbornePositionV0Msg airpos;
-			SurfacePositionV0Msg surfacepos;
-			IdentificationMsg ident;
+			double next_flush = 0;
 
 			// KML stuff
 			Avro2Kml a2k = new Avro2Kml();
-			OskyKml kml = a2k.new OskyKml();
-
-			// Decoder
-			ModeSDecoder decoder = new ModeSDecoder();
+			OskyKml kml = a2k.new OskyKml(option_kmz ?
+					new KmzWriter(kmlfile, "OpenSky Network", tile_size, slice_length,
+							Runtime.getRuntime().availableProcessors()) :
+					new KmlWriter(kmlfile, "OpenSky Network"));
 
 			while (fileReader.hasNext()) {
+				// number of flights filter
+				if (filter_max != null && kml.getNumberOfFlights()>=filter_max)
+					break;
+
 				msgCount++;
 
 				// get next record from file
 				record = fileReader.next(record);
 
-				// time filters
-				if (filter_start != null && record.getTimeAtServer()<filter_start)
-					continue;
-
-				if (filter_end != null && record.getTimeAtServer()>filter_end)
-					continue;
-
-				// cleanup decoders every 1.000.000 messages to avoid excessive memory usage
-				if (msgCount % 1000000 == 0) {
-					decoder.gc();
+				// write flights which have been idle for too long (checked once per second)
+				if (record.getTimeAtServer() >= next_flush) {
+					next_flush = record.getTimeAtServer()+1;
+					while ((filter_max == null || kml.getNumberOfFlights()<filter_max) &&
+							(flight = tracker.poll(record.getTimeAtServer())) != null)
+						if (option_nopos | flight.coords.size() > 0)
+							kml.addFlight(flight);
 				}
 
-				try {
-					msg = decoder.decode(record.getRawMessage().toString());
-				} catch (BadFormatException e) {
-					continue;
-				}
-				icao24 = tools.toHexString(msg.getIcao24());
-
-				// icao24 filter
-				if (filter_icao24 != null && !icao24.equals(filter_icao24))
-					continue;
-
-				// select current flight
-				if (flights.containsKey(icao24))
-					flight = flights.get(icao24);
-				else {
-					flight = a2k.new Flight();
-					flight.icao24 = icao24;
-					flight.first = record.getTimeAtServer();
-					flights.put(icao24, flight);
-					++flights_cnt;
-				}
-
-				flight.last = record.getTimeAtServer();
-
-				if (!flight.serials.contains(record.getSensorSerialNumber()))
-					flight.serials.add(record.getSensorSerialNumber());
-
-				///////// Airborne Position Messages
-				if (msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V0 ||
-						msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V1 ||
-						msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V2) {
-					airpos = (AirbornePositionV0Msg) msg;
-					Position rec = record.getSensorLatitude() != null ?
-							new Position(
-									record.getSensorLongitude(),
-									record.getSensorLatitude(),
-									record.getSensorAltitude()) : null;
-
-					Position pos = decoder.decodePosition(record.getTimeAtServer().longValue()*1000L, airpos, rec);
-					if (pos == null)
-						++err_pos_cnt;
-					else {
-						if (pos.isReasonable()) {
-							Coordinate coord = new Coordinate(pos.getLongitude(), pos.getLatitude(),
-									// set altitude to 0 if negative... looks nicer in google earth
-									pos.getAltitude() != null && pos.getAltitude()>0 ? pos.getAltitude() : 0);
-							if (!flight.coords.contains(coord)) { // remove duplicates to safe memory
-								flight.coords.add(coord);
-								++good_pos_cnt;
-							}
-						}
-						else {
-							flight.contains_unreasonable = true;
-							++bad_pos_cnt;
-						}
-					}
-				}
-				///////// Surface Position Messages
-				else if (msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V0 ||
-						msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V1 ||
-						msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V2) {
-					surfacepos = (SurfacePositionV0Msg) msg;
-					Position rec = record.getSensorLatitude() != null ?
-							new Position(
-									record.getSensorLongitude(),
-									record.getSensorLatitude(),
-									record.getSensorAltitude()) : null;
-
-					Position pos = decoder.decodePosition(record.getTimeAtServer().longValue()*1000L, surfacepos, rec);
-					if (pos == null)
-						++err_pos_cnt;
-					else {
-						if (pos.isReasonable()) {
-							Coordinate coord = new Coordinate(pos.getLongitude(), pos.getLatitude(), 0);
-
-							if (!flight.coords.contains(coord)) { // remove duplicates to safe memory
-								flight.coords.add(coord);
-								++good_pos_cnt;
-							}
-						}
-						else {
-							flight.contains_unreasonable = true;
-							++bad_pos_cnt;
-						}
-					}
-				}
-				///////// Identification Messages
-				else if (msg.getType() == ModeSReply.subtype.ADSB_IDENTIFICATION) {
-					ident = (IdentificationMsg) msg;
-					flight.callsign = ident.getIdentity();
-				}
+				tracker.update(record);
 			}
 
 			// write residual flights to KML
-			for (String key : flights.keySet()) {
+			while ((flight = tracker.poll()) != null) {
 				// number of flights filter
 				if (filter_max != null && kml.getNumberOfFlights()>=filter_max)
 					break;
-				if (option_nopos | flights.get(key).coords.size() > 0)
-					kml.addFlight(flights.get(key));
+				if (option_nopos | flight.coords.size() > 0)
+					kml.addFlight(flight);
 			}
 
 			fileReader.close();
-			kml.writeToFile(kmlfile);
+			if (fileReader.hasIndex())
+				System.err.println("Blocks skipped using the index: "+fileReader.getNumberOfBlocksSkipped());
+			kml.close();
+			points_in = kml.getNumberOfPointsIn();
+			points_out = kml.getNumberOfPointsOut();
+			good_pos_cnt = tracker.getNumberOfGoodPositions();
+			bad_pos_cnt = tracker.getNumberOfBadPositions();
+			err_pos_cnt = tracker.getNumberOfErroneousPositions();
+			flights_cnt = tracker.getNumberOfFlights();
 
 		} catch (IOException e) {
 			// error while trying to read file
@@ -402,5 +327,7 @@ public class Avro2Kml {
 		System.err.println("Bad positions: "+bad_pos_cnt);
 		System.err.println("Erroneous positions: "+err_pos_cnt);
 		System.err.println("Flights: "+flights_cnt);
+		System.err.println("Points before simplification: "+points_in);
+		System.err.println("Points written: "+points_out);
 	}
 }
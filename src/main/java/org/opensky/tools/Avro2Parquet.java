@@ -0,0 +1,377 @@
+package org.opensky.tools;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.cli.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+import org.opensky.libadsb.ModeSDecoder;
+import org.opensky.libadsb.Position;
+import org.opensky.libadsb.exceptions.BadFormatException;
+import org.opensky.libadsb.msgs.AirbornePositionV0Msg;
+import org.opensky.libadsb.msgs.ModeSReply;
+import org.opensky.libadsb.msgs.SurfacePositionV0Msg;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Exports OpenSky avro files to Parquet for columnar analysis (e.g., with
+ * Spark or DuckDB). The fields of {@link ModeSEncodedMessage} are written
+ * as they are, optionally with pre-decoded columns (icao24, df, tc and the
+ * decoded position).
+ *
+ * Messages are sorted by timeAtServer in chunks before they are written.
+ * The chunks are not aligned with the row groups, which the writer closes
+ * by size. Hence, only the row groups of input files which are already
+ * sorted by time (see AvroSort) cover disjoint time ranges. Unsorted input
+ * yields overlapping min/max statistics of timeAtServer.
+ *
+ * Dictionary encoding is enabled for all columns. Parquet falls back to
+ * plain encoding for columns with many distinct values (e.g., rawMessage),
+ * so it is kept for low-cardinality columns such as the sensor fields.
+ */
+public class Avro2Parquet {
+	public static final String NAMESPACE = "org.opensky.parquet";
+
+	// additional columns with -decode
+	private static final String[] DECODED = {"icao24", "df", "tc", "latitude", "longitude", "altitude"};
+
+	// fields needed for decoding (see OskyReader.setProjection)
+	private static final String[] DECODE_FIELDS = {"timeAtServer", "rawMessage",
+			"sensorLatitude", "sensorLongitude", "sensorAltitude"};
+
+	private static final Comparator<ModeSEncodedMessage> BY_TIME = new Comparator<ModeSEncodedMessage>() {
+		@Override
+		public int compare (ModeSEncodedMessage a, ModeSEncodedMessage b) {
+			return Double.compare(a.getTimeAtServer(), b.getTimeAtServer());
+		}
+	};
+
+	private final ParquetWriter<GenericRecord> writer;
+	private final List<Field> fields; // fields of ModeSEncodedMessage which are written
+	private final boolean decode;
+	private final GenericData.Record row;
+	private final ModeSDecoder decoder;
+
+	// statistics
+	private long rows_cnt, pos_cnt;
+
+	/**
+	 * @param out the parquet file
+	 * @param fields names of the fields of ModeSEncodedMessage which are written
+	 * @param decode true to add the decoded columns
+	 * @param codec compression codec
+	 * @param row_group_size size of the row groups in bytes
+	 * @throws IOException if the file cannot be created
+	 */
+	public Avro2Parquet (File out, List<String> fields, boolean decode, CompressionCodecName codec,
+			int row_group_size) throws IOException {
+		this.fields = new ArrayList<Field>();
+		for (String name : fields)
+			this.fields.add(ModeSEncodedMessage.getClassSchema().getField(name));
+		this.decode = decode;
+		decoder = decode ? new ModeSDecoder() : null;
+
+		Schema schema = createSchema(this.fields, decode);
+		row = new GenericData.Record(schema);
+
+		// no checksum files next to the output
+		Configuration conf = new Configuration();
+		FileSystem.getLocal(conf).setWriteChecksum(false);
+
+		writer = AvroParquetWriter.<GenericRecord>builder(new Path(out.getAbsoluteFile().toURI()))
+				.withSchema(schema)
+				.withConf(conf)
+				.withCompressionCodec(codec)
+				.withRowGroupSize(row_group_size)
+				.withPageSize(1024*1024)
+				.withDictionaryEncoding(true)
+				.withDictionaryPageSize(1024*1024)
+				.build();
+	}
+
+	/**
+	 * @param fields fields of ModeSEncodedMessage
+	 * @param decode true to add the decoded columns
+	 * @return schema of the rows
+	 */
+	static Schema createSchema (List<Field> fields, boolean decode) {
+		SchemaBuilder.FieldAssembler<Schema> columns = SchemaBuilder.record("ModeSMessage").namespace(NAMESPACE).fields();
+		for (Field field : fields)
+			columns = columns.name(field.name()).type(field.schema()).noDefault();
+		if (decode) {
+			columns = columns
+					.name("icao24").type().optional().intType()
+					.name("df").type().optional().intType()
+					.name("tc").type().optional().intType()
+					.name("latitude").type().optional().doubleType()
+					.name("longitude").type().optional().doubleType()
+					.name("altitude").type().optional().doubleType();
+		}
+		return columns.endRecord();
+	}
+
+	/**
+	 * @param record a message
+	 * @return position of the sensor or null
+	 */
+	private static Position getReceiver (ModeSEncodedMessage record) {
+		return record.getSensorLatitude() != null ?
+				new Position(
+						record.getSensorLongitude(),
+						record.getSensorLatitude(),
+						record.getSensorAltitude()) : null;
+	}
+
+	/**
+	 * Fills the decoded columns of the row
+	 * @param record the message (in time order)
+	 */
+	private void decode (ModeSEncodedMessage record) {
+		for (String column : DECODED) row.put(column, null);
+
+		CharSequence raw = record.getRawMessage();
+		int icao24 = BlockIndex.getIcao24(raw);
+		if (icao24 >= 0) row.put("icao24", icao24);
+		int first = AvroStats.hexByte(raw, 0);
+		if (first < 0) return;
+		int df = first>>>3;
+		row.put("df", df);
+		if (df != 17 && df != 18) return;
+		int me = AvroStats.hexByte(raw, 8);
+		if (me < 0) return;
+		row.put("tc", me>>>3);
+
+		ModeSReply msg;
+		try {
+			msg = decoder.decode(raw.toString());
+		} catch (BadFormatException e) {
+			return;
+		}
+
+		Position pos = null;
+		if (msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V0 ||
+				msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V1 ||
+				msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V2)
+			pos = decoder.decodePosition(record.getTimeAtServer().longValue()*1000L,
+					(AirbornePositionV0Msg) msg, getReceiver(record));
+		else if (msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V0 ||
+				msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V1 ||
+				msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V2)
+			pos = decoder.decodePosition(record.getTimeAtServer().longValue()*1000L,
+					(SurfacePositionV0Msg) msg, getReceiver(record));
+
+		if (pos != null && pos.isReasonable()) {
+			row.put("latitude", pos.getLatitude());
+			row.put("longitude", pos.getLongitude());
+			row.put("altitude", pos.getAltitude());
+			++pos_cnt;
+		}
+	}
+
+	/**
+	 * Sorts messages by time and writes them
+	 * @param records the messages (are sorted)
+	 * @throws IOException if writing fails
+	 */
+	public void write (List<ModeSEncodedMessage> records) throws IOException {
+		Collections.sort(records, BY_TIME);
+		for (ModeSEncodedMessage record : records) {
+			for (Field field : fields)
+				row.put(field.name(), record.get(field.pos()));
+			if (decode) decode(record);
+			writer.write(row);
+
+			// cleanup decoders every 1000000 messages to avoid excessive memory usage
+			if (++rows_cnt%1000000 == 0 && decode) decoder.gc();
+		}
+	}
+
+	/**
+	 * Writes the footer and closes the file
+	 * @throws IOException if writing fails
+	 */
+	public void close () throws IOException {
+		writer.close();
+	}
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"Avro2Parquet [options/filters] [avro-file] parquet-file",
+				"\nExports OpenSky avro files to Parquet\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
+		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
+		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
+		opts.addOption("fields", true, "comma separated fields of the avro records which are written (default: all)");
+		opts.addOption("d", "decode", false, "add decoded columns (icao24, df, tc, latitude, longitude, altitude)");
+		opts.addOption("c", "codec", true, "compression codec: uncompressed, snappy or gzip (default: snappy)");
+		opts.addOption("g", "row-group", true, "size of the row groups in MB (default: 128)");
+		opts.addOption("b", "buffer", true, "number of messages sorted by time in memory (default: 1000000); "+
+				"row groups only cover disjoint time ranges if the input is already sorted by time (see AvroSort)");
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		String filter_icao24 = null;
+		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
+		String inpath = null, outpath = null;
+		List<String> fields = new ArrayList<String>();
+		for (Field field : ModeSEncodedMessage.getClassSchema().getFields())
+			fields.add(field.name());
+		boolean decode = false;
+		CompressionCodecName codec = CompressionCodecName.SNAPPY;
+		int row_group_size = 128, buffer_size = 1000000;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
+				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
+				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
+				if (cmd.hasOption("fields")) {
+					fields.clear();
+					for (String field : cmd.getOptionValue("fields").split(",")) {
+						if (ModeSEncodedMessage.getClassSchema().getField(field.trim()) == null)
+							throw new ParseException("Unknown field "+field.trim()+".");
+						fields.add(field.trim());
+					}
+				}
+				decode = cmd.hasOption("d");
+				if (cmd.hasOption("c")) codec = CompressionCodecName.valueOf(cmd.getOptionValue("c").toUpperCase(Locale.ENGLISH));
+				if (cmd.hasOption("g")) row_group_size = Integer.parseInt(cmd.getOptionValue("g"));
+				if (cmd.hasOption("b")) buffer_size = Integer.parseInt(cmd.getOptionValue("b"));
+				if (row_group_size < 1 || row_group_size > 1024 || buffer_size < 1)
+					throw new ParseException("Row group size must be between 1 and 1024 MB, buffer size must be positive.");
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get filename
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
+				throw new ParseException("Output Parquet file is missing!");
+			if (catalog == null) inpath = cmd.getArgList().get(0);
+			outpath = cmd.getArgList().get(cmd.getArgList().size()-1);
+
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		// check files
+		File avro = null, out = new File(outpath);
+		try {
+			if (out.exists())
+				throw new IOException("Output file already exists.");
+
+			if (catalog == null) {
+				avro = new File(inpath);
+				if(!avro.exists() || avro.isDirectory() || !avro.canRead())
+					throw new FileNotFoundException("Avro file not found or cannot be read.");
+			}
+		} catch (IOException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		long msgs_cnt = 0, last_msgs_cnt = 0;
+		long start_time = System.currentTimeMillis(), last_time = start_time;
+		Avro2Parquet a2p = null;
+		try {
+			// open input files
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(avro) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
+			Set<String> projection = new LinkedHashSet<String>(fields);
+			if (decode) projection.addAll(Arrays.asList(DECODE_FIELDS));
+			fileReader.setProjection(projection.toArray(new String[projection.size()]));
+
+			a2p = new Avro2Parquet(out, fields, decode, codec, row_group_size*1024*1024);
+
+			List<ModeSEncodedMessage> buffer = new ArrayList<ModeSEncodedMessage>();
+			while (fileReader.hasNext()) {
+				++msgs_cnt;
+
+				// print processing rate
+				if (System.currentTimeMillis() - last_time > 1000) {
+					System.err.format("\r%6d msgs/s", msgs_cnt-last_msgs_cnt);
+					last_time = System.currentTimeMillis();
+					last_msgs_cnt = msgs_cnt;
+				}
+
+				buffer.add(fileReader.next());
+				if (buffer.size() >= buffer_size) {
+					a2p.write(buffer);
+					buffer.clear();
+				}
+			}
+			a2p.write(buffer);
+			fileReader.close();
+			a2p.close();
+		} catch (IOException e) {
+			// error while trying to read file
+			System.err.println("IO Error: "+e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			// something went wrong
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.err.println("\n\nStatistics:");
+		System.err.format("\tMessages: %d\n", msgs_cnt);
+		if (decode) System.err.format("\tDecoded positions: %d\n", a2p.pos_cnt);
+		System.err.format(Locale.ENGLISH, "\tOutput size: %.1f MB\n", out.length()/1024./1024.);
+		System.err.format(Locale.ENGLISH, "\tTime: %.1f s\n", (System.currentTimeMillis()-start_time)/1000.);
+	}
+}
@@ -1,8 +1,6 @@
 package org.opensky.tools;
 
-import org.apache.avro.file.DataFileReader;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.Utf8;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
 import org.opensky.libadsb.ModeSDecoder;
@@ -19,7 +17,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Locale;
 
 /**
@@ -33,9 +34,35 @@ import java.util.Locale;
 public class Avro2ResearchSQLite {
 	Connection conn = null;
 	Statement stmt = null;
+	boolean compact = false;
+	long transmission_id = 0;
+
+	// sensor types which are written to the DB
+	private static final Utf8 OPENSKY = new Utf8("OpenSky");
+	private static final Utf8 RADARCAPE = new Utf8("Radarcape");
+
+	// sensors seen so far
+	HashMap<Integer, Sensor> sensors = new HashMap<Integer, Sensor>();
+
+	/**
+	 * This class caches the location of a sensor so that the
+	 * sensor table is only updated if a sensor is new or if its
+	 * location changed.
+	 */
+	private class Sensor {
+		public int serial;
+		public Position position; // null if location is unknown
+		public boolean stored; // true if position is in the sensor table
+
+		public Sensor (int serial) {
+			this.serial = serial;
+			this.stored = false;
+		}
+	}
 
 	// initialize SQLite database
-	public Avro2ResearchSQLite (String path) {
+	public Avro2ResearchSQLite (String path, boolean compact, boolean receptions) {
+		this.compact = compact;
 		try {
 			Class.forName("org.sqlite.JDBC");
 			conn = DriverManager.getConnection("jdbc:sqlite:"+path);
@@ -52,6 +79,36 @@ public class Avro2ResearchSQLite {
 
 			stmt.executeUpdate(sql);
 
+			if (receptions) {
+				sql = "CREATE TABLE transmission\n"+
+						"(id INT PRIMARY KEY NOT NULL,\n"+
+						" timeAtServer "+(compact ? "INT" : "REAL")+" NOT NULL, -- unix timestamp of first reception"+(compact ? " in microseconds" : "")+"\n"+
+						" receptions INT NOT NULL, -- number of receiving sensors\n"+
+						" rawMessage "+(compact ? "BLOB NOT NULL -- raw message" : "TEXT NOT NULL -- raw message hex string")+"\n"+
+						")";
+
+				stmt.executeUpdate(sql);
+
+				sql = "CREATE TABLE reception\n"+
+						"(transmission INT NOT NULL, -- references transmission from transmission table\n"+
+						" sensor INT NOT NULL, -- references sensor from sensors table\n"+
+						" timeAtServer "+(compact ? "INT" : "REAL")+" NOT NULL, -- unix timestamp"+(compact ? " in microseconds" : "")+"\n"+
+						" timeAtSensor INT, -- unix timestamp\n"+
+						" timestamp INT, -- rolling timestamp\n"+
+						" RSSI "+(compact ? "INT, -- in 1e-2 dBm" : "REAL, -- in dBm")+"\n"+
+						" PRIMARY KEY(transmission, sensor),\n"+
+						" FOREIGN KEY(transmission) REFERENCES transmission(id),\n"+
+						" FOREIGN KEY(sensor) REFERENCES sensor(id)\n"+
+						") WITHOUT ROWID";
+
+				stmt.executeUpdate(sql);
+			}
+
+			if (compact) {
+				createCompactSchema();
+				return;
+			}
+
 			sql = "CREATE TABLE position\n"+
 					"(sensor INT NOT NULL, -- references sensor from sensors table\n"+
 					" timeAtServer REAL NOT NULL, -- unix timestamp\n"+
@@ -87,6 +144,112 @@ public class Avro2ResearchSQLite {
 		}
 	}
 
+	/**
+	 * Creates the compact schema. Times are stored as integer microseconds,
+	 * raw messages as 7 or 14 byte BLOBs and all other values as scaled
+	 * integers. Both tables are WITHOUT ROWID tables clustered on
+	 * (sensor, timeAtServer). The views position and velocity provide the
+	 * columns and units of the default schema.
+	 * @throws SQLException if tables cannot be created
+	 */
+	private void createCompactSchema () throws SQLException {
+		String sql = "CREATE TABLE position_data\n"+
+				"(sensor INT NOT NULL, -- references sensor from sensors table\n"+
+				" timeAtServer INT NOT NULL, -- unix timestamp in microseconds\n"+
+				" timeAtSensor INT, -- unix timestamp\n"+
+				" timestamp INT, -- rolling timestamp\n"+
+				" latitude INT NOT NULL, -- in 1e-7 decimal degrees\n"+
+				" longitude INT NOT NULL, -- in 1e-7 decimal degrees\n"+
+				" altitude INT NOT NULL, -- in decimeters\n"+
+				" rawMessage BLOB NOT NULL, -- raw message\n"+
+				" PRIMARY KEY(sensor, timeAtServer, rawMessage),\n"+
+				" FOREIGN KEY(sensor) REFERENCES sensor(id)\n"+
+				") WITHOUT ROWID";
+		stmt.executeUpdate(sql);
+
+		sql = "CREATE VIEW position AS SELECT sensor,\n"+
+				" timeAtServer/1e6 AS timeAtServer, timeAtSensor, timestamp,\n"+
+				" latitude/1e7 AS latitude, longitude/1e7 AS longitude,\n"+
+				" altitude/1e1 AS altitude, lower(hex(rawMessage)) AS rawMessage\n"+
+				"FROM position_data";
+		stmt.executeUpdate(sql);
+
+		sql = "CREATE TABLE velocity_data\n"+
+				"(sensor INT NOT NULL, -- references sensor from sensors table\n"+
+				" timeAtServer INT NOT NULL, -- unix timestamp in microseconds\n"+
+				" timeAtSensor INT, -- unix timestamp\n"+
+				" timestamp INT, -- rolling timestamp\n"+
+				" rawMessage BLOB NOT NULL, -- raw message\n"+
+				" horizontalSpeed INT, -- in cm/s\n"+
+				" verticalSpeed INT, -- in cm/s\n"+
+				" heading INT, -- in 1e-2 clock-wise degrees from north\n"+
+				" geoMinusBaro INT, -- in decimeters\n"+
+				" PRIMARY KEY(sensor, timeAtServer, rawMessage),\n"+
+				" FOREIGN KEY(sensor) REFERENCES sensor(id)\n"+
+				") WITHOUT ROWID";
+		stmt.executeUpdate(sql);
+
+		sql = "CREATE VIEW velocity AS SELECT sensor,\n"+
+				" timeAtServer/1e6 AS timeAtServer, timeAtSensor, timestamp,\n"+
+				" lower(hex(rawMessage)) AS rawMessage,\n"+
+				" horizontalSpeed/1e2 AS horizontalSpeed, verticalSpeed/1e2 AS verticalSpeed,\n"+
+				" heading/1e2 AS heading, geoMinusBaro/1e1 AS geoMinusBaro\n"+
+				"FROM velocity_data";
+		stmt.executeUpdate(sql);
+	}
+
+	/**
+	 * Looks up the sensor and updates its cached location
+	 * @param serial serial number of the sensor
+	 * @param latitude sensor latitude or null if unknown
+	 * @param longitude sensor longitude or null if unknown
+	 * @param altitude sensor altitude or null if unknown
+	 * @return the sensor with its current location
+	 */
+	public Sensor getSensor (int serial, Double latitude, Double longitude, Double altitude) {
+		Sensor sensor = sensors.get(serial);
+		if (sensor == null) {
+			sensor = new Sensor(serial);
+			sensors.put(serial, sensor);
+		}
+
+		// the location is unknown unless both coordinates are known
+		if (latitude == null || longitude == null) {
+			sensor.position = null;
+		}
+		else if (sensor.position == null ||
+				!latitude.equals(sensor.position.getLatitude()) ||
+				!longitude.equals(sensor.position.getLongitude()) ||
+				(altitude != null ? !altitude.equals(sensor.position.getAltitude()) : sensor.position.getAltitude() != null)) {
+			sensor.position = new Position(longitude, latitude, altitude);
+			sensor.stored = false;
+		}
+
+		return sensor;
+	}
+
+	/**
+	 * Writes the sensor to the sensor table unless it is already
+	 * stored with its current location
+	 * @param sensor the sensor
+	 */
+	public void storeSensor (Sensor sensor) {
+		if (sensor.stored || sensor.position == null) return;
+		insertSensor(sensor.serial, sensor.position);
+		sensor.stored = true;
+	}
+
+	/**
+	 * Checks the sensor type without converting it to a String
+	 * @param type sensor type as read from the avro file
+	 * @return true if messages of this sensor type are written to the DB
+	 */
+	static boolean isResearchSensor (CharSequence type) {
+		if (type instanceof Utf8)
+			return OPENSKY.equals(type) || RADARCAPE.equals(type);
+		return OPENSKY.toString().equals(type.toString()) || RADARCAPE.toString().equals(type.toString());
+	}
+
 	public void insertSensor (int serial, Position pos) {
 		try {
 			String sql = String.format(Locale.ENGLISH, "INSERT OR REPLACE INTO sensor VALUES (%d, %f, %f, %f)",
@@ -98,14 +261,57 @@ public class Avro2ResearchSQLite {
 		}
 	}
 
+	/**
+	 * Writes a transmission and all its receptions to the DB
+	 * @param group receptions of the transmission
+	 */
+	public void insertTransmission (ReceptionGrouper.Group group) {
+		try {
+			long id = transmission_id++;
+			String sql;
+			if (compact)
+				sql = String.format(Locale.ENGLISH, "INSERT INTO transmission VALUES (%d, %d, %d, X'%s')",
+						id, Math.round(group.first*1e6), group.size, group.rawMessage);
+			else
+				sql = String.format(Locale.ENGLISH, "INSERT INTO transmission VALUES (%d, %f, %d, \"%s\")",
+						id, group.first, group.size, group.rawMessage);
+			stmt.executeUpdate(sql);
+
+			for (int i = 0; i<group.size; ++i) {
+				String time_at_sensor = Double.isNaN(group.timeAtSensor[i]) ? "NULL" : Long.toString(Math.round(group.timeAtSensor[i]));
+				String timestamp = Double.isNaN(group.timestamp[i]) ? "NULL" : Long.toString(Math.round(group.timestamp[i]));
+				Double rssi = Double.isNaN(group.rssi[i]) ? null : group.rssi[i];
+				if (compact)
+					sql = String.format(Locale.ENGLISH, "INSERT INTO reception VALUES (%d, %d, %d, %s, %s, %s)",
+							id, group.sensor[i], Math.round(group.timeAtServer[i]*1e6), time_at_sensor, timestamp,
+							Avro2SQLite.scaled(rssi, 1e2));
+				else
+					sql = String.format(Locale.ENGLISH, "INSERT INTO reception VALUES (%d, %d, %f, %s, %s, %s)",
+							id, group.sensor[i], group.timeAtServer[i], time_at_sensor, timestamp,
+							rssi != null ? rssi.toString() : "NULL");
+				stmt.executeUpdate(sql);
+			}
+		} catch (Exception e) {
+			System.err.println("Could not insert transmission: "+e.getMessage());
+			System.exit(1);
+		}
+	}
+
 	public void insertPosition (int sensor, double timeAtServer, Long timeAtSensor, Long timestamp, Position pos, String raw) {
 		try {
-			String sql = String.format(Locale.ENGLISH, "INSERT INTO position (sensor, timeAtServer, timeAtSensor, timestamp, latitude, longitude, altitude, rawMessage) VALUES (%d, %f, %d, %d, %f, %f, %f, \"%s\")",
+			String sql;
+			if (compact)
+				sql = String.format(Locale.ENGLISH, "INSERT OR IGNORE INTO position_data (sensor, timeAtServer, timeAtSensor, timestamp, latitude, longitude, altitude, rawMessage) VALUES (%d, %d, %d, %d, %s, %s, %s, X'%s')",
+						sensor, Math.round(timeAtServer*1e6), timeAtSensor, timestamp,
+						Avro2SQLite.scaled(pos.getLatitude(), 1e7), Avro2SQLite.scaled(pos.getLongitude(), 1e7),
+						Avro2SQLite.scaled(pos.getAltitude(), 1e1), raw);
+			else
+				sql = String.format(Locale.ENGLISH, "INSERT INTO position (sensor, timeAtServer, timeAtSensor, timestamp, latitude, longitude, altitude, rawMessage) VALUES (%d, %f, %d, %d, %f, %f, %f, \"%s\")",
 					sensor, timeAtServer, timeAtSensor, timestamp, pos.getLatitude(), pos.getLongitude(), pos.getAltitude(), raw);
 			stmt.executeUpdate(sql);
 		} catch (Exception e) {
 			System.err.println("Could not insert position: "+e.getMessage());
-			e.printStackTrace();
+			System.exit(1);
 		}
 	}
 
@@ -113,12 +319,19 @@ public class Avro2ResearchSQLite {
 			Long timestamp, Double horizSpeed, Double vertSpeed,
 			Double heading, Double geoMinusBaro, String raw) {
 		try {
-			String sql = String.format(Locale.ENGLISH, "INSERT INTO velocity (sensor, timeAtServer, timeAtSensor, timestamp, rawMessage, horizontalSpeed, verticalSpeed, heading, geoMinusBaro) VALUES (%d, %f, %d, %d, \"%s\", %f, %f, %f, %f)",
+			String sql;
+			if (compact)
+				sql = String.format(Locale.ENGLISH, "INSERT OR IGNORE INTO velocity_data (sensor, timeAtServer, timeAtSensor, timestamp, rawMessage, horizontalSpeed, verticalSpeed, heading, geoMinusBaro) VALUES (%d, %d, %d, %d, X'%s', %s, %s, %s, %s)",
+						sensor, Math.round(timeAtServer*1e6), timeAtSensor, timestamp, raw,
+						Avro2SQLite.scaled(horizSpeed, 1e2), Avro2SQLite.scaled(vertSpeed, 1e2),
+						Avro2SQLite.scaled(heading, 1e2), Avro2SQLite.scaled(geoMinusBaro, 1e1));
+			else
+				sql = String.format(Locale.ENGLISH, "INSERT INTO velocity (sensor, timeAtServer, timeAtSensor, timestamp, rawMessage, horizontalSpeed, verticalSpeed, heading, geoMinusBaro) VALUES (%d, %f, %d, %d, \"%s\", %f, %f, %f, %f)",
 					sensor, timeAtServer, timeAtSensor, timestamp, raw, horizSpeed, vertSpeed, heading, geoMinusBaro);
 			stmt.executeUpdate(sql);
 		} catch (Exception e) {
 			System.err.println("Could not insert velocity: "+e.getMessage());
-			e.printStackTrace();
+			System.exit(1);
 		}
 	}
 
@@ -129,7 +342,7 @@ public class Avro2ResearchSQLite {
 	private static void printHelp(Options opts) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(
-				"Avro2TestData [options/filters] avro-file sqlite-file",
+				"Avro2TestData [options/filters] (avro-file | -catalog dir) sqlite-file",
 				"\nOpenSky AVRO to Positions SQLite converter\nhttp://www.opensky-network.org\n\n",
 				opts, "");
 	}
@@ -142,7 +355,12 @@ public class Avro2ResearchSQLite {
 		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
 		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
 		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
 		opts.addOption("n", "max-num", true, "max number of flights written to the SQLite DB");
+		opts.addOption("compact", false, "use compact schema (integer times, binary raw messages, WITHOUT ROWID tables)");
+		opts.addOption("g", "group", true, "write receptions of the same message by multiple sensors within this window (ms) to tables transmission and reception");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -150,7 +368,12 @@ public class Avro2ResearchSQLite {
 		String filter_icao24 = null;
 		Long filter_max = null;
 		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
 		String inpath = null, outpath = null;
+		boolean compact = false;
+		Double group_window = null;
 		try {
 			cmd = parser.parse(opts, args);
 
@@ -159,8 +382,14 @@ public class Avro2ResearchSQLite {
 				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
 				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
 				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
 				if (cmd.hasOption("n")) filter_max = Long.parseLong(cmd.getOptionValue("n"));
-			} catch (NumberFormatException e) {
+				compact = cmd.hasOption("compact");
+				if (cmd.hasOption("g")) group_window = Double.parseDouble(cmd.getOptionValue("g"))/1000.0;
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
 				throw new ParseException("Invalid arguments: "+e.getMessage());
 			}
 
@@ -171,10 +400,10 @@ public class Avro2ResearchSQLite {
 			}
 
 			// get filename
-			if (cmd.getArgList().size() != 2)
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
 				throw new ParseException("Output SQLite file is missing!");
-			inpath = cmd.getArgList().get(0);
-			outpath = cmd.getArgList().get(1);
+			if (catalog == null) inpath = cmd.getArgList().get(0);
+			outpath = cmd.getArgList().get(cmd.getArgList().size()-1);
 
 		} catch (ParseException e) {
 			// parsing failed
@@ -192,31 +421,31 @@ public class Avro2ResearchSQLite {
 				throw new IOException("Output database already exists.");
 
 			// check input file
-			avro = new File(inpath);
-			if(!avro.exists() || avro.isDirectory() || !avro.canRead())
-				throw new FileNotFoundException("Avro file not found or cannot be read.");
+			if (catalog == null) {
+				avro = new File(inpath);
+				if(!avro.exists() || avro.isDirectory() || !avro.canRead())
+					throw new FileNotFoundException("Avro file not found or cannot be read.");
+			}
 		} catch (IOException e) {
 			// avro file not found
 			System.err.println("Error: "+e.getMessage()+"\n");
 			System.exit(1);
 		}
 
-		// AVRO file reader
-		DatumReader<ModeSEncodedMessage> datumReader =
-				new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
-
 		// some counters for statistics
 		long msgs_cnt = 0, good_pos_cnt = 0, bad_pos_cnt = 0,
-				filtered_cnt = 0, ignored_cnt = 0,
-				last_msgs_cnt = 0;
+				filtered_cnt = 0, ignored_cnt = 0, bad_raw_cnt = 0,
+				last_msgs_cnt = 0, transmissions_cnt = 0;
 		long last_time;
+		byte[] raw_buf = new byte[14];
 
 		// just a temporary instance for creating Flight-objects
-		Avro2ResearchSQLite a2sql = new Avro2ResearchSQLite(outpath);
+		Avro2ResearchSQLite a2sql = new Avro2ResearchSQLite(outpath, compact, group_window != null);
 		try {
 			// open input file
-			DataFileReader<ModeSEncodedMessage> fileReader =
-					new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(avro) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
 
 			// stuff for handling flights
 			ModeSEncodedMessage record = new ModeSEncodedMessage();
@@ -232,6 +461,10 @@ public class Avro2ResearchSQLite {
 			// Decoder
 			ModeSDecoder decoder = new ModeSDecoder();
 
+			// for matching receptions of the same transmission
+			ReceptionGrouper grouper = group_window != null ? new ReceptionGrouper(group_window) : null;
+			ReceptionGrouper.Group group;
+
 			// for msg rate
 			last_time = System.currentTimeMillis();
 			while (fileReader.hasNext()) {
@@ -248,16 +481,32 @@ public class Avro2ResearchSQLite {
 				// get next record from file
 				record = fileReader.next(record);
 
-				// time filters
-				if (filter_start != null && record.getTimeAtServer()<filter_start) {
+				// only decode messages of sensors that are written to the DB
+				if (!isResearchSensor(record.getSensorType())) {
 					filtered_cnt++;
 					continue;
 				}
-				if (filter_end != null && record.getTimeAtServer()>filter_end) {
-					filtered_cnt++;
+
+				// skip corrupt raw messages, they can neither be decoded nor stored as BLOB
+				if (raw_buf.length < record.getRawMessage().length()/2)
+					raw_buf = new byte[record.getRawMessage().length()/2];
+				if (CompactMessage.hexToBytes(record.getRawMessage(), raw_buf) < 0) {
+					bad_raw_cnt++;
 					continue;
 				}
 
+				// group receptions and write transmissions whose window is closed
+				if (grouper != null) {
+					grouper.add(record.getRawMessage().toString(), record.getSensorSerialNumber(),
+							record.getTimeAtServer(), record.getTimeAtSensor(), record.getTimestamp(),
+							record.getRSSIPacket());
+					while ((group = grouper.poll(record.getTimeAtServer())) != null) {
+						if (group.size < 2) continue;
+						a2sql.insertTransmission(group);
+						transmissions_cnt++;
+					}
+				}
+
 				// cleanup decoders every 1000000 messages to avoid excessive memory usage
 				if (msgs_cnt%1000000 == 0) {
 					decoder.gc();
@@ -269,11 +518,9 @@ public class Avro2ResearchSQLite {
 					continue;
 				}
 
-				Position rec = record.getSensorLatitude() != null ?
-						new Position(
-								record.getSensorLongitude(),
-								record.getSensorLatitude(),
-								record.getSensorAltitude()) : null;
+				Sensor sensor = a2sql.getSensor(record.getSensorSerialNumber(),
+						record.getSensorLatitude(), record.getSensorLongitude(), record.getSensorAltitude());
+				Position rec = sensor.position;
 
 				if (msg.getType() == subtype.ADSB_AIRBORN_POSITION_V0 ||
 						msg.getType() == subtype.ADSB_AIRBORN_POSITION_V1 ||
@@ -293,36 +540,43 @@ public class Avro2ResearchSQLite {
 						++bad_pos_cnt;
 					else if (pos.isReasonable()) {
 						++good_pos_cnt;
-						if (record.getSensorType().toString().equals("OpenSky") || record.getSensorType().toString().equals("Radarcape")) {
-							a2sql.insertSensor(record.getSensorSerialNumber(), rec);
-							a2sql.insertPosition(record.getSensorSerialNumber(), record.getTimeAtServer(),
-									record.getTimeAtSensor() != null ? Math.round(record.getTimeAtSensor()) : null,
-									record.getTimestamp() != null ? Math.round(record.getTimestamp()) : null,
-									pos, record.getRawMessage().toString());
-						}
+						a2sql.storeSensor(sensor);
+						a2sql.insertPosition(record.getSensorSerialNumber(), record.getTimeAtServer(),
+								record.getTimeAtSensor() != null ? Math.round(record.getTimeAtSensor()) : null,
+								record.getTimestamp() != null ? Math.round(record.getTimestamp()) : null,
+								pos, record.getRawMessage().toString());
 					}
 				}
 				else if (msg.getType() == subtype.ADSB_VELOCITY) {
 					velo = (VelocityOverGroundMsg) msg;
-					if (record.getSensorType().toString().equals("OpenSky") || record.getSensorType().toString().equals("Radarcape")) {
-						a2sql.insertSensor(record.getSensorSerialNumber(), rec);
-						a2sql.insertVelocity(record.getSensorSerialNumber(),  record.getTimeAtServer(),
-								record.getTimeAtSensor() != null ? Math.round(record.getTimeAtSensor()) : null,
-								record.getTimestamp() != null ? Math.round(record.getTimestamp()) : null,
-								velo.hasVelocityInfo() ? tools.knots2MetersPerSecond(velo.getVelocity().intValue()) : null,
-								velo.hasVerticalRateInfo() ? tools.feetPerMinute2MetersPerSecond(velo.getVerticalRate()) : null,
-								velo.hasVelocityInfo() ? velo.getHeading() : null, 
-								velo.hasGeoMinusBaroInfo() ? tools.feet2Meters(velo.getGeoMinusBaro()) : null,
-								record.getRawMessage().toString());
-					}
+					a2sql.storeSensor(sensor);
+					a2sql.insertVelocity(record.getSensorSerialNumber(),  record.getTimeAtServer(),
+							record.getTimeAtSensor() != null ? Math.round(record.getTimeAtSensor()) : null,
+							record.getTimestamp() != null ? Math.round(record.getTimestamp()) : null,
+							velo.hasVelocityInfo() ? tools.knots2MetersPerSecond(velo.getVelocity().intValue()) : null,
+							velo.hasVerticalRateInfo() ? tools.feetPerMinute2MetersPerSecond(velo.getVerticalRate()) : null,
+							velo.hasVelocityInfo() ? velo.getHeading() : null, 
+							velo.hasGeoMinusBaroInfo() ? tools.feet2Meters(velo.getGeoMinusBaro()) : null,
+							record.getRawMessage().toString());
 				}
 				// ignore any other message
 				else ignored_cnt++;
 			}
 
+			// write residual transmissions
+			if (grouper != null) {
+				while ((group = grouper.poll()) != null) {
+					if (group.size < 2) continue;
+					a2sql.insertTransmission(group);
+					transmissions_cnt++;
+				}
+			}
+
 			a2sql.conn.commit();
 
 			fileReader.close();
+			if (fileReader.hasIndex())
+				System.err.println("Blocks skipped using the index: "+fileReader.getNumberOfBlocksSkipped());
 
 		} catch (IOException e) {
 			// error while trying to read file
@@ -339,8 +593,11 @@ public class Avro2ResearchSQLite {
 		System.err.format("\tTotal messages: %d\n", msgs_cnt);
 		System.err.format("\tFiltered messages: %d\n", filtered_cnt);
 		System.err.format("\tIgnored messages: %d\n", ignored_cnt);
+		System.err.format("\tInvalid raw messages: %d\n", bad_raw_cnt);
 		System.err.format("\tGood positions: %d\n", good_pos_cnt);
 		System.err.format("\tBad positions: %d\n", bad_pos_cnt);
+		if (group_window != null)
+			System.err.format("\tTransmissions received by multiple sensors: %d\n", transmissions_cnt);
 	}
 }
 
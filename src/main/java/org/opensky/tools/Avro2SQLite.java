@@ -1,8 +1,5 @@
 package org.opensky.tools;
 
-import org.apache.avro.file.DataFileReader;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
 import org.opensky.libadsb.ModeSDecoder;
@@ -16,7 +13,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -31,17 +30,49 @@ import java.util.Locale;
 public class Avro2SQLite {
 	Connection conn = null;
 	Statement stmt = null;
-	
+	boolean compact = false;
+	int chunk_size = 0;
+
 	// initialize SQLite database
-	public Avro2SQLite (String path, boolean nopositions, boolean novelocity) {
+	public Avro2SQLite (String path, boolean nopositions, boolean novelocity, boolean compact, int chunk_size) {
+		this.compact = compact;
+		this.chunk_size = chunk_size;
 		try {
 			Class.forName("org.sqlite.JDBC");
 			conn = DriverManager.getConnection("jdbc:sqlite:"+path);
 			conn.setAutoCommit(false);
 			stmt = conn.createStatement();
+
+			String sql;
+			if (chunk_size > 0) {
+				sql = "CREATE TABLE tracks\n"+
+						"(flight INT NOT NULL, -- references flight from flights table\n"+
+						" seq INT NOT NULL, -- number of the chunk within the flight\n"+
+						" points INT NOT NULL, -- number of points in this chunk\n"+
+						" first REAL NOT NULL, -- unix timestamp of first point\n"+
+						" last REAL NOT NULL, -- unix timestamp of last point\n"+
+						" minLatitude REAL NOT NULL, -- in decimal degrees\n"+
+						" maxLatitude REAL NOT NULL, -- in decimal degrees\n"+
+						" minLongitude REAL NOT NULL, -- in decimal degrees\n"+
+						" maxLongitude REAL NOT NULL, -- in decimal degrees\n"+
+						" minAltitude REAL, -- in meters\n"+
+						" maxAltitude REAL, -- in meters\n"+
+						" data BLOB NOT NULL, -- delta encoded points (see TrackChunk)\n"+
+						" PRIMARY KEY(flight, seq),\n"+
+						" FOREIGN KEY(flight) REFERENCES "+(compact ? "flights_data" : "flights")+"(id)\n"+
+						") WITHOUT ROWID";
+
+				stmt.executeUpdate(sql);
+				nopositions = true;
+			}
+
+			if (compact) {
+				createCompactSchema(nopositions, novelocity);
+				return;
+			}
 			
 			// create tables
-			String sql = "CREATE TABLE flights\n"+
+			sql = "CREATE TABLE flights\n"+
 			             "(id INT PRIMARY KEY,\n"+
 					     " first REAL NOT NULL, -- unix timestamp first message\n"+
 			             " last REAL NOT NULL, -- unix timestamp last message\n"+
@@ -82,11 +113,98 @@ public class Avro2SQLite {
 			System.exit(1);
 		}
 	}
+
+	/**
+	 * Creates the compact schema. Times are stored as integer microseconds,
+	 * coordinates as integer 1e-7 degrees and all other values as scaled
+	 * integers, which SQLite stores in 1-4 bytes instead of 8 bytes per REAL.
+	 * Positions and velocities are WITHOUT ROWID tables clustered on
+	 * (flight, timestamp). The column seq is part of the key, i.e., rows
+	 * with the same timestamp are kept as in the default schema. It is 0
+	 * unless there is such a duplicate, so SQLite stores it in 0 bytes. The views
+	 * flights, positions and velocities provide the columns and units of
+	 * the default schema.
+	 * @param nopositions do not create positions tables
+	 * @param novelocity do not create velocities tables
+	 * @throws SQLException if tables cannot be created
+	 */
+	private void createCompactSchema (boolean nopositions, boolean novelocity) throws SQLException {
+		String sql = "CREATE TABLE flights_data\n"+
+				"(id INTEGER PRIMARY KEY,\n"+
+				" first INT NOT NULL, -- unix timestamp first message in microseconds\n"+
+				" last INT NOT NULL, -- unix timestamp last message in microseconds\n"+
+				" icao24 INT NOT NULL, -- icao 24-bit address\n"+
+				" callsign TEXT -- callsign\n"+
+				")";
+		stmt.executeUpdate(sql);
+
+		sql = "CREATE VIEW flights AS SELECT id,\n"+
+				" first/1e6 AS first, last/1e6 AS last,\n"+
+				" printf('%06x', icao24) AS icao24, callsign\n"+
+				"FROM flights_data";
+		stmt.executeUpdate(sql);
+
+		if (!nopositions) {
+			sql = "CREATE TABLE positions_data\n"+
+					"(flight INT NOT NULL, -- references flight from flights table\n"+
+					" timestamp INT NOT NULL, -- unix timestamp in microseconds\n"+
+					" longitude INT, -- in 1e-7 decimal degrees\n"+
+					" latitude INT, -- in 1e-7 decimal degrees\n"+
+					" altitude INT, -- in decimeters\n"+
+					" accuracy INT, -- containment radius in decimeters\n"+
+					" seq INT NOT NULL, -- number of earlier rows with the same flight and timestamp (usually 0)\n"+
+					" PRIMARY KEY(flight, timestamp, seq),\n"+
+					" FOREIGN KEY(flight) REFERENCES flights_data(id)\n"+
+					") WITHOUT ROWID";
+			stmt.executeUpdate(sql);
+
+			sql = "CREATE VIEW positions AS SELECT flight,\n"+
+					" timestamp/1e6 AS timestamp, longitude/1e7 AS longitude,\n"+
+					" latitude/1e7 AS latitude, altitude/1e1 AS altitude,\n"+
+					" accuracy/1e1 AS accuracy\n"+
+					"FROM positions_data";
+			stmt.executeUpdate(sql);
+		}
+
+		if (!novelocity) {
+			sql = "CREATE TABLE velocities_data\n"+
+					"(flight INT NOT NULL, -- references flight from flights table\n"+
+					" timestamp INT NOT NULL, -- unix timestamp in microseconds\n"+
+					" velocity INT, -- in centimeters per second\n"+
+					" heading INT, -- in 1e-2 degrees clockwise from geographic north\n"+
+					" verticalRate INT, -- in centimeters per second\n"+
+					" seq INT NOT NULL, -- number of earlier rows with the same flight and timestamp (usually 0)\n"+
+					" PRIMARY KEY(flight, timestamp, seq),\n"+
+					" FOREIGN KEY(flight) REFERENCES flights_data(id)\n"+
+					") WITHOUT ROWID";
+			stmt.executeUpdate(sql);
+
+			sql = "CREATE VIEW velocities AS SELECT flight,\n"+
+					" timestamp/1e6 AS timestamp, velocity/1e2 AS velocity,\n"+
+					" heading/1e2 AS heading, verticalRate/1e2 AS verticalRate\n"+
+					"FROM velocities_data";
+			stmt.executeUpdate(sql);
+		}
+	}
+
+	/**
+	 * @param value value to be stored in the compact schema
+	 * @param scale scaling factor of the column
+	 * @return the scaled integer value as SQL literal
+	 */
+	static String scaled (Double value, double scale) {
+		return value != null ? Long.toString(Math.round(value*scale)) : "NULL";
+	}
 	
 	public void insertFlight (Flight flight, double time, String icao24) {
 		try {
-			String sql = String.format(Locale.ENGLISH, "INSERT INTO flights VALUES (%d, %f, %f, '%s', NULL)",
-					flight.id, time, time, icao24);
+			String sql;
+			if (compact)
+				sql = String.format(Locale.ENGLISH, "INSERT INTO flights_data VALUES (%d, %d, %d, %d, NULL)",
+						flight.id, Math.round(time*1e6), Math.round(time*1e6), Integer.parseInt(icao24, 16));
+			else
+				sql = String.format(Locale.ENGLISH, "INSERT INTO flights VALUES (%d, %f, %f, '%s', NULL)",
+						flight.id, time, time, icao24);
 			stmt.executeUpdate(sql);
 		} catch (Exception e) {
 			System.err.println("Could not create flight: "+e.getMessage());
@@ -98,11 +216,17 @@ public class Avro2SQLite {
 		try {
 			String sql;
 			if (last != null) {
-				sql = String.format(Locale.ENGLISH, "UPDATE flights SET last=%f WHERE id = %d", last, flight);
+				if (compact)
+					sql = String.format(Locale.ENGLISH, "UPDATE flights_data SET last=%d WHERE id = %d", Math.round(last*1e6), flight);
+				else
+					sql = String.format(Locale.ENGLISH, "UPDATE flights SET last=%f WHERE id = %d", last, flight);
 				stmt.execute(sql);
 			}
 			if (callsign != null) {
-				sql = String.format(Locale.ENGLISH, "UPDATE flights SET callsign='%s' WHERE id = %d", callsign, flight);
+				if (compact)
+					sql = String.format(Locale.ENGLISH, "UPDATE flights_data SET callsign='%s' WHERE id = %d", callsign, flight);
+				else
+					sql = String.format(Locale.ENGLISH, "UPDATE flights SET callsign='%s' WHERE id = %d", callsign, flight);
 				stmt.execute(sql);
 			}
 		} catch (Exception e) {
@@ -111,29 +235,97 @@ public class Avro2SQLite {
 		}
 	}
 	
+	/**
+	 * Inserts a row into positions_data or velocities_data. The seq column
+	 * is incremented until the row is inserted, i.e., it is 0 unless the
+	 * flight already has rows with the same timestamp.
+	 * @param sql INSERT OR IGNORE statement without the value of seq and the closing parenthesis
+	 * @throws SQLException if the row cannot be inserted
+	 */
+	private void insertWithSeq (String sql) throws SQLException {
+		int seq = 0;
+		while (stmt.executeUpdate(sql+seq+")") == 0) ++seq;
+	}
+
 	public void insertPosition (long flight, double time, Position position, Double radius) {
 		try {
-			String sql = String.format(Locale.ENGLISH, "INSERT INTO positions VALUES (%d, %f, %s, %s, %s, %s)",
+			String sql;
+			if (compact)
+				sql = String.format(Locale.ENGLISH, "INSERT OR IGNORE INTO positions_data VALUES (%d, %d, %s, %s, %s, %s, ",
+						flight, Math.round(time*1e6),
+						scaled(position != null ? position.getLongitude() : null, 1e7),
+						scaled(position != null ? position.getLatitude() : null, 1e7),
+						scaled(position != null ? position.getAltitude() : null, 1e1),
+						scaled(radius != null && radius != -1.0 ? radius : null, 1e1));
+			else
+				sql = String.format(Locale.ENGLISH, "INSERT INTO positions VALUES (%d, %f, %s, %s, %s, %s)",
 					flight, time,
 					position != null && position.getLongitude() != null ? position.getLongitude().toString() : "NULL",
 					position != null && position.getLatitude() != null ? position.getLatitude().toString() : "NULL",
 					position != null && position.getAltitude() != null ? position.getAltitude().toString() : "NULL",
 					radius != null && radius != -1.0 ? radius.toString() : "NULL");
-			stmt.executeUpdate(sql);
+			if (compact) insertWithSeq(sql);
+			else stmt.executeUpdate(sql);
 		} catch (Exception e) {
 			System.err.println("Could not insert position: "+e.getMessage());
 			System.exit(1);
 		}
 	}
 	
+	public void insertTrackChunk (long flight, int seq, TrackChunk chunk) {
+		try {
+			String sql = String.format(Locale.ENGLISH, "INSERT INTO tracks VALUES (%d, %d, %d, %f, %f, %f, %f, %f, %f, %s, %s, X'%s')",
+					flight, seq, chunk.size(), chunk.getTime(0), chunk.getTime(chunk.size()-1),
+					chunk.getMinLatitude(), chunk.getMaxLatitude(),
+					chunk.getMinLongitude(), chunk.getMaxLongitude(),
+					chunk.getMinAltitude() != null ? chunk.getMinAltitude().toString() : "NULL",
+					chunk.getMaxAltitude() != null ? chunk.getMaxAltitude().toString() : "NULL",
+					tools.toHexString(chunk.encode()));
+			stmt.executeUpdate(sql);
+		} catch (Exception e) {
+			System.err.println("Could not insert track chunk: "+e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Adds a position to the current track chunk of the flight and writes
+	 * the chunk to the DB once it is full
+	 * @param flight the flight
+	 * @param time unix timestamp of the position
+	 * @param position the position
+	 */
+	public void addTrackPoint (Flight flight, double time, Position position) {
+		flight.chunk.add(time, position.getLatitude(), position.getLongitude(), position.getAltitude());
+		if (flight.chunk.size() >= chunk_size)
+			flushTrackChunk(flight);
+	}
+
+	/**
+	 * Writes the current track chunk of the flight to the DB
+	 * @param flight the flight
+	 */
+	public void flushTrackChunk (Flight flight) {
+		if (flight.chunk.size() == 0) return;
+		insertTrackChunk(flight.id, flight.chunk_seq++, flight.chunk);
+		flight.chunk.clear();
+	}
+	
 	public void insertVelocity (long flight, double time, Double velocity, Double heading, Double vertical_rate) {
 		try {
-			String sql = String.format(Locale.ENGLISH, "INSERT INTO velocities VALUES (%d, %f, %s, %s, %s)",
+			String sql;
+			if (compact)
+				sql = String.format(Locale.ENGLISH, "INSERT OR IGNORE INTO velocities_data VALUES (%d, %d, %s, %s, %s, ",
+						flight, Math.round(time*1e6),
+						scaled(velocity, 1e2), scaled(heading, 1e2), scaled(vertical_rate, 1e2));
+			else
+				sql = String.format(Locale.ENGLISH, "INSERT INTO velocities VALUES (%d, %f, %s, %s, %s)",
 					flight, time,
 					velocity != null ? velocity.toString() : "NULL",
 					heading != null ? heading.toString() : "NULL",
 					vertical_rate != null ? vertical_rate.toString() : "NULL");
-			stmt.executeUpdate(sql);
+			if (compact) insertWithSeq(sql);
+			else stmt.executeUpdate(sql);
 		} catch (Exception e) {
 			System.err.println("Could not insert velocity: "+e.getMessage());
 			System.exit(1);
@@ -147,7 +339,7 @@ public class Avro2SQLite {
 	private static void printHelp(Options opts) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(
-				"Avro2SQLite [options/filters] avro-file sqlite-file",
+				"Avro2SQLite [options/filters] (avro-file | -catalog dir) sqlite-file",
 				"\nOpenSky AVRO to SQLite converter\nhttp://www.opensky-network.org\n\n",
 				opts, "");
 	}
@@ -164,10 +356,13 @@ public class Avro2SQLite {
 		public double last_velocity;
 		public double last_heading;
 		public double last_vertical_rate;
+		public TrackChunk chunk; // positions not yet written to tracks table (only with -tracks)
+		public int chunk_seq; // number of the next track chunk
 
 		public Flight (long id) {
 			this.id = id;
 			this.last_position = new Position();
+			if (chunk_size > 0) this.chunk = new TrackChunk();
 		}
 	}
 
@@ -179,9 +374,14 @@ public class Avro2SQLite {
 		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
 		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
 		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
 		opts.addOption("n", "max-num", true, "max number of flights written to the SQLite DB");
 		opts.addOption("novelocity", false, "disable DB entries for velocity updates");
 		opts.addOption("noposition", false, "disable DB entries for position updates");
+		opts.addOption("compact", false, "use compact schema (integer times and coordinates, WITHOUT ROWID tables)");
+		opts.addOption("tracks", true, "store positions as delta encoded chunks of up to this many points in table tracks");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -189,8 +389,12 @@ public class Avro2SQLite {
 		String filter_icao24 = null;
 		Long filter_max = null;
 		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
 		String inpath = null, outpath = null;
-		boolean novelocity = false, noposition = false;
+		boolean novelocity = false, noposition = false, compact = false;
+		int chunk_size = 0;
 		try {
 			cmd = parser.parse(opts, args);
 
@@ -199,10 +403,19 @@ public class Avro2SQLite {
 				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
 				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
 				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
 				if (cmd.hasOption("n")) filter_max = Long.parseLong(cmd.getOptionValue("n"));
 				novelocity = cmd.hasOption("novelocity");
 				noposition = cmd.hasOption("noposition");
-			} catch (NumberFormatException e) {
+				compact = cmd.hasOption("compact");
+				if (cmd.hasOption("tracks")) {
+					chunk_size = Integer.parseInt(cmd.getOptionValue("tracks"));
+					if (chunk_size <= 0) throw new ParseException("Track chunk size must be positive.");
+				}
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
 				throw new ParseException("Invalid arguments: "+e.getMessage());
 			}
 
@@ -213,10 +426,10 @@ public class Avro2SQLite {
 			}
 
 			// get filename
-			if (cmd.getArgList().size() != 2)
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
 				throw new ParseException("Output SQLite file is missing!");
-			inpath = cmd.getArgList().get(0);
-			outpath = cmd.getArgList().get(1);
+			if (catalog == null) inpath = cmd.getArgList().get(0);
+			outpath = cmd.getArgList().get(cmd.getArgList().size()-1);
 
 		} catch (ParseException e) {
 			// parsing failed
@@ -234,19 +447,17 @@ public class Avro2SQLite {
 				throw new IOException("Output database already exists.");
 
 			// check input file
-			avro = new File(inpath);
-			if(!avro.exists() || avro.isDirectory() || !avro.canRead())
-				throw new FileNotFoundException("Avro file not found or cannot be read.");
+			if (catalog == null) {
+				avro = new File(inpath);
+				if(!avro.exists() || avro.isDirectory() || !avro.canRead())
+					throw new FileNotFoundException("Avro file not found or cannot be read.");
+			}
 		} catch (IOException e) {
 			// avro file not found
 			System.err.println("Error: "+e.getMessage()+"\n");
 			System.exit(1);
 		}
 
-		// AVRO file reader
-		DatumReader<ModeSEncodedMessage> datumReader =
-				new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
-
 		// some counters for statistics
 		long msgs_cnt = 0, good_pos_cnt = 0, bad_pos_cnt = 0,
 				flights_cnt = 0, filtered_cnt = 0, ignored_cnt = 0,
@@ -254,11 +465,13 @@ public class Avro2SQLite {
 		long last_time;
 
 		// just a temporary instance for creating Flight-objects
-		Avro2SQLite a2sql = new Avro2SQLite(outpath, noposition, novelocity);
+		Avro2SQLite a2sql = new Avro2SQLite(outpath, noposition, novelocity, compact, chunk_size);
 		try {
 			// open input file
-			DataFileReader<ModeSEncodedMessage> fileReader =
-					new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(avro) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
+			fileReader.setProjection("timeAtServer", "rawMessage", "sensorLatitude", "sensorLongitude", "sensorAltitude");
 
 			// stuff for handling flights
 			ModeSEncodedMessage record = new ModeSEncodedMessage();
@@ -294,16 +507,6 @@ public class Avro2SQLite {
 				// get next record from file
 				record = fileReader.next(record);
 
-				// time filters
-				if (filter_start != null && record.getTimeAtServer()<filter_start) {
-					filtered_cnt++;
-					continue;
-				}
-				if (filter_end != null && record.getTimeAtServer()>filter_end) {
-					filtered_cnt++;
-					continue;
-				}
-
 				// cleanup decoders every 1000000 messages to avoid excessive memory usage
 				if (msgs_cnt%1000000 == 0) {
 					decoder.gc();
@@ -360,7 +563,10 @@ public class Avro2SQLite {
 					else if (pos.isReasonable() && !pos.equals(flight.last_position)) { // filter duplicate positions
 						flight.last_position = pos;
 						++good_pos_cnt;
-						a2sql.insertPosition(flight.id, flight.last, pos, airpos.getHorizontalContainmentRadiusLimit());
+						if (chunk_size > 0)
+							a2sql.addTrackPoint(flight, flight.last, pos);
+						else
+							a2sql.insertPosition(flight.id, flight.last, pos, airpos.getHorizontalContainmentRadiusLimit());
 					}
 				}
 
@@ -381,7 +587,10 @@ public class Avro2SQLite {
 					else if (pos.isReasonable() && !pos.equals(flight.last_position)) { // filter duplicate positions
 						flight.last_position = pos;
 						++good_pos_cnt;
-						a2sql.insertPosition(flight.id, flight.last, pos, surfacepos.getHorizontalContainmentRadiusLimit());
+						if (chunk_size > 0)
+							a2sql.addTrackPoint(flight, flight.last, pos);
+						else
+							a2sql.insertPosition(flight.id, flight.last, pos, surfacepos.getHorizontalContainmentRadiusLimit());
 					}
 				}
 
@@ -415,9 +624,16 @@ public class Avro2SQLite {
 				else ignored_cnt++;
 			}
 
+			// write residual track chunks
+			if (chunk_size > 0)
+				for (Flight f : flights.values())
+					a2sql.flushTrackChunk(f);
+
 			a2sql.conn.commit();
 
 			fileReader.close();
+			if (fileReader.hasIndex())
+				System.err.println("Blocks skipped using the index: "+fileReader.getNumberOfBlocksSkipped());
 
 		} catch (IOException e) {
 			// error while trying to read file
@@ -0,0 +1,443 @@
+package org.opensky.tools;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.io.DatumReader;
+import org.apache.commons.cli.*;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Catalog of a directory tree of OpenSky avro files
+ *
+ * For each file, the catalog contains its time range, the number of
+ * records, the messages per sensor and a bloom filter of all icao 24-bit
+ * addresses. It is stored as SQLite DB in the directory and updated
+ * incrementally, i.e., only new or modified files are read. The tools use
+ * it to select the files relevant for their filters (option -catalog).
+ */
+public class AvroCatalog {
+	public static final String FILENAME = "osky-catalog.db";
+
+	Connection conn = null;
+	Statement stmt = null;
+	private final File dir;
+
+	/**
+	 * Summary of an avro file
+	 */
+	private static class Entry {
+		String path; // relative to the catalog directory
+		long length, modified;
+		long records;
+		double min_time = Double.MAX_VALUE, max_time = -Double.MAX_VALUE;
+		IntLongMap sensors = new IntLongMap(); // messages per sensor
+		BloomFilter bloom;
+	}
+
+	/**
+	 * Reads an avro file and creates its summary
+	 */
+	private static class Scanner implements Callable<Entry> {
+		private final File avro;
+		private final String path;
+		private final int bloom_size, hashes;
+
+		public Scanner (File avro, String path, int bloom_size, int hashes) {
+			this.avro = avro;
+			this.path = path;
+			this.bloom_size = bloom_size;
+			this.hashes = hashes;
+		}
+
+		@Override
+		public Entry call() throws Exception {
+			Entry entry = new Entry();
+			entry.path = path;
+			entry.length = avro.length();
+			entry.modified = avro.lastModified();
+			entry.bloom = new BloomFilter(bloom_size, hashes);
+
+			DatumReader<ModeSEncodedMessage> datumReader = new ProjectionDatumReader("timeAtServer", "rawMessage", "sensorSerialNumber");
+			DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
+			try {
+				ModeSEncodedMessage record = new ModeSEncodedMessage();
+				while (fileReader.hasNext()) {
+					record = fileReader.next(record);
+
+					entry.records++;
+					entry.min_time = Math.min(entry.min_time, record.getTimeAtServer());
+					entry.max_time = Math.max(entry.max_time, record.getTimeAtServer());
+					entry.sensors.add(record.getSensorSerialNumber(), 1);
+					int icao24 = BlockIndex.getIcao24(record.getRawMessage());
+					if (icao24 >= 0) entry.bloom.add(icao24);
+				}
+			} finally {
+				fileReader.close();
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"AvroCatalog [options] directory",
+				"\nCreates or updates the catalog ("+FILENAME+") of all OpenSky avro files in a directory tree\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	/**
+	 * Opens the catalog of a directory and creates it if it does not exist
+	 * @param dir the directory
+	 * @throws SQLException if the DB cannot be opened
+	 */
+	public AvroCatalog (File dir) throws SQLException {
+		this.dir = dir;
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("SQLite JDBC driver not found.");
+		}
+		conn = DriverManager.getConnection("jdbc:sqlite:"+new File(dir, FILENAME).getPath());
+		conn.setAutoCommit(false);
+		stmt = conn.createStatement();
+
+		String sql = "CREATE TABLE IF NOT EXISTS files\n"+
+				"(path TEXT PRIMARY KEY, -- relative to the catalog directory\n"+
+				" length INT NOT NULL, -- file size in bytes\n"+
+				" modified INT NOT NULL, -- last modification (ms since epoch)\n"+
+				" records INT NOT NULL, -- number of messages\n"+
+				" minTime REAL, -- first timeAtServer (NULL if empty)\n"+
+				" maxTime REAL, -- last timeAtServer (NULL if empty)\n"+
+				" bloomHashes INT NOT NULL, -- hash functions of the bloom filter\n"+
+				" icao24Bloom BLOB NOT NULL -- bloom filter of the icao 24-bit addresses\n"+
+				")";
+		stmt.executeUpdate(sql);
+		stmt.executeUpdate("CREATE INDEX IF NOT EXISTS files_time ON files (minTime, maxTime)");
+		sql = "CREATE TABLE IF NOT EXISTS sensors\n"+
+				"(sensor INT NOT NULL, -- sensor serial number\n"+
+				" path TEXT NOT NULL, -- file with messages of the sensor\n"+
+				" messages INT NOT NULL, -- number of messages of the sensor in the file\n"+
+				" PRIMARY KEY(sensor, path)\n"+
+				") WITHOUT ROWID";
+		stmt.executeUpdate(sql);
+		stmt.executeUpdate("CREATE INDEX IF NOT EXISTS sensors_path ON sensors (path)");
+		conn.commit();
+	}
+
+	/**
+	 * Adds all avro files in a directory tree to a list
+	 * @param dir the directory
+	 * @param files the list
+	 */
+	private static void listAvroFiles (File dir, List<File> files) {
+		File[] entries = dir.listFiles();
+		if (entries == null) return;
+		Arrays.sort(entries);
+		for (File entry : entries) {
+			if (entry.isDirectory()) listAvroFiles(entry, files);
+			else if (entry.getName().endsWith(".avro") && entry.canRead()) files.add(entry);
+		}
+	}
+
+	/**
+	 * @param path path relative to the catalog directory
+	 * @return the path as SQL string literal
+	 */
+	private static String quote (String path) {
+		return "'"+path.replace("'", "''")+"'";
+	}
+
+	/**
+	 * Adds new and modified files to the catalog and removes deleted files
+	 * @param threads number of files read in parallel
+	 * @param bloom_size bits of the bloom filters of new files
+	 * @param hashes hash functions of the bloom filters of new files
+	 * @return number of files read
+	 */
+	public int update (int threads, int bloom_size, int hashes) throws Exception {
+		List<File> files = new ArrayList<File>();
+		listAvroFiles(dir, files);
+
+		// load known files
+		Map<String, long[]> known = new HashMap<String, long[]>();
+		ResultSet rs = stmt.executeQuery("SELECT path, length, modified FROM files");
+		while (rs.next())
+			known.put(rs.getString(1), new long[] {rs.getLong(2), rs.getLong(3)});
+		rs.close();
+
+		// remove deleted files
+		Set<String> found = new HashSet<String>();
+		for (File file : files) found.add(dir.toURI().relativize(file.toURI()).getPath());
+		for (String path : known.keySet()) {
+			if (found.contains(path)) continue;
+			System.err.println("Removing "+path);
+			stmt.executeUpdate("DELETE FROM files WHERE path = "+quote(path));
+			stmt.executeUpdate("DELETE FROM sensors WHERE path = "+quote(path));
+		}
+		conn.commit();
+
+		// read new and modified files in parallel
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+		try {
+			for (File file : files) {
+				String path = dir.toURI().relativize(file.toURI()).getPath();
+				long[] entry = known.get(path);
+				if (entry != null && entry[0] == file.length() && entry[1] == file.lastModified())
+					continue;
+				results.add(pool.submit(new Scanner(file, path, bloom_size, hashes)));
+			}
+
+			// store results in the order of the files (commit each file)
+			int cnt = 0;
+			for (Future<Entry> result : results) {
+				Entry entry = result.get();
+				store(entry);
+				System.err.format("\rRead %d of %d files", ++cnt, results.size());
+			}
+			if (cnt > 0) System.err.println();
+		} finally {
+			pool.shutdownNow();
+		}
+		return results.size();
+	}
+
+	/**
+	 * Replaces the entry of a file in the catalog
+	 * @param entry summary of the file
+	 */
+	private void store (Entry entry) throws SQLException {
+		StringBuilder bloom = new StringBuilder();
+		for (byte b : entry.bloom.toByteArray())
+			bloom.append(String.format("%02x", b & 0xff));
+
+		stmt.executeUpdate("DELETE FROM sensors WHERE path = "+quote(entry.path));
+		stmt.executeUpdate(String.format(Locale.ENGLISH,
+				"INSERT OR REPLACE INTO files VALUES (%s, %d, %d, %d, %s, %s, %d, X'%s')",
+				quote(entry.path), entry.length, entry.modified, entry.records,
+				entry.records > 0 ? Double.toString(entry.min_time) : "NULL",
+				entry.records > 0 ? Double.toString(entry.max_time) : "NULL",
+				entry.bloom.getNumberOfHashes(), bloom.toString()));
+
+		if (entry.sensors.size() > 0) {
+			StringBuilder sql = new StringBuilder("INSERT INTO sensors VALUES ");
+			for (int i = 0; i<entry.sensors.size(); ++i) {
+				if (i > 0) sql.append(", ");
+				sql.append(String.format(Locale.ENGLISH, "(%d, %s, %d)",
+						entry.sensors.getKey(i), quote(entry.path), entry.sensors.getValue(i)));
+			}
+			stmt.executeUpdate(sql.toString());
+		}
+		conn.commit();
+	}
+
+	/**
+	 * Selects the files which may contain messages matching a filter
+	 * @param filter the filter
+	 * @return the files ordered by their first message
+	 */
+	public List<File> select (RecordFilter filter) throws SQLException {
+		// time range and sensors are selected by the DB, the rest by the filter
+		double[] bounds = filter.getTimeBounds();
+		IntSet sensors = filter.getSensors();
+		StringBuilder sql = new StringBuilder("SELECT path, minTime, maxTime, bloomHashes, icao24Bloom FROM files WHERE records > 0");
+		if (bounds[0] > Double.NEGATIVE_INFINITY) sql.append(" AND maxTime >= ").append(Double.toString(bounds[0]));
+		if (bounds[1] < Double.POSITIVE_INFINITY) sql.append(" AND minTime <= ").append(Double.toString(bounds[1]));
+		if (sensors != null)
+			sql.append(" AND path IN (SELECT path FROM sensors WHERE sensor IN (").append(sensors.join(", ")).append("))");
+		sql.append(" ORDER BY minTime, path");
+
+		List<File> files = new ArrayList<File>();
+		ResultSet rs = stmt.executeQuery(sql.toString());
+		while (rs.next()) {
+			final double min_time = rs.getDouble(2), max_time = rs.getDouble(3);
+			final BloomFilter bloom = new BloomFilter(rs.getBytes(5), rs.getInt(4));
+			RecordFilter.Summary summary = new RecordFilter.Summary() {
+				public double getMinTime () {
+					return min_time;
+				}
+
+				public double getMaxTime () {
+					return max_time;
+				}
+
+				public boolean mightContainSensor (int serial) {
+					return true;
+				}
+
+				public boolean mightContainIcao24 (int icao24) {
+					return bloom.mightContain(icao24);
+				}
+			};
+			if (filter.mayMatch(summary)) files.add(new File(dir, rs.getString(1)));
+		}
+		rs.close();
+		return files;
+	}
+
+	/**
+	 * Selects the files of a catalog which may contain messages matching a filter
+	 * @param dir directory of the catalog
+	 * @param filter the filter
+	 * @return the files ordered by their first message
+	 * @throws SQLException if there is no catalog or it cannot be read
+	 */
+	public static List<File> select (File dir, RecordFilter filter) throws SQLException {
+		if (!new File(dir, FILENAME).exists())
+			throw new SQLException("No catalog found in "+dir.getPath()+" (see AvroCatalog).");
+
+		AvroCatalog catalog = new AvroCatalog(dir);
+		try {
+			List<File> files = catalog.select(filter);
+			System.err.println("Selected "+files.size()+" files from the catalog.");
+			return files;
+		} finally {
+			catalog.close();
+		}
+	}
+
+	/**
+	 * Prints the number of files, records and the time range of the catalog
+	 */
+	public void printSummary () throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT count(*), sum(records), min(minTime), max(maxTime) FROM files");
+		if (rs.next()) {
+			System.out.println("Catalog of "+dir.getPath()+":");
+			System.out.println("\tFiles: "+rs.getLong(1));
+			System.out.println("\tRecords: "+rs.getLong(2));
+			if (rs.getObject(3) != null) {
+				System.out.println("\tStart: "+new Date((long) (rs.getDouble(3)*1000)));
+				System.out.println("\tEnd: "+new Date((long) (rs.getDouble(4)*1000)));
+			}
+		}
+		rs.close();
+		rs = stmt.executeQuery("SELECT count(DISTINCT sensor) FROM sensors");
+		if (rs.next()) System.out.println("\tSensors: "+rs.getLong(1));
+		rs.close();
+	}
+
+	public void close () throws SQLException {
+		stmt.close();
+		conn.close();
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("j", "threads", true, "number of files read in parallel (default: number of cores)" );
+		opts.addOption("b", "bloom-bits", true, "bits of the icao24 bloom filter per file, multiple of 64 (default: 65536)" );
+		opts.addOption("k", "bloom-hashes", true, "hash functions of the icao24 bloom filter (default: 3)" );
+		opts.addOption("l", "list", false, "list the files matching the filters instead of updating the catalog" );
+		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
+		opts.addOption("s", "start", true, "only files with messages received after this time (unix timestamp)");
+		opts.addOption("e", "end", true, "only files with messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only files with messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only files which may contain messages matching this expression (see README)");
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int bloom_size = 65536, hashes = 3;
+		boolean option_list = false;
+		String filter_icao24 = null;
+		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		File dir = null;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("j")) threads = Integer.parseInt(cmd.getOptionValue("j"));
+				if (cmd.hasOption("b")) bloom_size = Integer.parseInt(cmd.getOptionValue("b"));
+				if (cmd.hasOption("k")) hashes = Integer.parseInt(cmd.getOptionValue("k"));
+				if (cmd.hasOption("l")) option_list = true;
+				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
+				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
+				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (bloom_size < 64 || bloom_size%64 != 0)
+				throw new ParseException("Bloom filter bits must be a positive multiple of 64.");
+			if (hashes < 1)
+				throw new ParseException("At least one hash function is required.");
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get directory
+			if (cmd.getArgList().size() != 1)
+				throw new ParseException("No directory given or invalid arguments.");
+			dir = new File(cmd.getArgList().get(0));
+
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		// check if directory exists
+		try {
+			if (!dir.isDirectory() || !dir.canWrite())
+				throw new FileNotFoundException(dir.getPath()+" is not a writable directory.");
+		} catch (FileNotFoundException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		try {
+			if (option_list) {
+				for (File file : select(dir, filter))
+					System.out.println(file.getPath());
+				return;
+			}
+
+			AvroCatalog catalog = new AvroCatalog(dir);
+			int read = catalog.update(threads, bloom_size, hashes);
+			System.err.println("Added or updated "+read+" files.");
+			catalog.printSummary();
+			catalog.close();
+		} catch (Exception e) {
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package org.opensky.tools;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.commons.cli.*;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Converts OpenSky avro files between the v2 schema ({@link ModeSEncodedMessage})
+ * and the compact v3 schema ({@link CompactMessage}). The input can have
+ * either schema. The order of the messages is kept, i.e., sorted files
+ * stay sorted.
+ */
+public class AvroConvert {
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"AvroConvert [options] input output",
+				"\nConverts OpenSky avro files between the v2 and the compact v3 schema\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("v", "version", true, "schema version of the output file, 2 or 3 (default: 3)" );
+		opts.addOption("z", "deflate", true, "deflate compression level of the output file, 0-9 (default: 0, uncompressed)" );
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		int version = 3, level = 0;
+		RecordFilter filter = null;
+		File avroin = null, avroout = null;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("v")) version = Integer.parseInt(cmd.getOptionValue("v"));
+				if (cmd.hasOption("z")) level = Integer.parseInt(cmd.getOptionValue("z"));
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (version != 2 && version != 3)
+				throw new ParseException("Schema version must be 2 or 3.");
+			if (level < 0 || level > 9)
+				throw new ParseException("Compression level must be between 0 and 9.");
+			try {
+				if (cmd.hasOption("filter")) filter = RecordFilter.parse(cmd.getOptionValue("filter"));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid filter: "+e.getMessage());
+			}
+
+			// get filenames
+			if (cmd.getArgList().size() != 2)
+				throw new ParseException("Input or output file is missing!");
+			avroin = new File(cmd.getArgList().get(0));
+			avroout = new File(cmd.getArgList().get(1));
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		try {
+			// check files
+			if(!avroin.exists() || avroin.isDirectory() || !avroin.canRead())
+				throw new FileNotFoundException("Avro file not found or cannot be read.");
+			if (avroout.exists())
+				throw new IOException("Output file already exists.");
+		} catch (IOException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		DatumWriter<ModeSEncodedMessage> datumWriter;
+		Schema schema;
+		if (version == 3) {
+			datumWriter = new CompactDatumWriter();
+			schema = CompactMessage.SCHEMA;
+		}
+		else {
+			datumWriter = new SpecificDatumWriter<ModeSEncodedMessage>(ModeSEncodedMessage.class);
+			schema = ModeSEncodedMessage.getClassSchema();
+		}
+
+		// some counters for statistics
+		long msgs_cnt = 0, skipped_cnt = 0;
+		long start_time = System.currentTimeMillis();
+		try {
+			OskyReader fileReader = new OskyReader(avroin);
+			fileReader.setFilter(filter);
+
+			DataFileWriter<ModeSEncodedMessage> fileWriter = new DataFileWriter<ModeSEncodedMessage>(datumWriter);
+			if (level > 0) fileWriter.setCodec(CodecFactory.deflateCodec(level));
+			if (fileReader.isSorted()) fileWriter.setMeta(OskyReader.META_SORTED, "timeAtServer");
+			fileWriter.create(schema, avroout);
+
+			ModeSEncodedMessage record = null;
+			while (fileReader.hasNext()) {
+				record = fileReader.next(record);
+				++msgs_cnt;
+				try {
+					fileWriter.append(record);
+				} catch (DataFileWriter.AppendWriteException e) {
+					// e.g., raw message which is not valid hex (cannot be stored as bytes)
+					if (!(e.getCause() instanceof AvroTypeException)) throw e;
+					if (++skipped_cnt <= 10) System.err.println("Skipped message: "+e.getCause().getMessage());
+				}
+			}
+			fileReader.close();
+			fileWriter.close();
+		} catch (IOException e) {
+			// error while trying to read file
+			System.err.println("IO Error: "+e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			// something went wrong
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.err.println("\nStatistics:");
+		System.err.format("\tMessages: %d\n", msgs_cnt);
+		System.err.format("\tSkipped messages: %d\n", skipped_cnt);
+		System.err.format(Locale.ENGLISH, "\tInput size: %.1f MB\n", avroin.length()/1024./1024.);
+		System.err.format(Locale.ENGLISH, "\tOutput size: %.1f MB (v%d, %.1f%%)\n", avroout.length()/1024./1024.,
+				version, 100.*avroout.length()/avroin.length());
+		System.err.format(Locale.ENGLISH, "\tTime: %.1f s\n", (System.currentTimeMillis()-start_time)/1000.);
+	}
+}
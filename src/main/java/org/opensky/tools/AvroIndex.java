@@ -0,0 +1,104 @@
+package org.opensky.tools;
+
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.List;
+
+/**
+ * Creates block indexes (see {@link BlockIndex}) for OpenSky avro files.
+ * The index is written next to each avro file and used by the tools
+ * to skip blocks outside their time or icao24 filters.
+ */
+public class AvroIndex {
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"AvroIndex [options] avro-file [avro-file ...]",
+				"\nCreates block indexes (<avro-file>"+BlockIndex.SUFFIX+") for OpenSky avro files\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("b", "bloom-bits", true, "bits of the icao24 bloom filter per block, multiple of 64 (default: 1024)" );
+		opts.addOption("k", "bloom-hashes", true, "hash functions of the icao24 bloom filter (default: 3)" );
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		int bloom_size = 1024, hashes = 3;
+		List<String> inputs = null;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("b")) bloom_size = Integer.parseInt(cmd.getOptionValue("b"));
+				if (cmd.hasOption("k")) hashes = Integer.parseInt(cmd.getOptionValue("k"));
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (bloom_size < 64 || bloom_size%64 != 0)
+				throw new ParseException("Bloom filter bits must be a positive multiple of 64.");
+			if (hashes < 1)
+				throw new ParseException("At least one hash function is required.");
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get filenames
+			if (cmd.getArgList().size() < 1)
+				throw new ParseException("No avro file given.");
+			inputs = cmd.getArgList();
+
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		// check if files exist
+		try {
+			for (String input : inputs) {
+				File file = new File(input);
+				if(!file.exists() || file.isDirectory() || !file.canRead())
+					throw new FileNotFoundException(input+" not found or cannot be read.");
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		try {
+			for (String input : inputs) {
+				File avro = new File(input);
+				System.err.println("Indexing "+input);
+				BlockIndex index = BlockIndex.build(avro, bloom_size, hashes);
+				index.write(avro);
+
+				long records = 0;
+				for (int i = 0; i<index.size(); ++i) records += index.getCount(i);
+				System.err.println("Indexed "+index.size()+" blocks with "+records+" records ("+
+						BlockIndex.getIndexFile(avro).length()/1024+" kB).");
+			}
+		} catch (Exception e) {
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -4,17 +4,33 @@ import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
 import org.opensky.libadsb.Decoder;
-import org.opensky.libadsb.msgs.ModeSReply;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
 
 /**
  * Prints useful information about OpenSky avro files
@@ -23,7 +39,115 @@ import java.util.HashMap;
  *
  */
 public class AvroInfo {
+	private static final long MIN_SPLIT_SIZE = 1<<24; // 16 MB
+	private static final long SAMPLE_SEGMENT_SIZE = 1<<20; // 1 MB
+
+	/**
+	 * Collects the statistics of all blocks which start within a byte range
+	 * of the file
+	 */
+	private static class Scanner implements Callable<AvroStats> {
+		private final File avro;
+		private final long start, end;
+		private final boolean count, parity, sketch, verbose;
+		private final RecordFilter filter;
+
+		/**
+		 * @param avro the avro file
+		 * @param start first byte of the range
+		 * @param end end of the range (exclusive)
+		 * @param count count message formats
+		 * @param parity ignore messages with bad parity
+		 * @param sketch collect approximate statistics
+		 * @param verbose print every message
+		 * @param filter only messages matching this filter
+		 */
+		public Scanner (File avro, long start, long end, boolean count, boolean parity, boolean sketch, boolean verbose,
+				RecordFilter filter) {
+			this.avro = avro;
+			this.start = start;
+			this.end = end;
+			this.count = count;
+			this.parity = parity;
+			this.sketch = sketch;
+			this.verbose = verbose;
+			this.filter = filter;
+		}
+
+		@Override
+		public AvroStats call() throws Exception {
+			// only deserialize the fields used by the statistics
+			Set<String> fields = new HashSet<String>(Arrays.asList(AvroStats.FIELDS));
+			if (sketch) fields.addAll(Arrays.asList(AvroSketch.FIELDS));
+			fields.addAll(filter.getFields());
+			DatumReader<ModeSEncodedMessage> datumReader = new ProjectionDatumReader(fields);
+			DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
+			AvroStats stats = new AvroStats(count, parity, sketch);
+			try {
+				ModeSEncodedMessage record = new ModeSEncodedMessage();
+
+				// go to first block in range
+				fileReader.sync(start);
+				while (fileReader.hasNext() && !fileReader.pastSync(end)) {
+					// get next record from file
+					record = fileReader.next(record);
+					if (!filter.matches(record)) continue;
+
+					if (verbose)
+						System.out.println(Decoder.genericDecoder(record.getRawMessage().toString()).toString());
+
+					stats.add(record);
+				}
+			} finally {
+				fileReader.close();
+			}
+			return stats;
+		}
+	}
 	
+	/**
+	 * Collects the statistics of the blocks at the beginning or the end of
+	 * the file. The range is doubled until it contains at least one block.
+	 * @param avro the avro file
+	 * @param first true for the first blocks, false for the last blocks
+	 * @return statistics of the blocks
+	 */
+	private static AvroStats scanFileEnd (File avro, boolean first) throws Exception {
+		AvroStats stats;
+		long start = 0, end = avro.length();
+		for (long range = SAMPLE_SEGMENT_SIZE; ; range *= 2) {
+			if (first) end = Math.min(avro.length(), range);
+			else start = Math.max(0, avro.length()-range);
+
+			stats = new Scanner(avro, start, end, false, false, false, false, RecordFilter.ALL).call();
+			if (stats.getCount() > 0 || end-start >= avro.length()) return stats;
+		}
+	}
+
+	/**
+	 * Extrapolates a count from randomly sampled segments of the file
+	 * @param samples counts in the sampled segments
+	 * @param segments total number of segments
+	 * @return estimated total count with 95% confidence interval
+	 */
+	private static String estimate (long[] samples, long segments) {
+		int n = samples.length;
+		if (n == 0) return "unknown";
+
+		double mean = 0;
+		for (long y : samples) mean += y;
+		mean /= n;
+		if (n < 2) return String.format(Locale.ENGLISH, "%d", Math.round(mean*segments));
+
+		double variance = 0; // sample variance
+		for (long y : samples) variance += (y-mean)*(y-mean);
+		variance /= n-1;
+
+		// standard error of the total with finite population correction
+		double error = segments*Math.sqrt((1-(double) n/segments)*variance/n);
+		return String.format(Locale.ENGLISH, "%d +/- %d", Math.round(mean*segments), Math.round(1.96*error));
+	}
+
 	/**
 	 * Prints help for command line options
 	 * @param opts command line options
@@ -45,6 +169,12 @@ public class AvroInfo {
 		opts.addOption("c", "count", false, "count message formats" );
 		opts.addOption("p", "parity", false, "ignore messages with bad parity" );
 		opts.addOption("v", "verbose", false, "print every message" );
+		opts.addOption("k", "sketch", false, "print approximate statistics about aircraft and signal quality" );
+		opts.addOption("m", "merge-sketch", true, "merge sketch file into the statistics (implies -k, can be repeated)" );
+		opts.addOption("w", "save-sketch", true, "write sketch to this file for merging it later (implies -k)" );
+		opts.addOption("sample", true, "only read a random fraction (0-1) of the blocks and extrapolate the counts" );
+		opts.addOption("j", "threads", true, "number of threads (default: number of cores)" );
+		opts.addOption("filter", true, "only count messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
 		
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -52,6 +182,12 @@ public class AvroInfo {
 		File avro = null;
 		String file = null;
 		boolean option_count = false, option_parity = false, verbose = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean option_sketch = false;
+		String[] merge_sketches = null;
+		String save_sketch = null;
+		Double sample = null;
+		RecordFilter filter = RecordFilter.ALL;
 		try {
 			cmd = parser.parse(opts, args);
 			
@@ -64,6 +200,26 @@ public class AvroInfo {
 			if (cmd.hasOption("c")) option_count = true;
 			if (cmd.hasOption("p")) option_parity = true;
 			if (cmd.hasOption("v")) verbose = true;
+			if (cmd.hasOption("k")) option_sketch = true;
+			if (cmd.hasOption("m")) {
+				merge_sketches = cmd.getOptionValues("m");
+				option_sketch = true;
+			}
+			if (cmd.hasOption("w")) {
+				save_sketch = cmd.getOptionValue("w");
+				option_sketch = true;
+			}
+			try {
+				if (cmd.hasOption("j")) threads = Integer.parseInt(cmd.getOptionValue("j"));
+				if (cmd.hasOption("sample")) sample = Double.parseDouble(cmd.getOptionValue("sample"));
+				if (cmd.hasOption("filter")) filter = RecordFilter.parse(cmd.getOptionValue("filter"));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (threads < 1)
+				throw new ParseException("Number of threads must be positive.");
+			if (sample != null && (sample <= 0 || sample > 1))
+				throw new ParseException("Sample fraction must be in (0,1].");
 			
 			// get filename
 			if (cmd.getArgList().size() != 1)
@@ -101,7 +257,7 @@ public class AvroInfo {
 			System.exit(1);
 		}
 		
-		DatumReader<ModeSEncodedMessage> datumReader = new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
+		DatumReader<ModeSEncodedMessage> datumReader = new ProjectionDatumReader();
 		long msgCount = 0;
 		try {
 			DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
@@ -115,64 +271,139 @@ public class AvroInfo {
 			for (Field field : schema.getFields())
 				System.out.println("\t\t"+field);
 			
-			System.out.print("Counting entries: ");
-			ModeSEncodedMessage record = new ModeSEncodedMessage();
-			double min_time = Double.MAX_VALUE, max_time = Double.MIN_VALUE;
-			
-			HashMap<Integer, Long> sensors = new HashMap<Integer, Long>();
-			int serial; Long serial_cnt;
-			long[] adsb_cnt = new long[32];
-			long[] modes_cnt = new long[32];
-			ModeSReply msg;
-			while (fileReader.hasNext()) {
-				// get next record from file
-				record = fileReader.next(record);
-				
-				//System.out.println(record.toString());
-				
-				if (option_parity || option_count) {
-					try {
-						msg = new ModeSReply(record.getRawMessage().toString());
-						if (option_parity && !msg.checkParity()) continue;
-						modes_cnt[msg.getDownlinkFormat()]++;
-						if (msg.getDownlinkFormat() == 17 || msg.getDownlinkFormat() == 18) {
-							adsb_cnt[Short.parseShort(record.getRawMessage().toString().substring(8, 10), 16)>>3]++;
-						}
-					} catch (Exception e) {
-						System.out.println("Caught exception: "+e.getMessage());
+			fileReader.close();
+
+			// split file into block ranges which are processed in parallel
+			List<long[]> ranges = new ArrayList<long[]>();
+			long segments = 0;
+			if (sample != null) {
+				// random segments, every block belongs to the segment its sync marker is in
+				segments = Math.max(1, (avro.length()+SAMPLE_SEGMENT_SIZE-1)/SAMPLE_SEGMENT_SIZE);
+				Random random = new Random();
+				for (long i = 0; i<segments; ++i)
+					if (random.nextDouble() < sample)
+						ranges.add(new long[] {avro.length()*i/segments, avro.length()*(i+1)/segments});
+			}
+			else {
+				int parts = 1;
+				if (!verbose)
+					parts = (int) Math.max(1, Math.min(threads*4, avro.length()/MIN_SPLIT_SIZE));
+				for (int i = 0; i<parts; ++i)
+					ranges.add(new long[] {avro.length()*i/parts, avro.length()*(i+1)/parts});
+			}
+
+			System.out.print(sample != null ? "Sampling entries: " : "Counting entries: ");
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())));
+			CompletionService<AvroStats> results = new ExecutorCompletionService<AvroStats>(pool);
+			for (long[] range : ranges)
+				results.submit(new Scanner(avro, range[0], range[1],
+						option_count, option_parity, option_sketch, verbose, filter));
+
+			// merge partial results as they complete, parts (and their sketches) are dropped
+			// afterwards. Only the counts of sampled segments are kept for extrapolation.
+			AvroStats stats = new AvroStats(option_count, option_parity, option_sketch);
+			int n = sample != null ? ranges.size() : 0;
+			long[] sample_cnt = new long[n];
+			IntLongMap[] sample_sensors = new IntLongMap[n];
+			long[][] sample_modes = new long[n][], sample_adsb = new long[n][];
+			try {
+				for (int i = 0; i<ranges.size(); ++i) {
+					AvroStats part = results.take().get();
+					stats.merge(part);
+					if (sample != null) {
+						sample_cnt[i] = part.getCount();
+						sample_sensors[i] = part.getSensors();
+						sample_modes[i] = part.getDownlinkFormatCounts();
+						sample_adsb[i] = part.getTypeCodeCounts();
 					}
 				}
-				
-				if (verbose)
-					System.out.println(Decoder.genericDecoder(record.getRawMessage().toString()).toString());
-				
-				msgCount++;
-				
-				if (record.getTimeAtServer() < min_time)
-					min_time = record.getTimeAtServer();
-				if (record.getTimeAtServer() > max_time)
-					max_time = record.getTimeAtServer();
-				
-				serial = record.getSensorSerialNumber();
-				serial_cnt = sensors.get(serial);
-				sensors.put(serial, serial_cnt != null ? serial_cnt+1 : 0L);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+				throw e;
+			} finally {
+				pool.shutdownNow();
 			}
+			msgCount = stats.getCount();
 			System.out.println(msgCount);
+			double min_time = stats.getMinTime(), max_time = stats.getMaxTime();
+
+			if (sample != null) {
+				System.out.println("Sampled "+ranges.size()+" of "+segments+" segments (fraction "+sample+")");
+
+				System.out.println("Estimated entries (95% confidence): "+estimate(sample_cnt, segments));
+
+				// time range from first and last blocks
+				min_time = Math.min(min_time, scanFileEnd(avro, true).getMinTime());
+				max_time = Math.max(max_time, scanFileEnd(avro, false).getMaxTime());
+			}
+
 			System.out.println("Earliest entry: "+new Date((long)(min_time*1000)).toString());
 			System.out.println("Latest entry: "+new Date((long)(max_time*1000)).toString());
 			
-			System.out.println("Sensor statistics:");
-			for (int key : sensors.keySet())
-				System.out.println("\t"+key+": "+sensors.get(key));
-			fileReader.close();
-			
-			System.out.println("Counts per Mode S downlink format:");
-			for (int i = 0; i<modes_cnt.length; i++)
-				if (modes_cnt[i]>0) System.out.println("    Format "+i+": "+modes_cnt[i]);
+			System.out.println(sample != null ? "Sensor statistics (estimated):" : "Sensor statistics:");
+			IntLongMap sensors = stats.getSensors();
+			long[] y = new long[n];
+			for (int i = 0; i<sensors.size(); ++i) {
+				if (sample != null) {
+					for (int j = 0; j<y.length; ++j) y[j] = sample_sensors[j].get(sensors.getKey(i));
+					if (y.length > 0) System.out.println("\t"+sensors.getKey(i)+": "+estimate(y, segments));
+				}
+				else System.out.println("\t"+sensors.getKey(i)+": "+sensors.getValue(i));
+			}
 
-			System.out.println("Counts per ADS-B format type code:");
-			for (int i = 0; i<adsb_cnt.length; i++)
-				if (adsb_cnt[i]>0) System.out.println("    Code "+i+": "+adsb_cnt[i]);
+			if (option_parity)
+				System.out.println("Messages with bad parity: "+stats.getNumberOfBadParity());
+			if (stats.getNumberOfBadFormat() > 0)
+				System.out.println("Messages with bad format: "+stats.getNumberOfBadFormat());
+
+			long[] modes_cnt = stats.getDownlinkFormatCounts();
+			System.out.println(sample != null ? "Counts per Mode S downlink format (estimated):" : "Counts per Mode S downlink format:");
+			for (int i = 0; i<modes_cnt.length; i++) {
+				if (modes_cnt[i] == 0) continue;
+				if (sample != null) {
+					for (int j = 0; j<y.length; ++j) y[j] = sample_modes[j][i];
+					System.out.println("    Format "+i+": "+estimate(y, segments));
+				}
+				else System.out.println("    Format "+i+": "+modes_cnt[i]);
+			}
+
+			long[] adsb_cnt = stats.getTypeCodeCounts();
+			System.out.println(sample != null ? "Counts per ADS-B format type code (estimated):" : "Counts per ADS-B format type code:");
+			for (int i = 0; i<adsb_cnt.length; i++) {
+				if (adsb_cnt[i] == 0) continue;
+				if (sample != null) {
+					for (int j = 0; j<y.length; ++j) y[j] = sample_adsb[j][i];
+					System.out.println("    Code "+i+": "+estimate(y, segments));
+				}
+				else System.out.println("    Code "+i+": "+adsb_cnt[i]);
+			}
+
+			if (option_sketch) {
+				AvroSketch sketch = stats.getSketch();
+				if (merge_sketches != null) {
+					for (String path : merge_sketches) {
+						DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+						try {
+							sketch.mergeFrom(in);
+						} finally {
+							in.close();
+						}
+						System.out.println("Merged sketch "+path);
+					}
+				}
+
+				sketch.print(System.out);
+
+				if (save_sketch != null) {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(save_sketch)));
+					try {
+						sketch.write(out);
+					} finally {
+						out.close();
+					}
+					System.out.println("Sketch written to "+save_sketch);
+				}
+			}
 			
 		} catch (IOException e) {
 			// error while trying to read file
@@ -0,0 +1,396 @@
+package org.opensky.tools;
+
+import org.apache.commons.cli.*;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Aggregates OpenSky avro files to message counts per time bucket and
+ * sensor (rollup) and stores them in an SQLite DB
+ *
+ * For each bucket and sensor, the DB contains the number of messages, the
+ * sum of RSSIPacket and the number of messages per downlink format and
+ * ADS-B type code. Further avro files or rollup DBs with the same bucket
+ * size can be added to an existing rollup DB at any time.
+ */
+public class AvroRollup {
+	private static final int MAX_SLOTS = 1<<16; // (bucket, sensor) pairs held in memory
+
+	// fields of ModeSEncodedMessage used by the rollup
+	public static final String[] FIELDS = {"timeAtServer", "rawMessage", "sensorSerialNumber", "RSSIPacket"};
+
+	Connection conn = null;
+	Statement stmt = null;
+	private final long bucket_size; // in seconds
+
+	// in-memory rollup, open addressing on (bucket, sensor)
+	private long[] buckets;
+	private int[] sensors;
+	private int[] table; // index+1 into the columns, 0 means empty slot
+	private int size;
+	private long[] messages;
+	private double[] rssi_sum;
+	private long[] rssi_cnt;
+	private long[] formats; // 32 downlink formats per slot
+	private long[] codes; // 32 type codes per slot
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"AvroRollup [options] rollup-db avro-file [avro-file ...]",
+				"\nAggregates OpenSky avro files to message counts per time bucket and sensor\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	/**
+	 * Opens a rollup DB and creates the schema if the DB is new
+	 * @param path path of the SQLite DB
+	 * @param bucket_size size of the time buckets in seconds
+	 */
+	public AvroRollup (String path, long bucket_size) {
+		this.bucket_size = bucket_size;
+		try {
+			Class.forName("org.sqlite.JDBC");
+			conn = DriverManager.getConnection("jdbc:sqlite:"+path);
+			conn.setAutoCommit(false);
+			stmt = conn.createStatement();
+
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS meta (key TEXT PRIMARY KEY, value TEXT)");
+			ResultSet rs = stmt.executeQuery("SELECT value FROM meta WHERE key='bucket_size'");
+			if (rs.next()) {
+				long existing = Long.parseLong(rs.getString(1));
+				rs.close();
+				if (existing != bucket_size)
+					throw new SQLException("DB has bucket size "+existing+" s but "+bucket_size+" s were requested.");
+			}
+			else {
+				rs.close();
+				createSchema();
+			}
+
+			createTemporaryTables();
+			conn.commit();
+		} catch (Exception e) {
+			System.err.println("Could not open database: " + e.getMessage() );
+			System.exit(1);
+		}
+
+		buckets = new long[MAX_SLOTS];
+		sensors = new int[MAX_SLOTS];
+		table = new int[MAX_SLOTS*2];
+		messages = new long[MAX_SLOTS];
+		rssi_sum = new double[MAX_SLOTS];
+		rssi_cnt = new long[MAX_SLOTS];
+		formats = new long[MAX_SLOTS*32];
+		codes = new long[MAX_SLOTS*32];
+		size = 0;
+	}
+
+	private void createSchema () throws SQLException {
+		stmt.executeUpdate(String.format(Locale.ENGLISH,
+				"INSERT INTO meta VALUES ('bucket_size', '%d')", bucket_size));
+
+		String sql = "CREATE TABLE rollup\n"+
+				"(bucket INT NOT NULL, -- start of the time bucket (unix timestamp)\n"+
+				" sensor INT NOT NULL, -- sensor serial number\n"+
+				" messages INT NOT NULL, -- number of messages\n"+
+				" rssiSum REAL NOT NULL, -- sum of RSSIPacket\n"+
+				" rssiCount INT NOT NULL, -- number of messages with RSSIPacket\n"+
+				" PRIMARY KEY(bucket, sensor)\n"+
+				") WITHOUT ROWID";
+		stmt.executeUpdate(sql);
+
+		sql = "CREATE TABLE formats\n"+
+				"(bucket INT NOT NULL, -- start of the time bucket (unix timestamp)\n"+
+				" sensor INT NOT NULL, -- sensor serial number\n"+
+				" format INT NOT NULL, -- Mode S downlink format\n"+
+				" messages INT NOT NULL, -- number of messages\n"+
+				" PRIMARY KEY(bucket, sensor, format)\n"+
+				") WITHOUT ROWID";
+		stmt.executeUpdate(sql);
+
+		sql = "CREATE TABLE type_codes\n"+
+				"(bucket INT NOT NULL, -- start of the time bucket (unix timestamp)\n"+
+				" sensor INT NOT NULL, -- sensor serial number\n"+
+				" code INT NOT NULL, -- ADS-B format type code\n"+
+				" messages INT NOT NULL, -- number of messages\n"+
+				" PRIMARY KEY(bucket, sensor, code)\n"+
+				") WITHOUT ROWID";
+		stmt.executeUpdate(sql);
+	}
+
+	/**
+	 * New rows are collected in temporary tables and then added to the
+	 * counts of existing rows.
+	 */
+	private void createTemporaryTables () throws SQLException {
+		stmt.executeUpdate("CREATE TEMP TABLE rollup_new AS SELECT * FROM rollup WHERE 0");
+		stmt.executeUpdate("CREATE TEMP TABLE formats_new AS SELECT * FROM formats WHERE 0");
+		stmt.executeUpdate("CREATE TEMP TABLE type_codes_new AS SELECT * FROM type_codes WHERE 0");
+	}
+
+	private static int hash (long bucket, int sensor) {
+		long h = HyperLogLog.hash(bucket*31+sensor);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Adds a message to the rollup
+	 * @param record the message
+	 */
+	public void add (ModeSEncodedMessage record) throws SQLException {
+		long bucket = (long) Math.floor(record.getTimeAtServer()/bucket_size)*bucket_size;
+		int sensor = record.getSensorSerialNumber();
+
+		// find slot
+		int mask = table.length-1;
+		int i = hash(bucket, sensor) & mask;
+		int slot = -1;
+		for (; table[i] != 0; i = (i+1) & mask) {
+			int s = table[i]-1;
+			if (buckets[s] == bucket && sensors[s] == sensor) {
+				slot = s;
+				break;
+			}
+		}
+		if (slot < 0) {
+			if (size == MAX_SLOTS) {
+				flush();
+				add(record);
+				return;
+			}
+			slot = size++;
+			buckets[slot] = bucket;
+			sensors[slot] = sensor;
+			table[i] = slot+1;
+		}
+
+		messages[slot]++;
+		if (record.getRSSIPacket() != null) {
+			rssi_sum[slot] += record.getRSSIPacket();
+			rssi_cnt[slot]++;
+		}
+
+		int first = AvroStats.hexByte(record.getRawMessage(), 0);
+		if (first >= 0) {
+			int df = first>>>3;
+			formats[slot*32+df]++;
+			if (df == 17 || df == 18) {
+				int me = AvroStats.hexByte(record.getRawMessage(), 8);
+				if (me >= 0) codes[slot*32+(me>>>3)]++;
+			}
+		}
+	}
+
+	/**
+	 * Adds the in-memory rollup to the DB and clears it
+	 */
+	public void flush () throws SQLException {
+		StringBuilder rollup = new StringBuilder(), format = new StringBuilder(), code = new StringBuilder();
+		for (int s = 0; s<size; ++s) {
+			append(rollup, "rollup_new", String.format(Locale.ENGLISH, "(%d, %d, %d, %s, %d)",
+					buckets[s], sensors[s], messages[s], Double.toString(rssi_sum[s]), rssi_cnt[s]));
+			for (int i = 0; i<32; ++i) {
+				if (formats[s*32+i] > 0)
+					append(format, "formats_new", String.format(Locale.ENGLISH, "(%d, %d, %d, %d)",
+							buckets[s], sensors[s], i, formats[s*32+i]));
+				if (codes[s*32+i] > 0)
+					append(code, "type_codes_new", String.format(Locale.ENGLISH, "(%d, %d, %d, %d)",
+							buckets[s], sensors[s], i, codes[s*32+i]));
+			}
+		}
+		if (rollup.length() > 0) stmt.executeUpdate(rollup.toString());
+		if (format.length() > 0) stmt.executeUpdate(format.toString());
+		if (code.length() > 0) stmt.executeUpdate(code.toString());
+		mergeNewRows();
+
+		// clear
+		size = 0;
+		Arrays.fill(table, 0);
+		Arrays.fill(messages, 0);
+		Arrays.fill(rssi_sum, 0);
+		Arrays.fill(rssi_cnt, 0);
+		Arrays.fill(formats, 0);
+		Arrays.fill(codes, 0);
+	}
+
+	/**
+	 * Appends a row to a multi-row INSERT and executes it if it is large enough
+	 */
+	private void append (StringBuilder sql, String table, String row) throws SQLException {
+		if (sql.length() == 0) sql.append("INSERT INTO temp.").append(table).append(" VALUES ");
+		else sql.append(", ");
+		sql.append(row);
+
+		if (sql.length() > 1<<16) {
+			stmt.executeUpdate(sql.toString());
+			sql.setLength(0);
+		}
+	}
+
+	/**
+	 * Adds the rows of the temporary tables to the rollup tables
+	 */
+	private void mergeNewRows () throws SQLException {
+		stmt.executeUpdate("INSERT OR REPLACE INTO rollup\n"+
+				"SELECT n.bucket, n.sensor, n.messages+coalesce(r.messages, 0),\n"+
+				" n.rssiSum+coalesce(r.rssiSum, 0), n.rssiCount+coalesce(r.rssiCount, 0)\n"+
+				"FROM temp.rollup_new n LEFT JOIN rollup r ON r.bucket=n.bucket AND r.sensor=n.sensor");
+		stmt.executeUpdate("INSERT OR REPLACE INTO formats\n"+
+				"SELECT n.bucket, n.sensor, n.format, n.messages+coalesce(r.messages, 0)\n"+
+				"FROM temp.formats_new n LEFT JOIN formats r\n"+
+				" ON r.bucket=n.bucket AND r.sensor=n.sensor AND r.format=n.format");
+		stmt.executeUpdate("INSERT OR REPLACE INTO type_codes\n"+
+				"SELECT n.bucket, n.sensor, n.code, n.messages+coalesce(r.messages, 0)\n"+
+				"FROM temp.type_codes_new n LEFT JOIN type_codes r\n"+
+				" ON r.bucket=n.bucket AND r.sensor=n.sensor AND r.code=n.code");
+		stmt.executeUpdate("DELETE FROM temp.rollup_new");
+		stmt.executeUpdate("DELETE FROM temp.formats_new");
+		stmt.executeUpdate("DELETE FROM temp.type_codes_new");
+		conn.commit();
+	}
+
+	/**
+	 * Adds the rows of another rollup DB with the same bucket size
+	 * @param path path of the other rollup DB
+	 */
+	public void merge (String path) throws SQLException {
+		flush();
+
+		// ATTACH is not possible within a transaction
+		conn.setAutoCommit(true);
+		stmt.executeUpdate("ATTACH DATABASE '"+path.replace("'", "''")+"' AS src");
+		conn.setAutoCommit(false);
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT value FROM src.meta WHERE key='bucket_size'");
+			long other = rs.next() ? Long.parseLong(rs.getString(1)) : -1;
+			rs.close();
+			if (other != bucket_size)
+				throw new SQLException(path+" has a different bucket size or is not a rollup DB.");
+
+			stmt.executeUpdate("INSERT INTO temp.rollup_new SELECT * FROM src.rollup");
+			stmt.executeUpdate("INSERT INTO temp.formats_new SELECT * FROM src.formats");
+			stmt.executeUpdate("INSERT INTO temp.type_codes_new SELECT * FROM src.type_codes");
+			mergeNewRows();
+		} finally {
+			conn.rollback();
+			conn.setAutoCommit(true);
+			stmt.executeUpdate("DETACH DATABASE src");
+			conn.setAutoCommit(false);
+		}
+	}
+
+	public void close () throws SQLException {
+		flush();
+		stmt.close();
+		conn.close();
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("b", "bucket", true, "size of time buckets in seconds (default: 60)" );
+		opts.addOption("m", "merge", false, "inputs are rollup DBs which are merged into the rollup DB" );
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		long bucket_size = 60;
+		boolean option_merge = false;
+		RecordFilter filter = null;
+		String db = null;
+		List<String> inputs = null;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("b")) bucket_size = Long.parseLong(cmd.getOptionValue("b"));
+				if (cmd.hasOption("filter")) filter = RecordFilter.parse(cmd.getOptionValue("filter"));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (bucket_size < 1)
+				throw new ParseException("Bucket size must be at least one second.");
+			if (cmd.hasOption("m")) option_merge = true;
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get filenames
+			if (cmd.getArgList().size() < 2)
+				throw new ParseException("No rollup DB or input files given.");
+			db = cmd.getArgList().get(0);
+			inputs = cmd.getArgList().subList(1, cmd.getArgList().size());
+
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		// check if files exist
+		try {
+			for (String input : inputs) {
+				File file = new File(input);
+				if(!file.exists() || file.isDirectory() || !file.canRead())
+					throw new FileNotFoundException(input+" not found or cannot be read.");
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		AvroRollup rollup = new AvroRollup(db, bucket_size);
+		long msgCount = 0;
+		try {
+			for (String input : inputs) {
+				if (option_merge) {
+					System.err.println("Merging "+input);
+					rollup.merge(input);
+					continue;
+				}
+
+				System.err.println("Reading "+input);
+				OskyReader fileReader = new OskyReader(new File(input));
+				fileReader.setFilter(filter);
+				fileReader.setProjection(FIELDS);
+				ModeSEncodedMessage record = new ModeSEncodedMessage();
+				while (fileReader.hasNext()) {
+					record = fileReader.next(record);
+					rollup.add(record);
+					++msgCount;
+				}
+				fileReader.close();
+			}
+			rollup.close();
+		} catch (Exception e) {
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.err.println("Read "+msgCount+" messages.");
+	}
+}
@@ -0,0 +1,187 @@
+package org.opensky.tools;
+
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Approximate statistics about OpenSky avro files with (almost) fixed
+ * memory: distinct aircraft overall and per sensor (HyperLogLog), the
+ * busiest aircraft and sensors (count-min) and quantiles of the signal
+ * quality (t-digest). Sketches of different parts or files can be merged
+ * and stored with {@link #write}.
+ *
+ * Aircraft are identified by the address of DF 11/17/18 messages since
+ * other formats only contain the address XORed with the parity.
+ */
+public class AvroSketch {
+	private static final int MAGIC = 0x4f534b59; // "OSKY"
+	private static final int VERSION = 1;
+	private static final double[] QUANTILES = {0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99};
+
+	// fields of ModeSEncodedMessage used by the sketch
+	public static final String[] FIELDS = {"rawMessage", "sensorSerialNumber", "RSSIPacket", "SNR", "confidence"};
+
+	private final HyperLogLog aircraft;
+	private final Map<Integer, HyperLogLog> aircraft_per_sensor;
+	private final CountMinTopK top_aircraft;
+	private final CountMinTopK top_sensors;
+	private final TDigest rssi, snr, confidence;
+
+	public AvroSketch () {
+		aircraft = new HyperLogLog(14);
+		aircraft_per_sensor = new HashMap<Integer, HyperLogLog>();
+		top_aircraft = new CountMinTopK(1<<14, 4, 20);
+		top_sensors = new CountMinTopK(1<<12, 4, 20);
+		rssi = new TDigest(100);
+		snr = new TDigest(100);
+		confidence = new TDigest(100);
+	}
+
+	/**
+	 * Adds a message to the sketches
+	 * @param record the message
+	 */
+	public void add (ModeSEncodedMessage record) {
+		int serial = record.getSensorSerialNumber();
+		top_sensors.add(serial, 1);
+
+		CharSequence raw = record.getRawMessage();
+		int first = AvroStats.hexByte(raw, 0);
+		int df = first>>>3;
+		if (first >= 0 && (df == 11 || df == 17 || df == 18)) {
+			int b1 = AvroStats.hexByte(raw, 2), b2 = AvroStats.hexByte(raw, 4), b3 = AvroStats.hexByte(raw, 6);
+			if (b1 >= 0 && b2 >= 0 && b3 >= 0) {
+				int icao24 = b1<<16 | b2<<8 | b3;
+				aircraft.add(icao24);
+				top_aircraft.add(icao24, 1);
+
+				HyperLogLog per_sensor = aircraft_per_sensor.get(serial);
+				if (per_sensor == null) {
+					per_sensor = new HyperLogLog(10);
+					aircraft_per_sensor.put(serial, per_sensor);
+				}
+				per_sensor.add(icao24);
+			}
+		}
+
+		if (record.getRSSIPacket() != null) rssi.add(record.getRSSIPacket());
+		if (record.getSNR() != null) snr.add(record.getSNR());
+		if (record.getConfidence() != null) confidence.add(record.getConfidence());
+	}
+
+	/**
+	 * Adds all messages of another sketch to this sketch
+	 * @param other the other sketch
+	 */
+	public void merge (AvroSketch other) {
+		aircraft.merge(other.aircraft);
+		for (Map.Entry<Integer, HyperLogLog> entry : other.aircraft_per_sensor.entrySet()) {
+			HyperLogLog per_sensor = aircraft_per_sensor.get(entry.getKey());
+			if (per_sensor == null) {
+				per_sensor = new HyperLogLog(10);
+				aircraft_per_sensor.put(entry.getKey(), per_sensor);
+			}
+			per_sensor.merge(entry.getValue());
+		}
+		top_aircraft.merge(other.top_aircraft);
+		top_sensors.merge(other.top_sensors);
+		rssi.merge(other.rssi);
+		snr.merge(other.snr);
+		confidence.merge(other.confidence);
+	}
+
+	/**
+	 * @return approximate memory used by the sketches in bytes
+	 */
+	public long getSize () {
+		long size = aircraft.getSize() + top_aircraft.getSize() + top_sensors.getSize();
+		for (HyperLogLog per_sensor : aircraft_per_sensor.values())
+			size += per_sensor.getSize();
+		return size;
+	}
+
+	/**
+	 * Prints the summary
+	 * @param out target stream
+	 */
+	public void print (PrintStream out) {
+		out.println("Sketch summary (approximate):");
+		out.println("\tDistinct aircraft: "+aircraft.estimate());
+
+		out.println("\tDistinct aircraft per sensor:");
+		Integer[] serials = aircraft_per_sensor.keySet().toArray(new Integer[0]);
+		Arrays.sort(serials);
+		for (int serial : serials)
+			out.println("\t\t"+serial+": "+aircraft_per_sensor.get(serial).estimate());
+
+		out.println("\tBusiest aircraft (messages):");
+		for (int key : top_aircraft.getTopKeys())
+			out.println(String.format(Locale.ENGLISH, "\t\t%06x: %d", key, top_aircraft.estimate(key)));
+
+		out.println("\tBusiest sensors (messages):");
+		for (int key : top_sensors.getTopKeys())
+			out.println("\t\t"+key+": "+top_sensors.estimate(key));
+
+		printQuantiles(out, "RSSIPacket", rssi);
+		printQuantiles(out, "SNR", snr);
+		printQuantiles(out, "confidence", confidence);
+		out.println("\tSketch memory: "+getSize()/1024+" kBytes");
+	}
+
+	private static void printQuantiles (PrintStream out, String name, TDigest digest) {
+		if (digest.count() == 0) {
+			out.println("\t"+name+": no values");
+			return;
+		}
+		StringBuilder str = new StringBuilder("\t"+name+" quantiles ("+digest.count()+" values):");
+		for (double q : QUANTILES)
+			str.append(String.format(Locale.ENGLISH, " p%d=%.2f", Math.round(q*100), digest.quantile(q)));
+		out.println(str.toString());
+	}
+
+	public void write (DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		aircraft.write(out);
+		out.writeInt(aircraft_per_sensor.size());
+		for (Map.Entry<Integer, HyperLogLog> entry : aircraft_per_sensor.entrySet()) {
+			out.writeInt(entry.getKey());
+			entry.getValue().write(out);
+		}
+		top_aircraft.write(out);
+		top_sensors.write(out);
+		rssi.write(out);
+		snr.write(out);
+		confidence.write(out);
+	}
+
+	/**
+	 * Reads a sketch written by {@link #write} and merges it into this sketch
+	 * @param in source of the sketch
+	 * @throws IOException if reading fails or the data is not a sketch
+	 */
+	public void mergeFrom (DataInput in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			throw new IOException("Not a sketch file or unsupported version.");
+
+		AvroSketch other = new AvroSketch();
+		other.aircraft.merge(HyperLogLog.read(in));
+		int sensors = in.readInt();
+		for (int i = 0; i<sensors; ++i)
+			other.aircraft_per_sensor.put(in.readInt(), HyperLogLog.read(in));
+		other.top_aircraft.merge(CountMinTopK.read(in));
+		other.top_sensors.merge(CountMinTopK.read(in));
+		other.rssi.merge(TDigest.read(in));
+		other.snr.merge(TDigest.read(in));
+		other.confidence.merge(TDigest.read(in));
+		merge(other);
+	}
+}
@@ -1,10 +1,7 @@
 package org.opensky.tools;
 
-import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
@@ -35,7 +32,7 @@ public class AvroSort {
 	private static void printHelp(Options opts) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(
-				"AvroSort [options/filters] input output",
+				"AvroSort [options/filters] (input | -catalog dir) output",
 				"\nSort OpenSky AVROs\nhttp://www.opensky-network.org\n\n",
 				opts, "");
 	}
@@ -47,11 +44,17 @@ public class AvroSort {
 		opts.addOption("h", "help", false, "print this message" );
 		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
 		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
 		CommandLine cmd;
 		Double filter_start = null, filter_end = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
 		String inpath = null, outpath = null;
 		try {
 			cmd = parser.parse(opts, args);
@@ -60,7 +63,11 @@ public class AvroSort {
 			try {
 				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
 				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
-			} catch (NumberFormatException e) {
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.sensor(filter_sensor),
+						cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
 				throw new ParseException("Invalid arguments: "+e.getMessage());
 			}
 
@@ -71,10 +78,10 @@ public class AvroSort {
 			}
 
 			// get filename
-			if (cmd.getArgList().size() != 2)
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
 				throw new ParseException("Output avro file is missing!");
-			inpath = cmd.getArgList().get(0);
-			outpath = cmd.getArgList().get(1);
+			if (catalog == null) inpath = cmd.getArgList().get(0);
+			outpath = cmd.getArgList().get(cmd.getArgList().size()-1);
 
 		} catch (ParseException e) {
 			// parsing failed
@@ -92,32 +99,33 @@ public class AvroSort {
 				throw new IOException("Output database already exists.");
 
 			// check input file
-			avroin = new File(inpath);
-			if(!avroin.exists() || avroin.isDirectory() || !avroin.canRead())
-				throw new FileNotFoundException("Avro file not found or cannot be read.");
+			if (catalog == null) {
+				avroin = new File(inpath);
+				if(!avroin.exists() || avroin.isDirectory() || !avroin.canRead())
+					throw new FileNotFoundException("Avro file not found or cannot be read.");
+			}
 		} catch (IOException e) {
 			System.err.println("Error: "+e.getMessage()+"\n");
 			System.exit(1);
 		}
 
-		// AVRO file reader
-		DatumReader<ModeSEncodedMessage> datumReader =
-				new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 		// AVRO file writer
 		DatumWriter<ModeSEncodedMessage> datumWriter =
 				new SpecificDatumWriter<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 
 		// some counters for statistics
-		long msgs_cnt=0, filtered_cnt=0, last_msgs_cnt=0, last_time=0;
+		long msgs_cnt=0, last_msgs_cnt=0, last_time=0;
 
 		try {
 			// open input file
-			DataFileReader<ModeSEncodedMessage> fileReader =
-					new DataFileReader<ModeSEncodedMessage>(avroin, datumReader);
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(avroin) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
 			
 			// open output file
 			DataFileWriter<ModeSEncodedMessage> fileWriter =
 					new DataFileWriter<ModeSEncodedMessage>(datumWriter);
+			fileWriter.setMeta(OskyReader.META_SORTED, "timeAtServer");
 			fileWriter.create(ModeSEncodedMessage.getClassSchema(), avroout);
 
 			// cache for the avro records
@@ -147,17 +155,6 @@ public class AvroSort {
 
 				// get next record from file
 				ModeSEncodedMessage record = fileReader.next();
-
-				// time filters
-				if (filter_start != null && record.getTimeAtServer()<filter_start) {
-					filtered_cnt++;
-					continue;
-				}
-				if (filter_end != null && record.getTimeAtServer()>filter_end) {
-					filtered_cnt++;
-					continue;
-				}
-				
 				sorted.add(record);
 			}
 			
@@ -175,6 +172,8 @@ public class AvroSort {
 				fileWriter.append(r);
 			
 			fileReader.close();
+			if (fileReader.hasIndex())
+				System.err.println("Blocks skipped using the index: "+fileReader.getNumberOfBlocksSkipped());
 			fileWriter.close();
 
 		} catch (IOException e) {
@@ -190,6 +189,5 @@ public class AvroSort {
 		
 		System.err.println("\n\nStatistics:");
 		System.err.format("\tTotal messages: %d\n", msgs_cnt);
-		System.err.format("\tFiltered messages: %d\n", filtered_cnt);
 	}
 }
@@ -1,10 +1,8 @@
 package org.opensky.tools;
 
-import org.apache.avro.file.DataFileReader;
+import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
@@ -15,6 +13,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -50,6 +49,7 @@ public class AvroSplit {
 		opts.addOption("o", "output", true, "prefix for output files (number of file will be appended)");
 		opts.addOption("n", "number", true, "number of output files (default: 1)");
 		opts.addOption("a", "anonymize", false, "remove sensor location from data (default: false)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -58,6 +58,7 @@ public class AvroSplit {
 		String outpath = null;
 		List<String> inpaths = null;
 		boolean anonymize = false;
+		RecordFilter filter = null;
 		try {
 			cmd = parser.parse(opts, args);
 
@@ -66,7 +67,8 @@ public class AvroSplit {
 				if (cmd.hasOption("o")) outpath = cmd.getOptionValue("o");
 				else throw new ParseException("Need output prefix!");
 				if (cmd.hasOption("n")) num_files = Integer.parseInt(cmd.getOptionValue("n"));
-			} catch (NumberFormatException e) {
+				if (cmd.hasOption("filter")) filter = RecordFilter.parse(cmd.getOptionValue("filter"));
+			} catch (IllegalArgumentException e) {
 				throw new ParseException("Invalid arguments: "+e.getMessage());
 			}
 
@@ -117,9 +119,6 @@ public class AvroSplit {
 			System.exit(1);
 		}
 
-		// AVRO file reader
-		DatumReader<ModeSEncodedMessage> datumReader =
-				new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 		// AVRO file writer
 		DatumWriter<ModeSEncodedMessage> datumWriter =
 				new SpecificDatumWriter<ModeSEncodedMessage>(ModeSEncodedMessage.class);
@@ -137,13 +136,22 @@ public class AvroSplit {
 				writers.add(tmp);
 			}
 
+			// sensor locations are not needed if they are removed
+			List<String> names = new ArrayList<String>();
+			for (Schema.Field field : ModeSEncodedMessage.getClassSchema().getFields())
+				names.add(field.name());
+			names.removeAll(Arrays.asList("sensorLatitude", "sensorLongitude", "sensorAltitude"));
+			String[] fields = names.toArray(new String[names.size()]);
+
 			long last_time = System.currentTimeMillis(), last_msgs_cnt = 0;
-			DataFileReader<ModeSEncodedMessage> fileReader;
+			OskyReader fileReader;
 			int out_file;
 			// iterate over input files
 			for (int i = 0; i<avroin.size(); ++i) {
 				System.err.format("\nOpening %s.\n", inpaths.get(i));
-				fileReader = new DataFileReader<ModeSEncodedMessage>(avroin.get(i), datumReader);
+				fileReader = new OskyReader(avroin.get(i));
+				fileReader.setFilter(filter);
+				if (anonymize) fileReader.setProjection(fields);
 				while (fileReader.hasNext()) {
 					// count messages
 					++msgs_cnt;
@@ -0,0 +1,183 @@
+package org.opensky.tools;
+
+import org.apache.avro.util.Utf8;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+import org.opensky.libadsb.msgs.ModeSReply;
+
+/**
+ * Statistics about (a part of) an OpenSky avro file as printed by
+ * AvroInfo. Partial statistics of different parts can be merged.
+ *
+ * Downlink format and type code are read directly from the hex string of
+ * the raw message, i.e., messages are only decoded to check the parity.
+ */
+public class AvroStats {
+	// fields of ModeSEncodedMessage used by the statistics (without sketch)
+	public static final String[] FIELDS = {"timeAtServer", "rawMessage", "sensorSerialNumber"};
+
+	private final boolean count_formats;
+	private final boolean check_parity;
+
+	private long count;
+	private double min_time, max_time;
+	private final IntLongMap sensors; // messages per sensor serial
+	private final long[] modes_cnt; // per downlink format
+	private final long[] adsb_cnt; // per ADS-B type code
+	private long bad_parity;
+	private long bad_format;
+	private final AvroSketch sketch; // null if not sketching
+
+	/**
+	 * @param count_formats count downlink formats and type codes
+	 * @param check_parity ignore messages with bad parity
+	 * @param sketch also collect approximate statistics with an {@link AvroSketch}
+	 */
+	public AvroStats (boolean count_formats, boolean check_parity, boolean sketch) {
+		this.count_formats = count_formats;
+		this.check_parity = check_parity;
+		count = 0;
+		min_time = Double.MAX_VALUE;
+		max_time = -Double.MAX_VALUE;
+		sensors = new IntLongMap();
+		modes_cnt = new long[32];
+		adsb_cnt = new long[32];
+		bad_parity = 0;
+		bad_format = 0;
+		this.sketch = sketch ? new AvroSketch() : null;
+	}
+
+	/**
+	 * @param raw hex string
+	 * @param pos index of the first digit
+	 * @return value of the byte at pos or -1 if there is no valid byte
+	 */
+	static int hexByte (CharSequence raw, int pos) {
+		int hi, lo;
+		if (raw instanceof Utf8) {
+			Utf8 utf8 = (Utf8) raw;
+			if (utf8.getByteLength() < pos+2) return -1;
+			hi = Character.digit(utf8.getBytes()[pos], 16);
+			lo = Character.digit(utf8.getBytes()[pos+1], 16);
+		}
+		else {
+			if (raw.length() < pos+2) return -1;
+			hi = Character.digit(raw.charAt(pos), 16);
+			lo = Character.digit(raw.charAt(pos+1), 16);
+		}
+		return hi < 0 || lo < 0 ? -1 : hi<<4 | lo;
+	}
+
+	/**
+	 * Adds a message to the statistics
+	 * @param record the message
+	 */
+	public void add (ModeSEncodedMessage record) {
+		CharSequence raw = record.getRawMessage();
+
+		if (check_parity) {
+			try {
+				if (!new ModeSReply(raw.toString()).checkParity()) {
+					++bad_parity;
+					return;
+				}
+			} catch (Exception e) {
+				++bad_format;
+				return;
+			}
+		}
+
+		if (count_formats) {
+			int first = hexByte(raw, 0);
+			if (first < 0) ++bad_format;
+			else {
+				int df = first>>>3;
+				modes_cnt[df]++;
+				if (df == 17 || df == 18) {
+					int me = hexByte(raw, 8);
+					if (me < 0) ++bad_format;
+					else adsb_cnt[me>>>3]++;
+				}
+			}
+		}
+
+		++count;
+
+		double time = record.getTimeAtServer();
+		if (time < min_time) min_time = time;
+		if (time > max_time) max_time = time;
+
+		sensors.add(record.getSensorSerialNumber(), 1);
+
+		if (sketch != null) sketch.add(record);
+	}
+
+	/**
+	 * Adds the statistics of another part of the file
+	 * @param other statistics of the other part
+	 */
+	public void merge (AvroStats other) {
+		count += other.count;
+		min_time = Math.min(min_time, other.min_time);
+		max_time = Math.max(max_time, other.max_time);
+		sensors.addAll(other.sensors);
+		for (int i = 0; i<modes_cnt.length; ++i) {
+			modes_cnt[i] += other.modes_cnt[i];
+			adsb_cnt[i] += other.adsb_cnt[i];
+		}
+		bad_parity += other.bad_parity;
+		bad_format += other.bad_format;
+		if (sketch != null && other.sketch != null)
+			sketch.merge(other.sketch);
+	}
+
+	/**
+	 * @return number of messages (without those with bad parity)
+	 */
+	public long getCount () {
+		return count;
+	}
+
+	public double getMinTime () {
+		return min_time;
+	}
+
+	public double getMaxTime () {
+		return max_time;
+	}
+
+	/**
+	 * @return number of messages per sensor serial number
+	 */
+	public IntLongMap getSensors () {
+		return sensors;
+	}
+
+	/**
+	 * @return number of messages per downlink format
+	 */
+	public long[] getDownlinkFormatCounts () {
+		return modes_cnt;
+	}
+
+	/**
+	 * @return number of ADS-B messages per format type code
+	 */
+	public long[] getTypeCodeCounts () {
+		return adsb_cnt;
+	}
+
+	public long getNumberOfBadParity () {
+		return bad_parity;
+	}
+
+	public long getNumberOfBadFormat () {
+		return bad_format;
+	}
+
+	/**
+	 * @return the sketch or null if no approximate statistics are collected
+	 */
+	public AvroSketch getSketch () {
+		return sketch;
+	}
+}
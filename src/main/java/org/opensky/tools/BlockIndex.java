@@ -0,0 +1,461 @@
+package org.opensky.tools;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumReader;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+import org.opensky.libadsb.ModeSDecoder;
+import org.opensky.libadsb.Position;
+import org.opensky.libadsb.exceptions.BadFormatException;
+import org.opensky.libadsb.msgs.AirbornePositionV0Msg;
+import org.opensky.libadsb.msgs.ModeSReply;
+import org.opensky.libadsb.msgs.SurfacePositionV0Msg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of the blocks of an OpenSky avro file. For each block, it contains
+ * the position, the number of records, the time range (timeAtServer), the
+ * serial numbers of all sensors, a bloom filter of all icao 24-bit
+ * addresses and the grid cells (1x1 degrees) of all decoded positions and
+ * of the sensor locations. Readers can use it to skip blocks without
+ * decompressing them (see {@link OskyReader}).
+ *
+ * The index is stored as avro file next to the indexed file (sidecar) with
+ * the suffix ".idx". It is only used if the length and modification time
+ * of the indexed file did not change.
+ */
+public class BlockIndex {
+	public static final Schema SCHEMA = new Schema.Parser().parse(
+			"{\"type\":\"record\",\"name\":\"BlockIndexEntry\",\"namespace\":\"org.opensky.tools\",\"fields\":[" +
+			"{\"name\":\"offset\",\"type\":\"long\"}," +
+			"{\"name\":\"count\",\"type\":\"long\"}," +
+			"{\"name\":\"minTime\",\"type\":\"double\"}," +
+			"{\"name\":\"maxTime\",\"type\":\"double\"}," +
+			"{\"name\":\"sensors\",\"type\":{\"type\":\"array\",\"items\":\"int\"}}," +
+			"{\"name\":\"icao24Bloom\",\"type\":\"bytes\"}," +
+			"{\"name\":\"positionCells\",\"type\":{\"type\":\"array\",\"items\":\"int\"},\"default\":[]}," +
+			"{\"name\":\"sensorCells\",\"type\":{\"type\":\"array\",\"items\":\"int\"},\"default\":[]}]}");
+
+	public static final String SUFFIX = ".idx";
+	private static final String META_LENGTH = "osky.source.length";
+	private static final String META_MODIFIED = "osky.source.modified";
+	private static final String META_HASHES = "osky.bloom.hashes";
+
+	private final int hashes; // of the bloom filters
+	private long[] offsets; // position of the block (as used by DataFileReader.seek)
+	private long[] counts; // number of records
+	private double[] min_time, max_time;
+	private int[][] sensors; // sorted serial numbers
+	private BloomFilter[] blooms;
+	private int[][] position_cells, sensor_cells; // sorted grid cells (see getCell)
+	private int size;
+
+	/**
+	 * @param hashes number of hash functions of the bloom filters
+	 */
+	public BlockIndex (int hashes) {
+		this.hashes = hashes;
+		offsets = new long[1024];
+		counts = new long[1024];
+		min_time = new double[1024];
+		max_time = new double[1024];
+		sensors = new int[1024][];
+		blooms = new BloomFilter[1024];
+		position_cells = new int[1024][];
+		sensor_cells = new int[1024][];
+		size = 0;
+	}
+
+	/**
+	 * Appends a block to the index
+	 */
+	public void add (long offset, long count, double min, double max, int[] serials, BloomFilter bloom,
+			int[] positions, int[] sensor_locations) {
+		if (size == offsets.length) {
+			int capacity = size*2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			min_time = Arrays.copyOf(min_time, capacity);
+			max_time = Arrays.copyOf(max_time, capacity);
+			sensors = Arrays.copyOf(sensors, capacity);
+			blooms = Arrays.copyOf(blooms, capacity);
+			position_cells = Arrays.copyOf(position_cells, capacity);
+			sensor_cells = Arrays.copyOf(sensor_cells, capacity);
+		}
+		int[] sorted = serials.clone();
+		Arrays.sort(sorted);
+		position_cells[size] = positions.clone();
+		Arrays.sort(position_cells[size]);
+		sensor_cells[size] = sensor_locations.clone();
+		Arrays.sort(sensor_cells[size]);
+		offsets[size] = offset;
+		counts[size] = count;
+		min_time[size] = min;
+		max_time[size] = max;
+		sensors[size] = sorted;
+		blooms[size] = bloom;
+		++size;
+	}
+
+	/**
+	 * @return number of blocks
+	 */
+	public int size () {
+		return size;
+	}
+
+	public long getOffset (int block) {
+		return offsets[block];
+	}
+
+	/**
+	 * @param offset position of a block in the file
+	 * @return number of the block at this position or a negative value if there is none
+	 */
+	public int findBlock (long offset) {
+		return Arrays.binarySearch(offsets, 0, size, offset);
+	}
+
+	public long getCount (int block) {
+		return counts[block];
+	}
+
+	public double getMinTime (int block) {
+		return min_time[block];
+	}
+
+	public double getMaxTime (int block) {
+		return max_time[block];
+	}
+
+	/**
+	 * @param block number of the block
+	 * @param serial sensor serial number
+	 * @return true if the block contains messages of the sensor
+	 */
+	public boolean containsSensor (int block, int serial) {
+		return Arrays.binarySearch(sensors[block], serial) >= 0;
+	}
+
+	/**
+	 * @param block number of the block
+	 * @param icao24 icao 24-bit address
+	 * @return false if the block definitely contains no message of the aircraft
+	 */
+	public boolean mightContainIcao24 (int block, int icao24) {
+		return blooms[block].mightContain(icao24);
+	}
+
+	/**
+	 * @param block number of the block
+	 * @return summary of the block for {@link RecordFilter#mayMatch(RecordFilter.Summary)}
+	 */
+	public RecordFilter.Summary getSummary (final int block) {
+		return new RecordFilter.Summary() {
+			public double getMinTime () {
+				return min_time[block];
+			}
+
+			public double getMaxTime () {
+				return max_time[block];
+			}
+
+			public boolean mightContainSensor (int serial) {
+				return containsSensor(block, serial);
+			}
+
+			public boolean mightContainIcao24 (int icao24) {
+				return BlockIndex.this.mightContainIcao24(block, icao24);
+			}
+		};
+	}
+
+	/**
+	 * @param block number of the block
+	 * @return grid cells of all positions decoded in the block (sorted)
+	 */
+	public int[] getPositionCells (int block) {
+		return position_cells[block];
+	}
+
+	/**
+	 * @param block number of the block
+	 * @return grid cells of the locations of all sensors in the block (sorted)
+	 */
+	public int[] getSensorCells (int block) {
+		return sensor_cells[block];
+	}
+
+	/**
+	 * @param latitude latitude in decimal degrees
+	 * @param longitude longitude in decimal degrees
+	 * @return number of the 1x1 degree grid cell of the coordinates
+	 */
+	public static int getCell (double latitude, double longitude) {
+		int lat = Math.min(179, Math.max(0, (int) Math.floor(latitude)+90));
+		int lon = (((int) Math.floor(longitude)+180)%360+360)%360;
+		return lat*360+lon;
+	}
+
+	/**
+	 * @param latitude latitude of the center in decimal degrees
+	 * @param longitude longitude of the center in decimal degrees
+	 * @param radius radius in meters
+	 * @return all grid cells which intersect the bounding box of the circle
+	 */
+	public static IntSet getCells (double latitude, double longitude, double radius) {
+		double dlat = Math.toDegrees(radius/6371000.0);
+		double min_lat = Math.max(-90, latitude-dlat), max_lat = Math.min(90, latitude+dlat);
+
+		// longitude range at the latitude closest to the pole
+		double cos = Math.cos(Math.toRadians(Math.max(Math.abs(min_lat), Math.abs(max_lat))));
+		double dlon = cos < 1e-6 ? 180 : Math.min(180, dlat/cos);
+
+		IntSet cells = new IntSet();
+		for (int lat = (int) Math.floor(min_lat); lat <= Math.floor(max_lat); ++lat)
+			for (int lon = (int) Math.floor(longitude-dlon), i = 0; lon <= Math.floor(longitude+dlon) && i < 360; ++lon, ++i)
+				cells.add(getCell(lat, lon));
+		return cells;
+	}
+
+	/**
+	 * @param avro the indexed avro file
+	 * @return the sidecar file of the index
+	 */
+	public static File getIndexFile (File avro) {
+		return new File(avro.getPath()+SUFFIX);
+	}
+
+	/**
+	 * Writes the index to the sidecar file of the avro file
+	 * @param avro the indexed avro file
+	 * @throws IOException if writing fails
+	 */
+	public void write (File avro) throws IOException {
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(SCHEMA));
+		writer.setMeta(META_LENGTH, avro.length());
+		writer.setMeta(META_MODIFIED, avro.lastModified());
+		writer.setMeta(META_HASHES, hashes);
+		writer.create(SCHEMA, getIndexFile(avro));
+		try {
+			GenericRecord entry = new GenericData.Record(SCHEMA);
+			for (int i = 0; i<size; ++i) {
+				List<Integer> serials = new ArrayList<Integer>(sensors[i].length);
+				for (int serial : sensors[i]) serials.add(serial);
+				List<Integer> positions = new ArrayList<Integer>(position_cells[i].length);
+				for (int cell : position_cells[i]) positions.add(cell);
+				List<Integer> locations = new ArrayList<Integer>(sensor_cells[i].length);
+				for (int cell : sensor_cells[i]) locations.add(cell);
+
+				entry.put("offset", offsets[i]);
+				entry.put("count", counts[i]);
+				entry.put("minTime", min_time[i]);
+				entry.put("maxTime", max_time[i]);
+				entry.put("sensors", serials);
+				entry.put("icao24Bloom", ByteBuffer.wrap(blooms[i].toByteArray()));
+				entry.put("positionCells", positions);
+				entry.put("sensorCells", locations);
+				writer.append(entry);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads the index of an avro file
+	 * @param avro the indexed avro file
+	 * @return the index or null if there is no (up-to-date) index
+	 * @throws IOException if the index cannot be read
+	 */
+	public static BlockIndex read (File avro) throws IOException {
+		File file = getIndexFile(avro);
+		if (!file.exists()) return null;
+
+		DatumReader<GenericRecord> datumReader = new GenericDatumReader<GenericRecord>(SCHEMA);
+		DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(file, datumReader);
+		try {
+			if (reader.getMetaLong(META_LENGTH) != avro.length() ||
+					reader.getMetaLong(META_MODIFIED) != avro.lastModified()) {
+				System.err.println("Warning: ignoring outdated index "+file.getPath());
+				return null;
+			}
+
+			BlockIndex index = new BlockIndex((int) reader.getMetaLong(META_HASHES));
+			GenericRecord entry = null;
+			while (reader.hasNext()) {
+				entry = reader.next(entry);
+
+				ByteBuffer buf = (ByteBuffer) entry.get("icao24Bloom");
+				byte[] bloom = new byte[buf.remaining()];
+				buf.get(bloom);
+
+				index.add((Long) entry.get("offset"), (Long) entry.get("count"),
+						(Double) entry.get("minTime"), (Double) entry.get("maxTime"),
+						toArray(entry.get("sensors")), new BloomFilter(bloom, index.hashes),
+						toArray(entry.get("positionCells")), toArray(entry.get("sensorCells")));
+			}
+			return index;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param set set of ints
+	 * @return the values as int array
+	 */
+	private static int[] toArray (IntSet set) {
+		int[] array = new int[set.size()];
+		for (int i = 0; i<array.length; ++i) array[i] = set.get(i);
+		return array;
+	}
+
+	/**
+	 * @param list avro array of ints
+	 * @return the values as int array
+	 */
+	private static int[] toArray (Object list) {
+		@SuppressWarnings("unchecked")
+		List<Integer> values = (List<Integer>) list;
+		int[] array = new int[values.size()];
+		for (int i = 0; i<array.length; ++i) array[i] = values.get(i);
+		return array;
+	}
+
+	/**
+	 * Decodes the position of a message
+	 * @param decoder decoder with the state of all previous messages
+	 * @param record the message
+	 * @return the position or null if the message has no (reasonable) position
+	 */
+	private static Position decodePosition (ModeSDecoder decoder, ModeSEncodedMessage record) {
+		ModeSReply msg;
+		try {
+			msg = decoder.decode(record.getRawMessage().toString());
+		} catch (BadFormatException e) {
+			return null;
+		}
+
+		Position receiver = record.getSensorLatitude() != null ?
+				new Position(
+						record.getSensorLongitude(),
+						record.getSensorLatitude(),
+						record.getSensorAltitude()) : null;
+		long time = record.getTimeAtServer().longValue()*1000L;
+
+		Position pos = null;
+		switch (msg.getType()) {
+			case ADSB_AIRBORN_POSITION_V0:
+			case ADSB_AIRBORN_POSITION_V1:
+			case ADSB_AIRBORN_POSITION_V2:
+				pos = decoder.decodePosition(time, (AirbornePositionV0Msg) msg, receiver);
+				break;
+			case ADSB_SURFACE_POSITION_V0:
+			case ADSB_SURFACE_POSITION_V1:
+			case ADSB_SURFACE_POSITION_V2:
+				pos = decoder.decodePosition(time, (SurfacePositionV0Msg) msg, receiver);
+				break;
+			default:
+		}
+		return pos != null && pos.isReasonable() ? pos : null;
+	}
+
+	/**
+	 * @param raw raw message as hex string
+	 * @return icao 24-bit address (announced or recovered from the parity)
+	 *         or -1 if the message cannot be parsed
+	 */
+	static int getIcao24 (CharSequence raw) {
+		// the address is announced in DF11/17/18, so no need to parse the message
+		int first = AvroStats.hexByte(raw, 0);
+		int df = first>>>3;
+		if (first >= 0 && (df == 11 && raw.length() == 14 || (df == 17 || df == 18) && raw.length() == 28)) {
+			int a = AvroStats.hexByte(raw, 2), b = AvroStats.hexByte(raw, 4), c = AvroStats.hexByte(raw, 6);
+			if (a >= 0 && b >= 0 && c >= 0) return a<<16 | b<<8 | c;
+		}
+
+		try {
+			byte[] icao24 = new ModeSReply(raw.toString()).getIcao24();
+			return (icao24[0]&0xff)<<16 | (icao24[1]&0xff)<<8 | (icao24[2]&0xff);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Creates the index of an avro file by reading all blocks
+	 * @param avro the avro file
+	 * @param bloom_size number of bits of the bloom filters
+	 * @param hashes number of hash functions of the bloom filters
+	 * @return the index
+	 * @throws IOException if the file cannot be read
+	 */
+	public static BlockIndex build (File avro, int bloom_size, int hashes) throws IOException {
+		DatumReader<ModeSEncodedMessage> datumReader = new ProjectionDatumReader("timeAtServer", "rawMessage",
+				"sensorSerialNumber", "sensorLatitude", "sensorLongitude", "sensorAltitude");
+		DataFileReader<ModeSEncodedMessage> reader = new DataFileReader<ModeSEncodedMessage>(avro, datumReader);
+		BlockIndex index = new BlockIndex(hashes);
+		try {
+			ModeSEncodedMessage record = new ModeSEncodedMessage();
+
+			ModeSDecoder decoder = new ModeSDecoder();
+			long msgs_cnt = 0;
+
+			// statistics of current block
+			long block = reader.previousSync(), count = 0;
+			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+			IntSet serials = new IntSet(), positions = new IntSet(), locations = new IntSet();
+			BloomFilter bloom = new BloomFilter(bloom_size, hashes);
+
+			while (reader.hasNext()) {
+				record = reader.next(record);
+
+				// cleanup decoders every 1.000.000 messages to avoid excessive memory usage
+				if (++msgs_cnt%1000000 == 0) {
+					decoder.gc();
+				}
+
+				++count;
+				min = Math.min(min, record.getTimeAtServer());
+				max = Math.max(max, record.getTimeAtServer());
+				serials.add(record.getSensorSerialNumber());
+				int icao24 = getIcao24(record.getRawMessage());
+				if (icao24 >= 0) bloom.add(icao24);
+				if (record.getSensorLatitude() != null && record.getSensorLongitude() != null)
+					locations.add(getCell(record.getSensorLatitude(), record.getSensorLongitude()));
+				Position pos = decodePosition(decoder, record);
+				if (pos != null) positions.add(getCell(pos.getLatitude(), pos.getLongitude()));
+
+				// previousSync() moves to the next block after the last record of a block
+				if (reader.previousSync() != block) {
+					index.add(block, count, min, max, toArray(serials), bloom,
+							toArray(positions), toArray(locations));
+
+					block = reader.previousSync();
+					count = 0;
+					min = Double.MAX_VALUE;
+					max = -Double.MAX_VALUE;
+					serials = new IntSet();
+					positions = new IntSet();
+					locations = new IntSet();
+					bloom = new BloomFilter(bloom_size, hashes);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return index;
+	}
+}
@@ -0,0 +1,83 @@
+package org.opensky.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter for int values (e.g., icao 24-bit addresses). It never
+ * returns false for values that have been added and returns true for
+ * other values with a probability depending on the number of bits and
+ * hash functions.
+ */
+public class BloomFilter {
+	private final long[] bits;
+	private final int hashes;
+
+	/**
+	 * @param size number of bits (multiple of 64)
+	 * @param hashes number of hash functions
+	 */
+	public BloomFilter (int size, int hashes) {
+		if (size < 64 || size%64 != 0)
+			throw new IllegalArgumentException("Size must be a positive multiple of 64.");
+		bits = new long[size/64];
+		this.hashes = hashes;
+	}
+
+	/**
+	 * @param data bits as returned by {@link #toByteArray()}
+	 * @param hashes number of hash functions
+	 */
+	public BloomFilter (byte[] data, int hashes) {
+		this(data.length*8, hashes);
+		ByteBuffer.wrap(data).asLongBuffer().get(bits);
+	}
+
+	/**
+	 * @param hash 64 bit hash of the value
+	 * @param i number of the hash function
+	 * @return bit index of the value for the i-th hash function
+	 */
+	private int index (long hash, int i) {
+		// double hashing
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		int combined = h1 + i*h2;
+		return (combined & Integer.MAX_VALUE) % (bits.length*64);
+	}
+
+	public void add (int value) {
+		long hash = HyperLogLog.hash(value);
+		for (int i = 0; i<hashes; ++i) {
+			int bit = index(hash, i);
+			bits[bit>>>6] |= 1L << (bit & 63);
+		}
+	}
+
+	/**
+	 * @param value the value
+	 * @return false if the value has definitely not been added
+	 */
+	public boolean mightContain (int value) {
+		long hash = HyperLogLog.hash(value);
+		for (int i = 0; i<hashes; ++i) {
+			int bit = index(hash, i);
+			if ((bits[bit>>>6] & (1L << (bit & 63))) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of hash functions
+	 */
+	public int getNumberOfHashes () {
+		return hashes;
+	}
+
+	/**
+	 * @return the bits of the filter
+	 */
+	public byte[] toByteArray () {
+		ByteBuffer buf = ByteBuffer.allocate(bits.length*8);
+		buf.asLongBuffer().put(bits);
+		return buf.array();
+	}
+}
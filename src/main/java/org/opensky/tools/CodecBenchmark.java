@@ -0,0 +1,305 @@
+package org.opensky.tools;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.commons.cli.*;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the decoding and encoding speed of the generic Avro path
+ * ({@link SpecificDatumReader} and {@link SpecificDatumWriter}) with the
+ * {@link ProjectionDatumReader} and the hand-coded flyweight codec
+ * ({@link FlyweightDatumReader} and {@link FlyweightDatumWriter}).
+ *
+ * The records of an avro file are serialized into memory first, i.e.,
+ * only the codecs are measured (no I/O or decompression). Each codec
+ * also determines the downlink format of each message like the tools do.
+ */
+public class CodecBenchmark {
+
+	/**
+	 * A codec under test
+	 */
+	private static abstract class Codec {
+		final String name;
+
+		Codec (String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Runs the codec once on all records
+		 * @return checksum to keep the JIT from removing the work
+		 */
+		abstract long run () throws IOException;
+	}
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * @return bytes allocated by the current thread or -1 if not supported
+	 */
+	private static long allocatedBytes () {
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * Runs a codec several times and prints the median time
+	 * @param codec the codec
+	 * @param rounds number of measured rounds
+	 * @param records number of records per round
+	 * @param bytes serialized size of the records
+	 */
+	private static void measure (Codec codec, int rounds, int records, long bytes) throws IOException {
+		long checksum = 0;
+		// warm-up
+		for (int i = 0; i<Math.max(2, rounds/2); ++i) checksum += codec.run();
+
+		long[] times = new long[rounds];
+		long allocated = allocatedBytes();
+		for (int i = 0; i<rounds; ++i) {
+			long start = System.nanoTime();
+			checksum += codec.run();
+			times[i] = System.nanoTime()-start;
+		}
+		if (allocated >= 0) allocated = allocatedBytes()-allocated;
+		Arrays.sort(times);
+		double median = times[rounds/2]/1e9;
+
+		System.out.format(Locale.ENGLISH, "%-24s %8.1f ms %10.0f records/s %8.1f MB/s %10s bytes/record (checksum %d)\n",
+				codec.name, median*1000, records/median, bytes/median/1024/1024,
+				allocated >= 0 ? String.format(Locale.ENGLISH, "%.1f", (double) allocated/rounds/records) : "n/a",
+				checksum);
+	}
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"CodecBenchmark [options] avro-file",
+				"\nCompares the speed of the avro codecs for OpenSky messages\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("n", "records", true, "number of records read from the file (default: 1000000)" );
+		opts.addOption("r", "rounds", true, "number of measured rounds per codec (default: 10)" );
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		int max_records = 1000000, rounds = 10;
+		File avro = null;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("n")) max_records = Integer.parseInt(cmd.getOptionValue("n"));
+				if (cmd.hasOption("r")) rounds = Integer.parseInt(cmd.getOptionValue("r"));
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (max_records < 1 || rounds < 1)
+				throw new ParseException("Number of records and rounds must be positive.");
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get filename
+			if (cmd.getArgList().size() != 1)
+				throw new ParseException("No avro file given or invalid arguments.");
+			avro = new File(cmd.getArgList().get(0));
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		// check if file exists
+		try {
+			if(!avro.exists() || avro.isDirectory() || !avro.canRead())
+				throw new FileNotFoundException("Avro file not found or cannot be read.");
+		} catch (FileNotFoundException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		try {
+			// load records
+			final List<ModeSEncodedMessage> records = new ArrayList<ModeSEncodedMessage>();
+			DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(avro,
+					new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class));
+			while (fileReader.hasNext() && records.size() < max_records)
+				records.add(fileReader.next());
+			fileReader.close();
+			final int n = records.size();
+
+			final List<MessageFlyweight> flyweights = new ArrayList<MessageFlyweight>();
+			for (ModeSEncodedMessage record : records) {
+				MessageFlyweight msg = new MessageFlyweight();
+				msg.set(record);
+				flyweights.add(msg);
+			}
+
+			// serialize records into memory
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			final SpecificDatumWriter<ModeSEncodedMessage> specificWriter =
+					new SpecificDatumWriter<ModeSEncodedMessage>(ModeSEncodedMessage.class);
+			BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(buffer, null);
+			for (ModeSEncodedMessage record : records) specificWriter.write(record, encoder);
+			encoder.flush();
+			final byte[] data = buffer.toByteArray();
+			System.out.println("Serialized "+n+" records ("+data.length/1024+" kB).\n");
+
+			// check that the flyweight codec reads and writes the same records
+			FlyweightDatumReader flyweightReader = new FlyweightDatumReader();
+			FlyweightDatumWriter flyweightWriter = new FlyweightDatumWriter();
+			BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(data, null);
+			MessageFlyweight msg = null;
+			long mismatches = 0;
+			buffer.reset();
+			encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+			for (ModeSEncodedMessage record : records) {
+				msg = flyweightReader.read(msg, decoder);
+				if (!msg.toRecord(null).equals(record)) ++mismatches;
+				flyweightWriter.write(msg, encoder);
+			}
+			encoder.flush();
+			if (mismatches > 0 || !Arrays.equals(data, buffer.toByteArray())) {
+				System.err.println("Error: flyweight codec does not reproduce the records ("+mismatches+" mismatches).");
+				System.exit(1);
+			}
+
+			List<Codec> codecs = new ArrayList<Codec>();
+
+			codecs.add(new Codec("decode specific") {
+				private final DatumReader<ModeSEncodedMessage> reader =
+						new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
+				private BinaryDecoder decoder;
+
+				long run () throws IOException {
+					decoder = DecoderFactory.get().binaryDecoder(data, decoder);
+					ModeSEncodedMessage record = null;
+					long sum = 0;
+					for (int i = 0; i<n; ++i) {
+						record = reader.read(record, decoder);
+						String raw = record.getRawMessage().toString();
+						sum += AvroStats.hexByte(raw, 0)>>>3;
+					}
+					return sum;
+				}
+			});
+
+			codecs.add(new Codec("decode projection (all)") {
+				private final DatumReader<ModeSEncodedMessage> reader = new ProjectionDatumReader();
+				private BinaryDecoder decoder;
+
+				long run () throws IOException {
+					decoder = DecoderFactory.get().binaryDecoder(data, decoder);
+					ModeSEncodedMessage record = null;
+					long sum = 0;
+					for (int i = 0; i<n; ++i) {
+						record = reader.read(record, decoder);
+						sum += AvroStats.hexByte(record.getRawMessage(), 0)>>>3;
+					}
+					return sum;
+				}
+			});
+
+			codecs.add(new Codec("decode projection (raw)") {
+				private final DatumReader<ModeSEncodedMessage> reader = new ProjectionDatumReader("rawMessage", "timeAtServer");
+				private BinaryDecoder decoder;
+
+				long run () throws IOException {
+					decoder = DecoderFactory.get().binaryDecoder(data, decoder);
+					ModeSEncodedMessage record = null;
+					long sum = 0;
+					for (int i = 0; i<n; ++i) {
+						record = reader.read(record, decoder);
+						sum += AvroStats.hexByte(record.getRawMessage(), 0)>>>3;
+					}
+					return sum;
+				}
+			});
+
+			codecs.add(new Codec("decode flyweight") {
+				private final FlyweightDatumReader reader = new FlyweightDatumReader();
+				private BinaryDecoder decoder;
+
+				long run () throws IOException {
+					decoder = DecoderFactory.get().binaryDecoder(data, decoder);
+					MessageFlyweight msg = null;
+					long sum = 0;
+					for (int i = 0; i<n; ++i) {
+						msg = reader.read(msg, decoder);
+						sum += msg.downlinkFormat();
+					}
+					return sum;
+				}
+			});
+
+			codecs.add(new Codec("encode specific") {
+				private BinaryEncoder encoder;
+
+				long run () throws IOException {
+					buffer.reset();
+					encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+					for (int i = 0; i<n; ++i) specificWriter.write(records.get(i), encoder);
+					encoder.flush();
+					return buffer.size();
+				}
+			});
+
+			codecs.add(new Codec("encode flyweight") {
+				private final DatumWriter<MessageFlyweight> writer = new FlyweightDatumWriter();
+				private BinaryEncoder encoder;
+
+				long run () throws IOException {
+					buffer.reset();
+					encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+					for (int i = 0; i<n; ++i) writer.write(flyweights.get(i), encoder);
+					encoder.flush();
+					return buffer.size();
+				}
+			});
+
+			for (Codec codec : codecs) measure(codec, rounds, n, data.length);
+		} catch (Exception e) {
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
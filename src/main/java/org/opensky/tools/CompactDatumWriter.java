@@ -0,0 +1,88 @@
+package org.opensky.tools;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.IOException;
+
+/**
+ * Hand-coded datum writer which writes v2 records with the compact v3
+ * schema ({@link CompactMessage#SCHEMA}). Times are rounded to microseconds
+ * and RSSI and SNR to floats. Records whose raw message is not a valid hex
+ * string are rejected with an {@link AvroTypeException}.
+ */
+public class CompactDatumWriter implements DatumWriter<ModeSEncodedMessage> {
+	private byte[] raw = new byte[14];
+
+	@Override
+	public void setSchema (Schema schema) {
+		if (!schema.equals(CompactMessage.SCHEMA))
+			throw new AvroTypeException("Unsupported schema "+schema.getFullName()+".");
+	}
+
+	/**
+	 * Writes a union of double and null
+	 * @param out the encoder
+	 * @param value the value or null
+	 */
+	private static void writeNullableDouble (Encoder out, Double value) throws IOException {
+		if (value == null) {
+			out.writeIndex(1);
+			out.writeNull();
+		}
+		else {
+			out.writeIndex(0);
+			out.writeDouble(value);
+		}
+	}
+
+	/**
+	 * Writes a union of float and null
+	 * @param out the encoder
+	 * @param value the value or null
+	 */
+	private static void writeNullableFloat (Encoder out, Double value) throws IOException {
+		if (value == null) {
+			out.writeIndex(1);
+			out.writeNull();
+		}
+		else {
+			out.writeIndex(0);
+			out.writeFloat(value.floatValue());
+		}
+	}
+
+	@Override
+	public void write (ModeSEncodedMessage record, Encoder out) throws IOException {
+		// check the raw message first, nothing must be written for invalid records
+		CharSequence hex = record.getRawMessage();
+		if (raw.length < hex.length()/2) raw = new byte[hex.length()/2];
+		int len = CompactMessage.hexToBytes(hex, raw);
+		if (len < 0) throw new AvroTypeException("Raw message "+hex+" is not valid hex.");
+
+		int type = CompactMessage.sensorTypeIndex(record.getSensorType());
+		if (type >= 0) {
+			out.writeIndex(0);
+			out.writeEnum(type);
+		}
+		else {
+			out.writeIndex(1);
+			out.writeString(record.getSensorType());
+		}
+		writeNullableDouble(out, record.getSensorLatitude());
+		writeNullableDouble(out, record.getSensorLongitude());
+		writeNullableDouble(out, record.getSensorAltitude());
+		out.writeLong(CompactMessage.toMicros(record.getTimeAtServer()));
+		writeNullableDouble(out, record.getTimeAtSensor());
+		writeNullableDouble(out, record.getTimestamp());
+		out.writeBytes(raw, 0, len);
+		out.writeInt(record.getSensorSerialNumber());
+		writeNullableFloat(out, record.getRSSIPacket());
+		writeNullableFloat(out, record.getRSSIPreamble());
+		writeNullableFloat(out, record.getSNR());
+		writeNullableDouble(out, record.getConfidence());
+	}
+}
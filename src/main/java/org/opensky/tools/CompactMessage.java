@@ -0,0 +1,132 @@
+package org.opensky.tools;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.util.Utf8;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.IOException;
+
+/**
+ * Compact v3 storage schema for OpenSky messages. It has the same fields as
+ * {@link ModeSEncodedMessage} (v2), but
+ * <ul>
+ *     <li>rawMessage is stored as bytes instead of a hex string,</li>
+ *     <li>timeAtServer is stored as long microseconds (logical type timestamp-micros),</li>
+ *     <li>sensorType is an enum of the known sensor types or a string for all others and</li>
+ *     <li>RSSIPacket, RSSIPreamble and SNR are floats.</li>
+ * </ul>
+ *
+ * There is no record class for v3. Files are written from v2 records with
+ * {@link CompactDatumWriter} and read into v2 records by {@link ProjectionDatumReader}
+ * or into {@link MessageFlyweight}s by {@link FlyweightDatumReader}, i.e., all
+ * tools read both versions. Use AvroConvert to convert files.
+ */
+public class CompactMessage {
+	public static final String NAMESPACE = "org.opensky.avro.v3";
+
+	public static final Schema SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"ModeSEncodedMessage\",\"namespace\":\""+NAMESPACE+"\",\"fields\":["+
+			"{\"name\":\"sensorType\",\"type\":[{\"type\":\"enum\",\"name\":\"SensorType\",\"symbols\":[\"OpenSky\",\"Radarcape\",\"dump1090\"]},\"string\"]},"+
+			"{\"name\":\"sensorLatitude\",\"type\":[\"double\",\"null\"]},"+
+			"{\"name\":\"sensorLongitude\",\"type\":[\"double\",\"null\"]},"+
+			"{\"name\":\"sensorAltitude\",\"type\":[\"double\",\"null\"]},"+
+			"{\"name\":\"timeAtServer\",\"type\":{\"type\":\"long\",\"logicalType\":\"timestamp-micros\"}},"+
+			"{\"name\":\"timeAtSensor\",\"type\":[\"double\",\"null\"]},"+
+			"{\"name\":\"timestamp\",\"type\":[\"double\",\"null\"]},"+
+			"{\"name\":\"rawMessage\",\"type\":\"bytes\"},"+
+			"{\"name\":\"sensorSerialNumber\",\"type\":\"int\"},"+
+			"{\"name\":\"RSSIPacket\",\"type\":[\"float\",\"null\"]},"+
+			"{\"name\":\"RSSIPreamble\",\"type\":[\"float\",\"null\"]},"+
+			"{\"name\":\"SNR\",\"type\":[\"float\",\"null\"]},"+
+			"{\"name\":\"confidence\",\"type\":[\"double\",\"null\"]}]}");
+
+	// known sensor types (append only, the position is stored)
+	static final String[] SENSOR_TYPES =
+			SCHEMA.getField("sensorType").schema().getTypes().get(0).getEnumSymbols().toArray(new String[0]);
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	/**
+	 * @param schema a record schema
+	 * @return true if the schema is the v3 schema (or a newer revision in the same namespace)
+	 */
+	public static boolean isCompact (Schema schema) {
+		return schema.getType() == Schema.Type.RECORD && NAMESPACE.equals(schema.getNamespace());
+	}
+
+	/**
+	 * @param schema a schema
+	 * @return true if the schema is a long with logical type timestamp-micros
+	 */
+	static boolean isMicros (Schema schema) {
+		return schema.getType() == Schema.Type.LONG &&
+				schema.getLogicalType() instanceof LogicalTypes.TimestampMicros;
+	}
+
+	/**
+	 * @param seconds time in seconds
+	 * @return time in microseconds
+	 */
+	public static long toMicros (double seconds) {
+		return Math.round(seconds*1e6);
+	}
+
+	/**
+	 * @param micros time in microseconds
+	 * @return time in seconds
+	 */
+	public static double toSeconds (long micros) {
+		return micros/1e6;
+	}
+
+	/**
+	 * @param sensor_type sensor type of a message
+	 * @return position of the sensor type in the enum or -1 if it is stored as string
+	 */
+	static int sensorTypeIndex (CharSequence sensor_type) {
+		for (int i = 0; i<SENSOR_TYPES.length; ++i)
+			if (SENSOR_TYPES[i].contentEquals(sensor_type)) return i;
+		return -1;
+	}
+
+	/**
+	 * Decodes a hex string
+	 * @param hex the hex string
+	 * @param dst buffer with at least half as many bytes as the string has characters
+	 * @return number of bytes or -1 if the string is not valid hex
+	 */
+	public static int hexToBytes (CharSequence hex, byte[] dst) {
+		if (hex.length()%2 != 0) return -1;
+		int n = hex.length()/2;
+		for (int i = 0; i<n; ++i) {
+			int b = AvroStats.hexByte(hex, 2*i);
+			if (b < 0) return -1;
+			dst[i] = (byte) b;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads avro bytes as lower case hex string. The bytes are read into the
+	 * second half of the string's buffer and expanded in place, i.e., no
+	 * buffer is needed and the reader can be used by several threads.
+	 * @param in the decoder (binary encoding)
+	 * @param reuse string to reuse or null
+	 * @return the hex string
+	 */
+	static Utf8 readHex (Decoder in, Utf8 reuse) throws IOException {
+		int n = (int) in.readLong();
+		Utf8 hex = reuse != null ? reuse : new Utf8();
+		hex.setByteLength(2*n);
+		byte[] buf = hex.getBytes();
+		in.readFixed(buf, n, n);
+		// position 2i+1 is written before n+i+1 is read
+		for (int i = 0; i<n; ++i) {
+			int b = buf[n+i] & 0xff;
+			buf[2*i] = HEX[b>>>4];
+			buf[2*i+1] = HEX[b&15];
+		}
+		return hex;
+	}
+}
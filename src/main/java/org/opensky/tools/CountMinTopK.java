@@ -0,0 +1,175 @@
+package org.opensky.tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Count-min sketch which keeps track of the k most frequent keys (heavy
+ * hitters). Counts are overestimated by at most 2/width of the total
+ * count with probability 1-(1/2)^depth. Sketches with the same dimensions
+ * can be merged.
+ */
+public class CountMinTopK {
+	private final int width, depth, k;
+	private final long[] table; // depth rows of width counters
+	private long total;
+
+	// candidates for the top k
+	private final int[] top_keys;
+	private final long[] top_counts;
+	private int top_size;
+
+	/**
+	 * @param width number of counters per row (power of 2)
+	 * @param depth number of rows
+	 * @param k number of most frequent keys to keep
+	 */
+	public CountMinTopK (int width, int depth, int k) {
+		if (Integer.bitCount(width) != 1)
+			throw new IllegalArgumentException("Width must be a power of 2.");
+		this.width = width;
+		this.depth = depth;
+		this.k = k;
+		table = new long[width*depth];
+		total = 0;
+		top_keys = new int[k];
+		top_counts = new long[k];
+		top_size = 0;
+	}
+
+	private int index (int row, int key) {
+		long h = HyperLogLog.hash(((long) row << 32) ^ (key & 0xffffffffL));
+		return row*width + (int) (h & (width-1));
+	}
+
+	/**
+	 * @param key the key
+	 * @return estimated count of the key (never too low)
+	 */
+	public long estimate (int key) {
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row<depth; ++row)
+			min = Math.min(min, table[index(row, key)]);
+		return min;
+	}
+
+	/**
+	 * Adds to the count of a key
+	 * @param key the key
+	 * @param count count to add
+	 */
+	public void add (int key, long count) {
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row<depth; ++row) {
+			int i = index(row, key);
+			table[i] += count;
+			min = Math.min(min, table[i]);
+		}
+		total += count;
+		offer(key, min);
+	}
+
+	/**
+	 * Updates the top k with the estimated count of a key
+	 */
+	private void offer (int key, long count) {
+		int min_pos = -1;
+		for (int i = 0; i<top_size; ++i) {
+			if (top_keys[i] == key) {
+				top_counts[i] = count;
+				return;
+			}
+			if (min_pos < 0 || top_counts[i] < top_counts[min_pos]) min_pos = i;
+		}
+
+		if (top_size < k) {
+			top_keys[top_size] = key;
+			top_counts[top_size++] = count;
+		}
+		else if (count > top_counts[min_pos]) {
+			top_keys[min_pos] = key;
+			top_counts[min_pos] = count;
+		}
+	}
+
+	/**
+	 * Adds all counts of another sketch to this sketch
+	 * @param other sketch with the same dimensions
+	 */
+	public void merge (CountMinTopK other) {
+		if (other.width != width || other.depth != depth)
+			throw new IllegalArgumentException("Cannot merge sketches with different dimensions.");
+		for (int i = 0; i<table.length; ++i)
+			table[i] += other.table[i];
+		total += other.total;
+
+		// re-estimate candidates of both sketches
+		int[] candidates = new int[top_size+other.top_size];
+		System.arraycopy(top_keys, 0, candidates, 0, top_size);
+		System.arraycopy(other.top_keys, 0, candidates, top_size, other.top_size);
+		top_size = 0;
+		for (int key : candidates)
+			offer(key, estimate(key));
+	}
+
+	/**
+	 * @return total count of all keys
+	 */
+	public long getTotal () {
+		return total;
+	}
+
+	/**
+	 * @return number of keys in the top k
+	 */
+	public int size () {
+		return top_size;
+	}
+
+	/**
+	 * @return the keys of the top k ordered by descending count
+	 */
+	public int[] getTopKeys () {
+		// selection sort, k is small
+		for (int i = 0; i<top_size; ++i) {
+			int max = i;
+			for (int j = i+1; j<top_size; ++j)
+				if (top_counts[j] > top_counts[max]) max = j;
+			int key = top_keys[i]; top_keys[i] = top_keys[max]; top_keys[max] = key;
+			long cnt = top_counts[i]; top_counts[i] = top_counts[max]; top_counts[max] = cnt;
+		}
+		int[] keys = new int[top_size];
+		System.arraycopy(top_keys, 0, keys, 0, top_size);
+		return keys;
+	}
+
+	/**
+	 * @return memory used by the counters in bytes
+	 */
+	public int getSize () {
+		return table.length*8;
+	}
+
+	public void write (DataOutput out) throws IOException {
+		out.writeInt(width);
+		out.writeInt(depth);
+		out.writeInt(k);
+		out.writeLong(total);
+		for (long cnt : table) out.writeLong(cnt);
+		out.writeInt(top_size);
+		for (int i = 0; i<top_size; ++i) out.writeInt(top_keys[i]);
+	}
+
+	public static CountMinTopK read (DataInput in) throws IOException {
+		CountMinTopK sketch = new CountMinTopK(in.readInt(), in.readInt(), in.readInt());
+		sketch.total = in.readLong();
+		for (int i = 0; i<sketch.table.length; ++i) sketch.table[i] = in.readLong();
+		int size = in.readInt();
+		for (int i = 0; i<size; ++i) {
+			int key = in.readInt();
+			sketch.offer(key, sketch.estimate(key));
+		}
+		return sketch;
+	}
+}
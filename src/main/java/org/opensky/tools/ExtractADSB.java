@@ -1,10 +1,7 @@
 package org.opensky.tools;
 
-import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
@@ -52,6 +49,7 @@ public class ExtractADSB {
 		opts.addOption("v", "no-velocity", false, "ignore velocity messages");
 		opts.addOption("i", "no-id", false, "ignore identification messages (callsign)");
 		opts.addOption("b", "basic-only", false, "ignore everything but position, velocity and identification msgs.");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -60,6 +58,7 @@ public class ExtractADSB {
 		List<String> inpaths = null;
 		boolean filter_pos = false, filter_vel = false,
 				filter_id = false, filter_misc = false;
+		RecordFilter filter = null;
 		try {
 			cmd = parser.parse(opts, args);
 
@@ -73,6 +72,11 @@ public class ExtractADSB {
 			filter_vel = cmd.hasOption("v");
 			filter_id = cmd.hasOption("i");
 			filter_misc = cmd.hasOption("b");
+			try {
+				if (cmd.hasOption("filter")) filter = RecordFilter.parse(cmd.getOptionValue("filter"));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid filter: "+e.getMessage());
+			}
 
 			// parse arguments
 			try {
@@ -113,9 +117,6 @@ public class ExtractADSB {
 			System.exit(1);
 		}
 
-		// AVRO file reader
-		DatumReader<ModeSEncodedMessage> datumReader =
-				new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 		// AVRO file writer
 		DatumWriter<ModeSEncodedMessage> datumWriter =
 				new SpecificDatumWriter<ModeSEncodedMessage>(ModeSEncodedMessage.class);
@@ -129,12 +130,13 @@ public class ExtractADSB {
 			writer.create(ModeSEncodedMessage.getClassSchema(), out);
 
 			long last_time = System.currentTimeMillis(), last_msgs_cnt = 0;
-			DataFileReader<ModeSEncodedMessage> fileReader;
+			OskyReader fileReader;
 			ModeSReply reply = null;
 			// iterate over input files
 			for (int i = 0; i<avroin.size(); ++i) {
 				System.err.format("\nOpening %s.\n", inpaths.get(i));
-				fileReader = new DataFileReader<ModeSEncodedMessage>(avroin.get(i), datumReader);
+				fileReader = new OskyReader(avroin.get(i));
+				fileReader.setFilter(filter);
 				while (fileReader.hasNext()) {
 					// count messages
 					++msgs_cnt;
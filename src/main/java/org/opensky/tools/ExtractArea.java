@@ -1,10 +1,7 @@
 package org.opensky.tools;
 
-import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.commons.cli.*;
 import org.opensky.avro.v2.ModeSEncodedMessage;
@@ -19,18 +16,30 @@ import org.opensky.libadsb.tools;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * This file filters data in avro files by geographic area and stores
  * the result in an avro file again.
  * Note: We assume, that messages are ordered by time in avro file
+ *
+ * If the input has a block index (see AvroIndex), blocks without positions
+ * or sensors near the area and without aircraft in the area are skipped.
+ * Blocks up to CPR_WINDOW seconds before a block near the area are read
+ * as well, so the decoder has the even/odd partners of the first positions
+ * of aircraft entering the area. Decoder state older than that window is
+ * still missing, so in rare cases (e.g., gaps in the position messages)
+ * the output of an aircraft can start later than without the index.
  * 
  * Generates KML file with flights from avro file.
  * @author Matthias Schäfer (schaefer@opensky-network.org)
  *
  */
 public class ExtractArea {
+	// max. time between even and odd position messages for global CPR decoding (surface)
+	private static final double CPR_WINDOW = 25.0;
 
 	/**
 	 * Prints help for command line options
@@ -39,7 +48,7 @@ public class ExtractArea {
 	private static void printHelp(Options opts) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(
-				"ExtractArea [options/filters] -c lon,lat -r radius in.avro out.avro",
+				"ExtractArea [options/filters] -c lon,lat -r radius (in.avro | -catalog dir) out.avro",
 				"\nFilter messages from OpenSky's AVRO files for an area of interest\nhttp://www.opensky-network.org\n\n",
 				opts, "");
 	}
@@ -50,6 +59,7 @@ public class ExtractArea {
 	 * generation
 	 */
 	private class Flight {
+		int address; // icao 24-bit address
 		boolean is_in_area;
 		double last;
 
@@ -66,9 +76,13 @@ public class ExtractArea {
 		opts.addOption("i", "icao24", true, "filter by icao 24-bit address (hex)");
 		opts.addOption("s", "start", true, "only messages received after this time (unix timestamp)");
 		opts.addOption("e", "end", true, "only messages received before this time (unix timestamp)");
+		opts.addOption("sensor", true, "only messages of this sensor (serial number)");
+		opts.addOption("filter", true, "only messages matching this expression, e.g. \"df = 17 and tc in 9..18 and snr > 10\" (see README)");
+		opts.addOption("catalog", true, "read the files selected from the catalog of this directory instead of an avro file (see AvroCatalog)");
 		opts.addOption("n", "max-num", true, "max number of flights written to KML");
 		opts.addOption("c", "center", true, "center of the area in decimal degrees");
 		opts.addOption("r", "radius", true, "radius of the area in meters");
+		opts.addOption("coverage", true, "also read blocks of sensors within this distance of the area in meters (indexed files only, default: 0)");
 
 		// parse command line options
 		CommandLineParser parser = new DefaultParser();
@@ -77,8 +91,12 @@ public class ExtractArea {
 		String filter_icao24 = null;
 		Long filter_max = null;
 		Double filter_start = null, filter_end = null, radius = null;
+		Integer filter_sensor = null;
+		RecordFilter filter = null;
+		String catalog = null;
 		String cntr = null, in = null, out = null;
 		Position center = null;
+		double coverage = 0;
 		try {
 			cmd = parser.parse(opts, args);
 
@@ -87,6 +105,8 @@ public class ExtractArea {
 				if (cmd.hasOption("i")) filter_icao24 = cmd.getOptionValue("i");
 				if (cmd.hasOption("s")) filter_start = Double.parseDouble(cmd.getOptionValue("s"));
 				if (cmd.hasOption("e")) filter_end = Double.parseDouble(cmd.getOptionValue("e"));
+				if (cmd.hasOption("sensor")) filter_sensor = Integer.parseInt(cmd.getOptionValue("sensor"));
+				if (cmd.hasOption("catalog")) catalog = cmd.getOptionValue("catalog");
 				if (cmd.hasOption("n")) filter_max = Long.parseLong(cmd.getOptionValue("n"));
 				if (cmd.hasOption("c")) cntr = cmd.getOptionValue("c");
 				else throw new ParseException("Center of area of interest is missing.");
@@ -96,7 +116,10 @@ public class ExtractArea {
 						0.0);
 				if (cmd.hasOption("r")) radius = Double.parseDouble(cmd.getOptionValue("r"));
 				else throw new ParseException("Radius of area of interest is missing.");
-			} catch (NumberFormatException e) {
+				if (cmd.hasOption("coverage")) coverage = Double.parseDouble(cmd.getOptionValue("coverage"));
+				filter = RecordFilter.and(RecordFilter.time(filter_start, filter_end), RecordFilter.icao24(filter_icao24),
+						RecordFilter.sensor(filter_sensor), cmd.hasOption("filter") ? RecordFilter.parse(cmd.getOptionValue("filter")) : null);
+			} catch (IllegalArgumentException e) {
 				throw new ParseException("Invalid arguments: "+e.getMessage());
 			}
 
@@ -107,10 +130,10 @@ public class ExtractArea {
 			}
 
 			// get filename
-			if (cmd.getArgList().size() != 2)
+			if (cmd.getArgList().size() != (catalog == null ? 2 : 1))
 				throw new ParseException("Invalid arguments: need both, input and output file.");
-			in = cmd.getArgList().get(0);
-			out = cmd.getArgList().get(1);
+			if (catalog == null) in = cmd.getArgList().get(0);
+			out = cmd.getArgList().get(cmd.getArgList().size()-1);
 
 		} catch (ParseException e) {
 			// parsing failed
@@ -126,9 +149,11 @@ public class ExtractArea {
 
 		// check if file exists
 		try {
-			infile = new File(in);
-			if(!infile.exists() || infile.isDirectory() || !infile.canRead()) {
-				throw new FileNotFoundException("Input avro file not found or cannot be read.");
+			if (catalog == null) {
+				infile = new File(in);
+				if(!infile.exists() || infile.isDirectory() || !infile.canRead()) {
+					throw new FileNotFoundException("Input avro file not found or cannot be read.");
+				}
 			}
 
 			outfile = new File(out);
@@ -144,11 +169,12 @@ public class ExtractArea {
 			System.exit(1);
 		}
 
-		DatumReader<ModeSEncodedMessage> datumReader = new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 		DatumWriter<ModeSEncodedMessage> datumWriter = new SpecificDatumWriter<ModeSEncodedMessage>(ModeSEncodedMessage.class);
 		long inCount = 0, outCount = 0, flights_cnt = 0;
 		try {
-			DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(infile, datumReader);
+			OskyReader fileReader = new OskyReader(catalog == null ? Collections.singletonList(infile) :
+					AvroCatalog.select(new File(catalog), filter));
+			fileReader.setFilter(filter);
 			DataFileWriter<ModeSEncodedMessage> fileWriter = new DataFileWriter<ModeSEncodedMessage>(datumWriter);
 			fileWriter.create(ModeSEncodedMessage.getClassSchema(), outfile);
 
@@ -169,19 +195,38 @@ public class ExtractArea {
 			// for handling flights
 			ExtractArea aoi = new ExtractArea();
 
+			// skip blocks of indexed files which cannot contain messages in the area
+			final IntSet area_cells = BlockIndex.getCells(center.getLatitude(), center.getLongitude(), radius);
+			final IntSet coverage_cells = BlockIndex.getCells(center.getLatitude(), center.getLongitude(), radius+coverage);
+			final HashSet<Flight> in_area = new HashSet<Flight>();
+			fileReader.setBlockFilter(new OskyReader.BlockFilter() {
+				private boolean isNearArea (BlockIndex index, int block) {
+					for (int cell : index.getPositionCells(block))
+						if (area_cells.contains(cell)) return true;
+					for (int cell : index.getSensorCells(block))
+						if (coverage_cells.contains(cell)) return true;
+					return false;
+				}
+
+				@Override
+				public boolean accept (BlockIndex index, int block) {
+					// also blocks before a block near the area which may contain CPR partners
+					for (int next = block; next < index.size() &&
+							index.getMinTime(next) <= index.getMaxTime(block)+CPR_WINDOW; ++next)
+						if (isNearArea(index, next)) return true;
+					// messages of aircraft in the area are written even without position
+					for (Flight flight : in_area)
+						if (index.mightContainIcao24(block, flight.address)) return true;
+					return false;
+				}
+			});
+
 			while (fileReader.hasNext()) {
 				// get next record from file
 				record = fileReader.next(record);
 
 				inCount++;
 
-				// time filters
-				if (filter_start != null && record.getTimeAtServer()<filter_start)
-					continue;
-
-				if (filter_end != null && record.getTimeAtServer()>filter_end)
-					continue;
-
 				// cleanup decoders every 1.000.000 messages to avoid excessive memory usage
 				if (inCount%1000000 == 0) {
 					decoder.gc();
@@ -206,6 +251,7 @@ public class ExtractArea {
 					if (filter_max != null && flights_cnt>filter_max)
 						continue;
 					flight = aoi.new Flight();
+					flight.address = Integer.parseInt(icao24, 16);
 					flights.put(icao24, flight);
 					flights_cnt++;
 				}
@@ -248,6 +294,9 @@ public class ExtractArea {
 						}
 				}
 
+				if (flight.is_in_area) in_area.add(flight);
+				else in_area.remove(flight);
+
 				if (flight.is_in_area) {
 					fileWriter.append(record);
 					++outCount;
@@ -255,6 +304,8 @@ public class ExtractArea {
 			}
 
 			fileReader.close();
+			if (fileReader.hasIndex())
+				System.err.println("Blocks skipped using the index: "+fileReader.getNumberOfBlocksSkipped());
 			fileWriter.close();
 		} catch (IOException e) {
 			// error while trying to read file
@@ -0,0 +1,277 @@
+package org.opensky.tools;
+
+import org.opensky.avro.v2.ModeSEncodedMessage;
+import org.opensky.libadsb.ModeSDecoder;
+import org.opensky.libadsb.Position;
+import org.opensky.libadsb.exceptions.BadFormatException;
+import org.opensky.libadsb.msgs.AirbornePositionV0Msg;
+import org.opensky.libadsb.msgs.IdentificationMsg;
+import org.opensky.libadsb.msgs.ModeSReply;
+import org.opensky.libadsb.msgs.SurfacePositionV0Msg;
+import org.opensky.libadsb.tools;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Decodes messages and assembles them to flights. Used by the exporters
+ * (Avro2Kml, Avro2GeoJson).
+ *
+ * A flight is identified by its icao24 address. If an aircraft has been
+ * idle for longer than the idle time, its flight is complete and can be
+ * retrieved with {@link #poll(double)}. Later messages of this aircraft
+ * start a new flight.
+ *
+ * Callers which only need the current position (e.g., Avro2GeoJson -p) can
+ * disable buffering of tracks. Then flight.coords only keeps the last point.
+ */
+public class FlightTracker {
+	// fields of ModeSEncodedMessage used by the tracker (see OskyReader.setProjection)
+	public static final String[] FIELDS = {"timeAtServer", "rawMessage", "sensorSerialNumber",
+			"sensorLatitude", "sensorLongitude", "sensorAltitude"};
+
+	private final ModeSDecoder decoder;
+	private final double tolerance;
+	private final double idle;
+	private final String filter_icao24;
+	private final boolean tracks; // false if coords only keep the last point
+
+	// access order: least recently updated flight first
+	private final LinkedHashMap<String, Flight> flights;
+
+	// position of the last update
+	private double pos_longitude, pos_latitude, pos_altitude;
+	private boolean has_position;
+
+	// statistics
+	private long msg_cnt, good_pos_cnt, bad_pos_cnt, err_pos_cnt, flights_cnt;
+
+	/**
+	 * This class is a container for all information
+	 * about a flight
+	 */
+	public static class Flight {
+		public String icao24;
+		public char[] callsign;
+		public double first; // first message seen
+		public double last; // last message seen
+		public TrackBuffer coords; // ordered list of coordinates
+		public IntSet serials; // flight seen by these sensors
+		public boolean contains_unreasonable; // true if there was one position with unreasonable flag
+
+		public Flight (double tolerance) {
+			this(16, tolerance);
+		}
+
+		/**
+		 * @param capacity initial capacity of the track
+		 * @param tolerance max. deviation of the simplified track in meters (0 disables simplification)
+		 */
+		public Flight (int capacity, double tolerance) {
+			coords = new TrackBuffer(capacity, tolerance);
+			callsign = new char[0];
+			contains_unreasonable = false;
+			serials = new IntSet();
+		}
+	}
+
+	/**
+	 * @param tolerance max. deviation of simplified tracks in meters (0 disables simplification)
+	 * @param idle seconds after which a flight is complete (0 means flights are never complete)
+	 * @param filter_icao24 only track this aircraft (hex) or null for all aircraft
+	 */
+	public FlightTracker (double tolerance, double idle, String filter_icao24) {
+		this(tolerance, idle, filter_icao24, true);
+	}
+
+	/**
+	 * @param tolerance max. deviation of simplified tracks in meters (0 disables simplification)
+	 * @param idle seconds after which a flight is complete (0 means flights are never complete)
+	 * @param filter_icao24 only track this aircraft (hex) or null for all aircraft
+	 * @param tracks false if only the current position is needed (coords only keep the last point)
+	 */
+	public FlightTracker (double tolerance, double idle, String filter_icao24, boolean tracks) {
+		decoder = new ModeSDecoder();
+		this.tolerance = tolerance;
+		this.idle = idle;
+		this.filter_icao24 = filter_icao24;
+		this.tracks = tracks;
+		flights = new LinkedHashMap<String, Flight>(1024, 0.75f, true);
+	}
+
+	/**
+	 * Decodes a message and updates the flight of its aircraft
+	 * @param record the message
+	 * @return the updated flight or null if the message could not be decoded or has been filtered
+	 */
+	public Flight update (ModeSEncodedMessage record) {
+		has_position = false;
+
+		// cleanup decoders every 1.000.000 messages to avoid excessive memory usage
+		if (++msg_cnt % 1000000 == 0) {
+			decoder.gc();
+		}
+
+		ModeSReply msg;
+		try {
+			msg = decoder.decode(record.getRawMessage().toString());
+		} catch (BadFormatException e) {
+			return null;
+		}
+		String icao24 = tools.toHexString(msg.getIcao24());
+
+		// icao24 filter
+		if (filter_icao24 != null && !icao24.equals(filter_icao24))
+			return null;
+
+		// select current flight
+		Flight flight = flights.get(icao24);
+		if (flight == null) {
+			flight = tracks ? new Flight(tolerance) : new Flight(2, 0);
+			flight.icao24 = icao24;
+			flight.first = record.getTimeAtServer();
+			flights.put(icao24, flight);
+			++flights_cnt;
+		}
+
+		flight.last = record.getTimeAtServer();
+
+		flight.serials.add(record.getSensorSerialNumber());
+
+		///////// Airborne Position Messages
+		if (msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V0 ||
+				msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V1 ||
+				msg.getType() == ModeSReply.subtype.ADSB_AIRBORN_POSITION_V2) {
+			AirbornePositionV0Msg airpos = (AirbornePositionV0Msg) msg;
+			Position pos = decoder.decodePosition(record.getTimeAtServer().longValue()*1000L, airpos, getReceiver(record));
+			// set altitude to 0 if negative... looks nicer in google earth
+			if (pos != null)
+				addPosition(flight, pos, pos.getAltitude() != null && pos.getAltitude()>0 ? pos.getAltitude() : 0,
+						record.getTimeAtServer());
+			else ++err_pos_cnt;
+		}
+		///////// Surface Position Messages
+		else if (msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V0 ||
+				msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V1 ||
+				msg.getType() == ModeSReply.subtype.ADSB_SURFACE_POSITION_V2) {
+			SurfacePositionV0Msg surfacepos = (SurfacePositionV0Msg) msg;
+			Position pos = decoder.decodePosition(record.getTimeAtServer().longValue()*1000L, surfacepos, getReceiver(record));
+			if (pos != null)
+				addPosition(flight, pos, 0, record.getTimeAtServer());
+			else ++err_pos_cnt;
+		}
+		///////// Identification Messages
+		else if (msg.getType() == ModeSReply.subtype.ADSB_IDENTIFICATION) {
+			IdentificationMsg ident = (IdentificationMsg) msg;
+			flight.callsign = ident.getIdentity();
+		}
+
+		return flight;
+	}
+
+	private static Position getReceiver (ModeSEncodedMessage record) {
+		return record.getSensorLatitude() != null ?
+				new Position(
+						record.getSensorLongitude(),
+						record.getSensorLatitude(),
+						record.getSensorAltitude()) : null;
+	}
+
+	private void addPosition (Flight flight, Position pos, double altitude, double time) {
+		if (pos.isReasonable()) {
+			if (flight.coords.add(pos.getLongitude(), pos.getLatitude(), altitude, time)) { // remove duplicates to safe memory
+				++good_pos_cnt;
+				pos_longitude = pos.getLongitude();
+				pos_latitude = pos.getLatitude();
+				pos_altitude = altitude;
+				has_position = true;
+				if (!tracks) flight.coords.retainLast();
+			}
+		}
+		else {
+			flight.contains_unreasonable = true;
+			++bad_pos_cnt;
+		}
+	}
+
+	/**
+	 * @return true if the last update added a new position to its flight
+	 */
+	public boolean hasPosition () {
+		return has_position;
+	}
+
+	/**
+	 * @return longitude of the position added by the last update
+	 */
+	public double getLongitude () {
+		return pos_longitude;
+	}
+
+	/**
+	 * @return latitude of the position added by the last update
+	 */
+	public double getLatitude () {
+		return pos_latitude;
+	}
+
+	/**
+	 * @return altitude of the position added by the last update
+	 */
+	public double getAltitude () {
+		return pos_altitude;
+	}
+
+	/**
+	 * Removes the next complete flight
+	 * @param now current time (timeAtServer)
+	 * @return a flight which has been idle longer than the idle time or
+	 *         null if there is no such flight
+	 */
+	public Flight poll (double now) {
+		if (idle <= 0 || flights.isEmpty()) return null;
+
+		Iterator<Flight> iter = flights.values().iterator();
+		Flight flight = iter.next();
+		if (now-flight.last <= idle) return null;
+		iter.remove();
+		return flight;
+	}
+
+	/**
+	 * Removes the least recently updated flight regardless of its idle time.
+	 * Use this to retrieve the residual flights at the end of the input.
+	 * @return the flight or null if there are no more flights
+	 */
+	public Flight poll () {
+		if (flights.isEmpty()) return null;
+
+		Iterator<Flight> iter = flights.values().iterator();
+		Flight flight = iter.next();
+		iter.remove();
+		return flight;
+	}
+
+	/**
+	 * @return number of flights currently tracked
+	 */
+	public int size () {
+		return flights.size();
+	}
+
+	public long getNumberOfFlights () {
+		return flights_cnt;
+	}
+
+	public long getNumberOfGoodPositions () {
+		return good_pos_cnt;
+	}
+
+	public long getNumberOfBadPositions () {
+		return bad_pos_cnt;
+	}
+
+	public long getNumberOfErroneousPositions () {
+		return err_pos_cnt;
+	}
+}
@@ -0,0 +1,125 @@
+package org.opensky.tools;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.util.Utf8;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.IOException;
+
+/**
+ * Hand-coded datum reader which decodes OpenSky v2 messages directly into
+ * a {@link MessageFlyweight}. The fields are read in the order of the
+ * schema without any schema resolution, i.e., only files written with
+ * the schema of {@link ModeSEncodedMessage} or the compact v3 schema
+ * ({@link CompactMessage#SCHEMA}) can be read.
+ */
+public class FlyweightDatumReader implements DatumReader<MessageFlyweight> {
+	// UTF-8 encoded sensor types of the v3 enum
+	private static final byte[][] SENSOR_TYPES = new byte[CompactMessage.SENSOR_TYPES.length][];
+	static {
+		for (int i = 0; i<SENSOR_TYPES.length; ++i)
+			SENSOR_TYPES[i] = Utf8.getBytesFor(CompactMessage.SENSOR_TYPES[i]);
+	}
+
+	private boolean compact; // v3 schema
+
+	@Override
+	public void setSchema (Schema schema) {
+		if (schema.equals(ModeSEncodedMessage.getClassSchema())) compact = false;
+		else if (schema.equals(CompactMessage.SCHEMA)) compact = true;
+		else throw new AvroTypeException("Unsupported schema "+schema.getFullName()+" (use ProjectionDatumReader).");
+	}
+
+	/**
+	 * Reads a union of double and null
+	 * @param in the decoder
+	 * @param msg the message
+	 * @param flag presence flag of the field
+	 * @return the value or 0 if it is null
+	 */
+	private static double readNullableDouble (Decoder in, MessageFlyweight msg, int flag) throws IOException {
+		if (in.readIndex() == 1) {
+			in.readNull();
+			return 0;
+		}
+		msg.present |= flag;
+		return in.readDouble();
+	}
+
+	/**
+	 * Reads a union of float and null
+	 * @param in the decoder
+	 * @param msg the message
+	 * @param flag presence flag of the field
+	 * @return the value or 0 if it is null
+	 */
+	private static double readNullableFloat (Decoder in, MessageFlyweight msg, int flag) throws IOException {
+		if (in.readIndex() == 1) {
+			in.readNull();
+			return 0;
+		}
+		msg.present |= flag;
+		return in.readFloat();
+	}
+
+	/**
+	 * Reads the sensor type of the v3 schema (union of enum and string)
+	 * @param in the decoder
+	 * @param reuse string to reuse
+	 * @return the sensor type
+	 */
+	private static Utf8 readSensorType (Decoder in, Utf8 reuse) throws IOException {
+		if (in.readIndex() == 1) return in.readString(reuse);
+		byte[] type = SENSOR_TYPES[in.readEnum()];
+		reuse.setByteLength(type.length);
+		System.arraycopy(type, 0, reuse.getBytes(), 0, type.length);
+		return reuse;
+	}
+
+	/**
+	 * Reads a message with the compact v3 schema
+	 * @param in the decoder
+	 * @param msg the message
+	 * @return the message
+	 */
+	private static MessageFlyweight readCompact (Decoder in, MessageFlyweight msg) throws IOException {
+		msg.sensor_type = readSensorType(in, msg.sensor_type);
+		msg.sensor_latitude = readNullableDouble(in, msg, MessageFlyweight.SENSOR_LATITUDE);
+		msg.sensor_longitude = readNullableDouble(in, msg, MessageFlyweight.SENSOR_LONGITUDE);
+		msg.sensor_altitude = readNullableDouble(in, msg, MessageFlyweight.SENSOR_ALTITUDE);
+		msg.time_at_server = CompactMessage.toSeconds(in.readLong());
+		msg.time_at_sensor = readNullableDouble(in, msg, MessageFlyweight.TIME_AT_SENSOR);
+		msg.timestamp = readNullableDouble(in, msg, MessageFlyweight.TIMESTAMP);
+		msg.raw = CompactMessage.readHex(in, msg.raw);
+		msg.sensor_serial = in.readInt();
+		msg.rssi_packet = readNullableFloat(in, msg, MessageFlyweight.RSSI_PACKET);
+		msg.rssi_preamble = readNullableFloat(in, msg, MessageFlyweight.RSSI_PREAMBLE);
+		msg.snr = readNullableFloat(in, msg, MessageFlyweight.SNR);
+		msg.confidence = readNullableDouble(in, msg, MessageFlyweight.CONFIDENCE);
+		return msg;
+	}
+
+	@Override
+	public MessageFlyweight read (MessageFlyweight reuse, Decoder in) throws IOException {
+		MessageFlyweight msg = reuse != null ? reuse : new MessageFlyweight();
+		msg.present = 0;
+		if (compact) return readCompact(in, msg);
+		msg.sensor_type = in.readString(msg.sensor_type);
+		msg.sensor_latitude = readNullableDouble(in, msg, MessageFlyweight.SENSOR_LATITUDE);
+		msg.sensor_longitude = readNullableDouble(in, msg, MessageFlyweight.SENSOR_LONGITUDE);
+		msg.sensor_altitude = readNullableDouble(in, msg, MessageFlyweight.SENSOR_ALTITUDE);
+		msg.time_at_server = in.readDouble();
+		msg.time_at_sensor = readNullableDouble(in, msg, MessageFlyweight.TIME_AT_SENSOR);
+		msg.timestamp = readNullableDouble(in, msg, MessageFlyweight.TIMESTAMP);
+		msg.raw = in.readString(msg.raw);
+		msg.sensor_serial = in.readInt();
+		msg.rssi_packet = readNullableDouble(in, msg, MessageFlyweight.RSSI_PACKET);
+		msg.rssi_preamble = readNullableDouble(in, msg, MessageFlyweight.RSSI_PREAMBLE);
+		msg.snr = readNullableDouble(in, msg, MessageFlyweight.SNR);
+		msg.confidence = readNullableDouble(in, msg, MessageFlyweight.CONFIDENCE);
+		return msg;
+	}
+}
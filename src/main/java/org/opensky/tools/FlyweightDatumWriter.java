@@ -0,0 +1,58 @@
+package org.opensky.tools;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.IOException;
+
+/**
+ * Hand-coded datum writer for {@link MessageFlyweight}s which writes
+ * records with the schema of {@link ModeSEncodedMessage}, e.g., for
+ * copying messages read with {@link FlyweightDatumReader}.
+ */
+public class FlyweightDatumWriter implements DatumWriter<MessageFlyweight> {
+
+	@Override
+	public void setSchema (Schema schema) {
+		if (!schema.equals(ModeSEncodedMessage.getClassSchema()))
+			throw new AvroTypeException("Unsupported schema "+schema.getFullName()+".");
+	}
+
+	/**
+	 * Writes a union of double and null
+	 * @param out the encoder
+	 * @param msg the message
+	 * @param flag presence flag of the field
+	 * @param value the value
+	 */
+	private static void writeNullableDouble (Encoder out, MessageFlyweight msg, int flag, double value) throws IOException {
+		if ((msg.present & flag) == 0) {
+			out.writeIndex(1);
+			out.writeNull();
+		}
+		else {
+			out.writeIndex(0);
+			out.writeDouble(value);
+		}
+	}
+
+	@Override
+	public void write (MessageFlyweight msg, Encoder out) throws IOException {
+		out.writeString(msg.sensor_type);
+		writeNullableDouble(out, msg, MessageFlyweight.SENSOR_LATITUDE, msg.sensor_latitude);
+		writeNullableDouble(out, msg, MessageFlyweight.SENSOR_LONGITUDE, msg.sensor_longitude);
+		writeNullableDouble(out, msg, MessageFlyweight.SENSOR_ALTITUDE, msg.sensor_altitude);
+		out.writeDouble(msg.time_at_server);
+		writeNullableDouble(out, msg, MessageFlyweight.TIME_AT_SENSOR, msg.time_at_sensor);
+		writeNullableDouble(out, msg, MessageFlyweight.TIMESTAMP, msg.timestamp);
+		out.writeString(msg.raw);
+		out.writeInt(msg.sensor_serial);
+		writeNullableDouble(out, msg, MessageFlyweight.RSSI_PACKET, msg.rssi_packet);
+		writeNullableDouble(out, msg, MessageFlyweight.RSSI_PREAMBLE, msg.rssi_preamble);
+		writeNullableDouble(out, msg, MessageFlyweight.SNR, msg.snr);
+		writeNullableDouble(out, msg, MessageFlyweight.CONFIDENCE, msg.confidence);
+	}
+}
@@ -0,0 +1,158 @@
+package org.opensky.tools;
+
+import org.opensky.tools.FlightTracker.Flight;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming writer for newline-delimited GeoJSON (one feature per line)
+ *
+ * Numbers are formatted into a reused char buffer with
+ * {@link NumberFormatter}, so writing a feature does not create
+ * intermediate Strings.
+ */
+public class GeoJsonWriter {
+	private final Writer out;
+	private final char[] buf;
+	private long num_features;
+
+	/**
+	 * @param file file the features are written to
+	 * @throws IOException if the file cannot be opened
+	 */
+	public GeoJsonWriter (File file) throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")), 1<<16);
+		buf = new char[64];
+		num_features = 0;
+	}
+
+	/**
+	 * Writes the track of a flight as LineString feature. Tracks with a
+	 * single position are written as Point and flights without positions
+	 * have a null geometry.
+	 * @param flight the flight
+	 * @throws IOException if writing fails
+	 */
+	public void writeLineString (Flight flight) throws IOException {
+		TrackBuffer coords = flight.coords;
+
+		out.write("{\"type\":\"Feature\",\"geometry\":");
+		if (coords.size() == 0)
+			out.write("null");
+		else if (coords.size() == 1) {
+			out.write("{\"type\":\"Point\",\"coordinates\":");
+			writeCoordinate(coords.getLongitude(0), coords.getLatitude(0), coords.getAltitude(0));
+			out.write('}');
+		}
+		else {
+			out.write("{\"type\":\"LineString\",\"coordinates\":[");
+			for (int i = 0; i<coords.size(); ++i) {
+				if (i > 0) out.write(',');
+				writeCoordinate(coords.getLongitude(i), coords.getLatitude(i), coords.getAltitude(i));
+			}
+			out.write("]}");
+		}
+
+		out.write(",\"properties\":{");
+		writeFlightProperties(flight);
+		out.write(",\"first\":");
+		writeNumber(flight.first, 6);
+		out.write(",\"last\":");
+		writeNumber(flight.last, 6);
+		out.write(",\"serials\":[");
+		for (int i = 0; i<flight.serials.size(); ++i) {
+			if (i > 0) out.write(',');
+			writeNumber(flight.serials.get(i));
+		}
+		out.write("],\"unreasonable\":");
+		out.write(flight.contains_unreasonable ? "true" : "false");
+		out.write("}}\n");
+		++num_features;
+	}
+
+	/**
+	 * Writes a single position as Point feature
+	 * @param flight flight of the position
+	 * @param time timeAtServer of the position
+	 * @param longitude in decimal degrees
+	 * @param latitude in decimal degrees
+	 * @param altitude in meters
+	 * @param serial serial number of the sensor which received the position
+	 * @throws IOException if writing fails
+	 */
+	public void writePoint (Flight flight, double time, double longitude, double latitude,
+			double altitude, int serial) throws IOException {
+		out.write("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":");
+		writeCoordinate(longitude, latitude, altitude);
+		out.write("},\"properties\":{");
+		writeFlightProperties(flight);
+		out.write(",\"time\":");
+		writeNumber(time, 6);
+		out.write(",\"first\":");
+		writeNumber(flight.first, 6);
+		out.write(",\"serial\":");
+		writeNumber(serial);
+		out.write("}}\n");
+		++num_features;
+	}
+
+	/**
+	 * @return number of features written so far
+	 */
+	public long getNumberOfFeatures () {
+		return num_features;
+	}
+
+	public void close () throws IOException {
+		out.close();
+	}
+
+	private void writeFlightProperties (Flight flight) throws IOException {
+		out.write("\"icao24\":");
+		writeString(flight.icao24);
+		out.write(",\"callsign\":");
+		writeString(new String(flight.callsign).trim());
+	}
+
+	private void writeCoordinate (double longitude, double latitude, double altitude) throws IOException {
+		int len = 0;
+		buf[len++] = '[';
+		len = NumberFormatter.format(longitude, 7, buf, len);
+		buf[len++] = ',';
+		len = NumberFormatter.format(latitude, 7, buf, len);
+		buf[len++] = ',';
+		len = NumberFormatter.format(altitude, 2, buf, len);
+		buf[len++] = ']';
+		out.write(buf, 0, len);
+	}
+
+	private void writeNumber (double value, int decimals) throws IOException {
+		out.write(buf, 0, NumberFormatter.format(value, decimals, buf, 0));
+	}
+
+	private void writeNumber (long value) throws IOException {
+		out.write(buf, 0, NumberFormatter.format(value, buf, 0));
+	}
+
+	private void writeString (String str) throws IOException {
+		out.write('"');
+		for (int i = 0; i<str.length(); ++i) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			}
+			else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			}
+			else out.write(c);
+		}
+		out.write('"');
+	}
+}
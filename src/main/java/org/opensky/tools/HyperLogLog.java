@@ -0,0 +1,106 @@
+package org.opensky.tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog sketch for estimating the number of distinct values with a
+ * fixed amount of memory (2^precision bytes). The standard error of the
+ * estimate is about 1.04/sqrt(2^precision). Sketches with the same
+ * precision can be merged.
+ */
+public class HyperLogLog {
+	private final int precision;
+	private final byte[] registers;
+
+	/**
+	 * @param precision number of index bits (4-18)
+	 */
+	public HyperLogLog (int precision) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException("Precision must be between 4 and 18.");
+		this.precision = precision;
+		registers = new byte[1<<precision];
+	}
+
+	/**
+	 * 64 bit finalizer of MurmurHash3
+	 * @param value the value
+	 * @return well distributed hash of value
+	 */
+	public static long hash (long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Adds a value to the sketch
+	 * @param value the value (will be hashed)
+	 */
+	public void add (long value) {
+		long h = hash(value);
+		int index = (int) (h >>> (64-precision));
+		// position of the first 1-bit in the remaining bits
+		int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision-1))) + 1;
+		if (rank > registers[index]) registers[index] = (byte) rank;
+	}
+
+	/**
+	 * Adds all values of another sketch to this sketch
+	 * @param other sketch with the same precision
+	 */
+	public void merge (HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Cannot merge sketches with different precision.");
+		for (int i = 0; i<registers.length; ++i)
+			if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+	}
+
+	/**
+	 * @return estimated number of distinct values
+	 */
+	public long estimate () {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += 1.0/(1L << r);
+			if (r == 0) ++zeros;
+		}
+
+		double alpha;
+		if (m == 16) alpha = 0.673;
+		else if (m == 32) alpha = 0.697;
+		else if (m == 64) alpha = 0.709;
+		else alpha = 0.7213/(1+1.079/m);
+
+		double estimate = alpha*m*m/sum;
+		// small range correction (linear counting)
+		if (estimate <= 2.5*m && zeros > 0)
+			estimate = m*Math.log((double) m/zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * @return memory used by the registers in bytes
+	 */
+	public int getSize () {
+		return registers.length;
+	}
+
+	public void write (DataOutput out) throws IOException {
+		out.writeByte(precision);
+		out.write(registers);
+	}
+
+	public static HyperLogLog read (DataInput in) throws IOException {
+		HyperLogLog hll = new HyperLogLog(in.readByte());
+		in.readFully(hll.registers);
+		return hll;
+	}
+}
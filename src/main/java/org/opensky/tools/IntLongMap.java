@@ -0,0 +1,132 @@
+package org.opensky.tools;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive int keys to long values (open addressing), e.g.,
+ * for counters per sensor. Iteration via {@link #getKey(int)} and
+ * {@link #getValue(int)} returns the entries in insertion order.
+ */
+public class IntLongMap {
+	private int[] keys; // in insertion order
+	private long[] values;
+	private int[] table; // index+1 into keys, 0 means empty slot
+	private int size;
+
+	public IntLongMap () {
+		this(16);
+	}
+
+	public IntLongMap (int capacity) {
+		keys = new int[capacity];
+		values = new long[capacity];
+		table = new int[tableSize(capacity)];
+		size = 0;
+	}
+
+	private static int tableSize (int capacity) {
+		int n = 8;
+		while (n < capacity*2) n <<= 1;
+		return n;
+	}
+
+	private static int hash (int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param key the key
+	 * @return index of the key or -1 if it is not in this map
+	 */
+	private int indexOf (int key) {
+		int mask = table.length-1;
+		for (int i = hash(key) & mask; table[i] != 0; i = (i+1) & mask)
+			if (keys[table[i]-1] == key) return table[i]-1;
+		return -1;
+	}
+
+	/**
+	 * @param key the key
+	 * @return true if the key is in this map
+	 */
+	public boolean containsKey (int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param key the key
+	 * @return value of the key or 0 if the key is not in this map
+	 */
+	public long get (int key) {
+		int i = indexOf(key);
+		return i < 0 ? 0 : values[i];
+	}
+
+	/**
+	 * Adds delta to the value of key. Keys which are not in the map
+	 * start with 0.
+	 * @param key the key
+	 * @param delta value to add
+	 * @return the new value
+	 */
+	public long add (int key, long delta) {
+		int mask = table.length-1;
+		int i = hash(key) & mask;
+		for (; table[i] != 0; i = (i+1) & mask)
+			if (keys[table[i]-1] == key) return values[table[i]-1] += delta;
+
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size*2);
+			values = Arrays.copyOf(values, size*2);
+		}
+		keys[size] = key;
+		values[size++] = delta;
+		table[i] = size;
+
+		if (size*2 > table.length) rehash();
+		return delta;
+	}
+
+	private void rehash () {
+		table = new int[table.length*2];
+		int mask = table.length-1;
+		for (int j = 0; j<size; ++j) {
+			int i = hash(keys[j]) & mask;
+			while (table[i] != 0) i = (i+1) & mask;
+			table[i] = j+1;
+		}
+	}
+
+	/**
+	 * Adds all values of another map to the values of this map
+	 * @param other the other map
+	 */
+	public void addAll (IntLongMap other) {
+		for (int i = 0; i<other.size; ++i)
+			add(other.keys[i], other.values[i]);
+	}
+
+	/**
+	 * @return number of keys in this map
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @param i index
+	 * @return the i-th key that was added to this map
+	 */
+	public int getKey (int i) {
+		return keys[i];
+	}
+
+	/**
+	 * @param i index
+	 * @return value of the i-th key that was added to this map
+	 */
+	public long getValue (int i) {
+		return values[i];
+	}
+}
@@ -0,0 +1,111 @@
+package org.opensky.tools;
+
+import java.util.Arrays;
+
+/**
+ * Small set of primitive ints (open addressing). Iteration via
+ * {@link #get(int)} returns the values in insertion order.
+ */
+public class IntSet {
+	private int[] values; // in insertion order
+	private int[] table; // index+1 into values, 0 means empty slot
+	private int size;
+
+	public IntSet () {
+		this(4);
+	}
+
+	public IntSet (int capacity) {
+		values = new int[capacity];
+		table = new int[tableSize(capacity)];
+		size = 0;
+	}
+
+	private static int tableSize (int capacity) {
+		int n = 8;
+		while (n < capacity*2) n <<= 1;
+		return n;
+	}
+
+	private static int hash (int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param value the value
+	 * @return true if the value is in this set
+	 */
+	public boolean contains (int value) {
+		int mask = table.length-1;
+		for (int i = hash(value) & mask; table[i] != 0; i = (i+1) & mask)
+			if (values[table[i]-1] == value) return true;
+		return false;
+	}
+
+	/**
+	 * @param value the value
+	 * @return true if the value was not yet in this set
+	 */
+	public boolean add (int value) {
+		int mask = table.length-1;
+		int i = hash(value) & mask;
+		for (; table[i] != 0; i = (i+1) & mask)
+			if (values[table[i]-1] == value) return false;
+
+		if (size == values.length)
+			values = Arrays.copyOf(values, size*2);
+		values[size++] = value;
+		table[i] = size;
+
+		if (size*2 > table.length) rehash();
+		return true;
+	}
+
+	private void rehash () {
+		table = new int[table.length*2];
+		int mask = table.length-1;
+		for (int j = 0; j<size; ++j) {
+			int i = hash(values[j]) & mask;
+			while (table[i] != 0) i = (i+1) & mask;
+			table[i] = j+1;
+		}
+	}
+
+	/**
+	 * Adds all values of another set to this set
+	 * @param other the other set
+	 */
+	public void addAll (IntSet other) {
+		for (int i = 0; i<other.size; ++i)
+			add(other.values[i]);
+	}
+
+	/**
+	 * @return number of values in this set
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @param i index
+	 * @return the i-th value that was added to this set
+	 */
+	public int get (int i) {
+		return values[i];
+	}
+
+	/**
+	 * @param separator separator between the values
+	 * @return all values in insertion order
+	 */
+	public String join (String separator) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i<size; ++i) {
+			if (i > 0) str.append(separator);
+			str.append(values[i]);
+		}
+		return str.toString();
+	}
+}
@@ -0,0 +1,296 @@
+package org.opensky.tools;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming KML writer based on StAX
+ *
+ * Placemarks are written as soon as they are complete. Since KML expects
+ * placemarks within their folder, every folder is spooled to a temporary
+ * file which is appended to the document on {@link #close()}. Memory usage
+ * is therefore independent of the size of the output.
+ */
+public class KmlWriter {
+	protected static final String KML_NS = "http://www.opengis.net/kml/2.2";
+
+	protected final OutputStream out;
+	protected final String name;
+	protected final List<String[]> styles; // id, color, width
+	protected final List<String> folder_names;
+	private final List<Folder> folders;
+	private final SimpleDateFormat date_formatter;
+	private final char[] buf;
+
+	private XMLStreamWriter placemark; // writer of the current placemark
+	private int coord_cnt;
+
+	/**
+	 * Spooled content of a KML folder
+	 */
+	private static class Folder {
+		File spool;
+		OutputStream out;
+		XMLStreamWriter xml;
+	}
+
+	/**
+	 * @param out stream the KML document is written to
+	 * @param name name of the KML document
+	 */
+	public KmlWriter (OutputStream out, String name) {
+		this.out = out;
+		this.name = name;
+		styles = new ArrayList<String[]>();
+		folder_names = new ArrayList<String>();
+		folders = new ArrayList<Folder>();
+		date_formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		buf = new char[64];
+	}
+
+	/**
+	 * @param file file the KML document is written to
+	 * @param name name of the KML document
+	 * @throws IOException if file cannot be opened
+	 */
+	public KmlWriter (File file, String name) throws IOException {
+		this(new BufferedOutputStream(new FileOutputStream(file), 1<<16), name);
+	}
+
+	/**
+	 * Adds a line style to the document
+	 * @param id id of the style
+	 * @param color color as aabbggrr hex string
+	 * @param width line width
+	 */
+	public void addLineStyle (String id, String color, int width) {
+		styles.add(new String[] {id, color, Integer.toString(width)});
+	}
+
+	/**
+	 * Adds a folder to the document
+	 * @param name name of the folder
+	 * @return id of the folder used for {@link #beginPlacemark}
+	 * @throws IOException if the folder cannot be spooled
+	 */
+	public int addFolder (String name) throws IOException {
+		Folder folder = new Folder();
+		folder.spool = File.createTempFile("osky", ".kml");
+		folder.spool.deleteOnExit();
+		folder.out = new BufferedOutputStream(new FileOutputStream(folder.spool), 1<<16);
+		folder.xml = createWriter(folder.out);
+		folders.add(folder);
+		folder_names.add(name);
+		return folder_names.size()-1;
+	}
+
+	/**
+	 * Starts a placemark with a line string. Add coordinates with
+	 * {@link #addCoordinate} and finish it with {@link #endPlacemark()}.
+	 * @param folder folder as returned by {@link #addFolder}
+	 * @param name name of the placemark
+	 * @param description description of the placemark
+	 * @param begin start of the time span in unix time (ms)
+	 * @param end end of the time span in unix time (ms)
+	 * @param style url of the style, e.g. "#reasonable"
+	 * @param id id of the line string
+	 * @throws IOException if writing fails
+	 */
+	public void beginPlacemark (int folder, String name, String description,
+			long begin, long end, String style, String id) throws IOException {
+		writePlacemarkStart(folders.get(folder).xml, name, description, begin, end, style, id);
+	}
+
+	/**
+	 * Adds a coordinate to the line string of the current placemark
+	 * @param longitude in decimal degrees
+	 * @param latitude in decimal degrees
+	 * @param altitude in meters
+	 * @throws IOException if writing fails
+	 */
+	public void addCoordinate (double longitude, double latitude, double altitude) throws IOException {
+		int len = 0;
+		if (coord_cnt++ > 0) buf[len++] = ' ';
+		len = NumberFormatter.format(longitude, 7, buf, len);
+		buf[len++] = ',';
+		len = NumberFormatter.format(latitude, 7, buf, len);
+		buf[len++] = ',';
+		len = NumberFormatter.format(altitude, 2, buf, len);
+		try {
+			placemark.writeCharacters(buf, 0, len);
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Finishes the current placemark
+	 * @throws IOException if writing fails
+	 */
+	public void endPlacemark () throws IOException {
+		try {
+			placemark.writeEndElement(); // coordinates
+			placemark.writeEndElement(); // LineString
+			placemark.writeEndElement(); // Placemark
+			placemark.writeCharacters("\n");
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+		placemark = null;
+	}
+
+	/**
+	 * Writes the document with all folders and closes the output stream
+	 * @throws IOException if writing fails
+	 */
+	public void close () throws IOException {
+		try {
+			XMLStreamWriter xml = createWriter(out);
+			writeDocumentStart(xml, name);
+
+			byte[] copy_buf = new byte[1<<16];
+			for (int i = 0; i<folders.size(); ++i) {
+				Folder folder = folders.get(i);
+				folder.xml.close();
+				folder.out.close();
+
+				xml.writeStartElement("Folder");
+				writeElement(xml, "name", folder_names.get(i));
+				xml.writeCharacters("\n");
+				xml.flush();
+
+				// append spooled placemarks
+				InputStream in = new BufferedInputStream(new FileInputStream(folder.spool));
+				try {
+					int len;
+					while ((len = in.read(copy_buf)) > 0)
+						out.write(copy_buf, 0, len);
+				} finally {
+					in.close();
+				}
+				folder.spool.delete();
+
+				xml.writeEndElement();
+				xml.writeCharacters("\n");
+			}
+
+			writeDocumentEnd(xml);
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param out target stream
+	 * @return UTF-8 XML writer for the stream
+	 * @throws IOException if the writer cannot be created
+	 */
+	protected static XMLStreamWriter createWriter (OutputStream out) throws IOException {
+		try {
+			return XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the start of a placemark up to the coordinates of the line
+	 * string. The following coordinates are written to the same writer.
+	 * @see #beginPlacemark
+	 */
+	protected void writePlacemarkStart (XMLStreamWriter xml, String name, String description,
+			long begin, long end, String style, String id) throws IOException {
+		placemark = xml;
+		coord_cnt = 0;
+		try {
+			placemark.writeStartElement("Placemark");
+			writeElement(placemark, "name", name);
+			writeElement(placemark, "description", description);
+			writeTimeSpan(placemark, begin, end);
+			writeElement(placemark, "styleUrl", style);
+			placemark.writeStartElement("LineString");
+			placemark.writeAttribute("id", id);
+			writeElement(placemark, "extrude", "0");
+			writeElement(placemark, "altitudeMode", "absolute");
+			placemark.writeStartElement("coordinates");
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the XML declaration, the opening kml and Document
+	 * elements, the name and all styles
+	 * @param xml target writer
+	 * @param name name of the document
+	 * @throws XMLStreamException if writing fails
+	 */
+	protected void writeDocumentStart (XMLStreamWriter xml, String name) throws XMLStreamException {
+		xml.writeStartDocument("UTF-8", "1.0");
+		xml.writeCharacters("\n");
+		xml.writeStartElement("kml");
+		xml.writeDefaultNamespace(KML_NS);
+		xml.writeStartElement("Document");
+		writeElement(xml, "name", name);
+		xml.writeCharacters("\n");
+
+		for (String[] style : styles) {
+			xml.writeStartElement("Style");
+			xml.writeAttribute("id", style[0]);
+			xml.writeStartElement("LineStyle");
+			writeElement(xml, "color", style[1]);
+			writeElement(xml, "colorMode", "normal");
+			writeElement(xml, "width", style[2]);
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeCharacters("\n");
+		}
+	}
+
+	/**
+	 * Closes the Document and kml elements and the writer
+	 * @param xml target writer
+	 * @throws XMLStreamException if writing fails
+	 */
+	protected static void writeDocumentEnd (XMLStreamWriter xml) throws XMLStreamException {
+		xml.writeEndElement(); // Document
+		xml.writeEndElement(); // kml
+		xml.writeEndDocument();
+		xml.close();
+	}
+
+	/**
+	 * Writes a TimeSpan element
+	 * @param xml target writer
+	 * @param begin in unix time (ms)
+	 * @param end in unix time (ms)
+	 * @throws XMLStreamException if writing fails
+	 */
+	protected void writeTimeSpan (XMLStreamWriter xml, long begin, long end) throws XMLStreamException {
+		xml.writeStartElement("TimeSpan");
+		writeElement(xml, "begin", date_formatter.format(new Date(begin)));
+		writeElement(xml, "end", date_formatter.format(new Date(end)));
+		xml.writeEndElement();
+	}
+
+	protected static void writeElement (XMLStreamWriter xml, String name, String text) throws XMLStreamException {
+		xml.writeStartElement(name);
+		xml.writeCharacters(text);
+		xml.writeEndElement();
+	}
+}
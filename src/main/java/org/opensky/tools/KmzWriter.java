@@ -0,0 +1,399 @@
+package org.opensky.tools;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a KMZ archive with regionated and time-tiled KML documents
+ *
+ * Each placemark belongs to the tile set with {@link #setTile} before
+ * {@link #beginPlacemark} is called. A tile is a cell of a lat/lon grid
+ * within a time slice. The root document doc.kml contains one NetworkLink
+ * per tile with a Region and a TimeSpan, so viewers only load the tiles
+ * that are visible. The TimeSpan of a link covers the slice and the
+ * TimeSpans of all its placemarks. Placemarks are spooled to a temporary file while they
+ * are added. On {@link #close()}, the tile documents are generated in
+ * parallel and added to the archive.
+ */
+public class KmzWriter extends KmlWriter {
+	private static final int NO_REGION = Integer.MIN_VALUE;
+
+	private final double tile_size; // in degrees
+	private final double slice_length; // in seconds
+	private final int threads;
+
+	// spool for all placemarks
+	private final File spool;
+	private final CountingOutputStream spool_out;
+	private final XMLStreamWriter spool_xml;
+
+	// tile of the next placemark
+	private int cur_slice, cur_lat, cur_lon;
+
+	// location of spooled placemarks
+	private int[] rec_slice, rec_lat, rec_lon, rec_folder;
+	private long[] rec_start, rec_end;
+	private long[] rec_begin_time, rec_end_time; // TimeSpan of the placemark
+	private int rec_cnt;
+
+	/**
+	 * Counts bytes written to the spool to locate placemarks
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream (OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * @param file the KMZ file
+	 * @param name name of the KML document
+	 * @param tile_size size of tiles in decimal degrees
+	 * @param slice_length length of time slices in seconds
+	 * @param threads number of threads used to generate tiles
+	 * @throws IOException if the output or spool file cannot be opened
+	 */
+	public KmzWriter (File file, String name, double tile_size, double slice_length, int threads) throws IOException {
+		super(new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16)), name);
+		this.tile_size = tile_size;
+		this.slice_length = slice_length;
+		this.threads = threads;
+
+		spool = File.createTempFile("osky", ".kml");
+		spool.deleteOnExit();
+		spool_out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(spool), 1<<16));
+		spool_xml = createWriter(spool_out);
+
+		rec_slice = new int[1024];
+		rec_lat = new int[1024];
+		rec_lon = new int[1024];
+		rec_folder = new int[1024];
+		rec_start = new long[1024];
+		rec_end = new long[1024];
+		rec_begin_time = new long[1024];
+		rec_end_time = new long[1024];
+		rec_cnt = 0;
+		setTile(0, null, null);
+	}
+
+	@Override
+	public int addFolder (String name) {
+		folder_names.add(name);
+		return folder_names.size()-1;
+	}
+
+	/**
+	 * Sets the tile of the following placemarks
+	 * @param time unix timestamp in seconds
+	 * @param latitude in decimal degrees or null for placemarks without region
+	 * @param longitude in decimal degrees or null for placemarks without region
+	 */
+	public void setTile (double time, Double latitude, Double longitude) {
+		cur_slice = getSliceIndex(time);
+		cur_lat = latitude != null ? getTileIndex(latitude) : NO_REGION;
+		cur_lon = longitude != null ? getTileIndex(longitude) : NO_REGION;
+	}
+
+	/**
+	 * @param degrees latitude or longitude in decimal degrees
+	 * @return index of the grid cell
+	 */
+	public int getTileIndex (double degrees) {
+		return (int) Math.floor(degrees/tile_size);
+	}
+
+	/**
+	 * @param time unix timestamp in seconds
+	 * @return index of the time slice
+	 */
+	public int getSliceIndex (double time) {
+		return (int) Math.floor(time/slice_length);
+	}
+
+	@Override
+	public void beginPlacemark (int folder, String name, String description,
+			long begin, long end, String style, String id) throws IOException {
+		if (rec_cnt == rec_slice.length) {
+			int capacity = rec_cnt*2;
+			rec_slice = Arrays.copyOf(rec_slice, capacity);
+			rec_lat = Arrays.copyOf(rec_lat, capacity);
+			rec_lon = Arrays.copyOf(rec_lon, capacity);
+			rec_folder = Arrays.copyOf(rec_folder, capacity);
+			rec_start = Arrays.copyOf(rec_start, capacity);
+			rec_end = Arrays.copyOf(rec_end, capacity);
+			rec_begin_time = Arrays.copyOf(rec_begin_time, capacity);
+			rec_end_time = Arrays.copyOf(rec_end_time, capacity);
+		}
+		rec_slice[rec_cnt] = cur_slice;
+		rec_lat[rec_cnt] = cur_lat;
+		rec_lon[rec_cnt] = cur_lon;
+		rec_folder[rec_cnt] = folder;
+		rec_start[rec_cnt] = spool_out.count;
+		rec_begin_time[rec_cnt] = begin;
+		rec_end_time[rec_cnt] = end;
+
+		writePlacemarkStart(spool_xml, name, description, begin, end, style, id);
+	}
+
+	@Override
+	public void endPlacemark () throws IOException {
+		super.endPlacemark();
+		try {
+			spool_xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+		rec_end[rec_cnt++] = spool_out.count;
+	}
+
+	/**
+	 * @param a first record
+	 * @param b second record
+	 * @return true if both records belong to the same tile
+	 */
+	private boolean sameTile (int a, int b) {
+		return rec_slice[a] == rec_slice[b] && rec_lat[a] == rec_lat[b] && rec_lon[a] == rec_lon[b];
+	}
+
+	private static int compare (int a, int b) {
+		return a < b ? -1 : (a > b ? 1 : 0);
+	}
+
+	/**
+	 * Generates the root document and all tiles and closes the archive
+	 * @throws IOException if writing fails
+	 */
+	@Override
+	public void close () throws IOException {
+		ZipOutputStream zip = (ZipOutputStream) out;
+		ExecutorService pool = null;
+		try {
+			spool_xml.close();
+			spool_out.close();
+
+			// group placemarks by tile and folder, keep the order within a tile
+			Integer[] order = new Integer[rec_cnt];
+			for (int i = 0; i<rec_cnt; ++i) order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = KmzWriter.compare(rec_slice[a], rec_slice[b]);
+					if (c == 0) c = KmzWriter.compare(rec_lat[a], rec_lat[b]);
+					if (c == 0) c = KmzWriter.compare(rec_lon[a], rec_lon[b]);
+					if (c == 0) c = KmzWriter.compare(rec_folder[a], rec_folder[b]);
+					if (c == 0) c = KmzWriter.compare(a, b);
+					return c;
+				}
+			});
+
+			// find tiles
+			List<int[]> tiles = new ArrayList<int[]>(); // first and last+1 index in order
+			for (int i = 0; i<rec_cnt; ++i) {
+				if (i == 0 || !sameTile(order[i-1], order[i]))
+					tiles.add(new int[] {i, i+1});
+				else tiles.get(tiles.size()-1)[1] = i+1;
+			}
+
+			// root document
+			zip.putNextEntry(new ZipEntry("doc.kml"));
+			XMLStreamWriter xml = createWriter(zip);
+			writeDocumentStart(xml, name);
+			for (int[] tile : tiles)
+				writeNetworkLink(xml, order, tile[0], tile[1]);
+			xml.writeEndElement(); // Document
+			xml.writeEndElement(); // kml
+			xml.writeEndDocument();
+			xml.flush();
+			zip.closeEntry();
+
+			// generate tiles in parallel, write them in order
+			pool = Executors.newFixedThreadPool(threads);
+			final RandomAccessFile raf = new RandomAccessFile(spool, "r");
+			final Integer[] sorted = order;
+			try {
+				LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+				LinkedList<String> pending_names = new LinkedList<String>();
+				for (final int[] tile : tiles) {
+					pending.add(pool.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							return generateTile(raf.getChannel(), sorted, tile[0], tile[1]);
+						}
+					}));
+					pending_names.add(getTilePath(sorted[tile[0]]));
+
+					// limit number of tiles held in memory
+					while (pending.size() > threads*2)
+						writeEntry(zip, pending_names.poll(), pending.poll());
+				}
+				while (!pending.isEmpty())
+					writeEntry(zip, pending_names.poll(), pending.poll());
+			} finally {
+				raf.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			if (pool != null) pool.shutdownNow();
+			spool.delete();
+			out.close();
+		}
+	}
+
+	private static void writeEntry (ZipOutputStream zip, String path, Future<byte[]> tile) throws IOException {
+		byte[] data;
+		try {
+			data = tile.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while generating tiles.");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not generate tile "+path+": "+e.getCause().getMessage());
+		}
+		zip.putNextEntry(new ZipEntry(path));
+		zip.write(data);
+		zip.closeEntry();
+	}
+
+	/**
+	 * @param rec any record of the tile
+	 * @return path of the tile within the archive
+	 */
+	private String getTilePath (int rec) {
+		if (rec_lat[rec] == NO_REGION)
+			return "tiles/"+rec_slice[rec]+"/none.kml";
+		return "tiles/"+rec_slice[rec]+"/"+rec_lat[rec]+"_"+rec_lon[rec]+".kml";
+	}
+
+	/**
+	 * Writes the network link to a tile
+	 * @param xml target writer
+	 * @param order records sorted by tile and folder
+	 * @param from first index of the tile in order
+	 * @param to last index of the tile in order (exclusive)
+	 * @throws XMLStreamException if writing fails
+	 */
+	private void writeNetworkLink (XMLStreamWriter xml, Integer[] order, int from, int to) throws XMLStreamException {
+		int rec = order[from];
+		long begin = (long) (rec_slice[rec]*slice_length*1000);
+		long end = (long) ((rec_slice[rec]+1)*slice_length*1000);
+		for (int i = from; i<to; ++i) {
+			begin = Math.min(begin, rec_begin_time[order[i]]);
+			end = Math.max(end, rec_end_time[order[i]]);
+		}
+
+		xml.writeStartElement("NetworkLink");
+		if (rec_lat[rec] == NO_REGION)
+			writeElement(xml, "name", "No positions");
+		else
+			writeElement(xml, "name", "Tile "+rec_lat[rec]*tile_size+","+rec_lon[rec]*tile_size);
+		writeTimeSpan(xml, begin, end);
+
+		if (rec_lat[rec] != NO_REGION) {
+			xml.writeStartElement("Region");
+			xml.writeStartElement("LatLonAltBox");
+			writeElement(xml, "north", Double.toString(Math.min(90, (rec_lat[rec]+1)*tile_size)));
+			writeElement(xml, "south", Double.toString(Math.max(-90, rec_lat[rec]*tile_size)));
+			writeElement(xml, "east", Double.toString(Math.min(180, (rec_lon[rec]+1)*tile_size)));
+			writeElement(xml, "west", Double.toString(Math.max(-180, rec_lon[rec]*tile_size)));
+			xml.writeEndElement();
+			xml.writeStartElement("Lod");
+			writeElement(xml, "minLodPixels", "128");
+			writeElement(xml, "maxLodPixels", "-1");
+			xml.writeEndElement();
+			xml.writeEndElement();
+		}
+
+		xml.writeStartElement("Link");
+		writeElement(xml, "href", getTilePath(rec));
+		writeElement(xml, "viewRefreshMode", "onRegion");
+		xml.writeEndElement();
+		xml.writeEndElement();
+		xml.writeCharacters("\n");
+	}
+
+	/**
+	 * Generates the KML document of a tile from the spooled placemarks
+	 * @param spool channel of the spool file
+	 * @param order records sorted by tile and folder
+	 * @param from first index in order
+	 * @param to last index in order (exclusive)
+	 * @return the KML document
+	 * @throws IOException if reading the spool or writing fails
+	 */
+	private byte[] generateTile (FileChannel spool, Integer[] order, int from, int to) throws IOException {
+		ByteArrayOutputStream tile = new ByteArrayOutputStream();
+		XMLStreamWriter xml = createWriter(tile);
+		try {
+			// styles are not shared between KML documents
+			writeDocumentStart(xml, name);
+
+			int folder = -1;
+			for (int i = from; i<to; ++i) {
+				int rec = order[i];
+				if (rec_folder[rec] != folder) {
+					if (folder >= 0) {
+						xml.writeEndElement();
+						xml.writeCharacters("\n");
+					}
+					folder = rec_folder[rec];
+					xml.writeStartElement("Folder");
+					writeElement(xml, "name", folder_names.get(folder));
+					xml.writeCharacters("\n");
+				}
+				xml.flush();
+
+				// copy spooled placemark
+				ByteBuffer placemark = ByteBuffer.allocate((int) (rec_end[rec]-rec_start[rec]));
+				long pos = rec_start[rec];
+				while (placemark.hasRemaining()) {
+					int len = spool.read(placemark, pos);
+					if (len < 0) throw new IOException("Unexpected end of spool file.");
+					pos += len;
+				}
+				tile.write(placemark.array());
+			}
+			if (folder >= 0) xml.writeEndElement();
+
+			writeDocumentEnd(xml);
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+		return tile.toByteArray();
+	}
+}
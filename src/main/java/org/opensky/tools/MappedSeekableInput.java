@@ -0,0 +1,85 @@
+package org.opensky.tools;
+
+import org.apache.avro.file.SeekableInput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Seekable input for avro files which reads from memory mappings of the
+ * file instead of issuing a system call per buffer refill or seek. Files
+ * larger than the window size (1 GB) are mapped in multiple windows.
+ *
+ * The mappings are released by the garbage collector after closing the
+ * input. The file must not be truncated while it is read.
+ */
+public class MappedSeekableInput implements SeekableInput {
+	private static final int WINDOW_BITS = 30; // 1 GB
+	private static final long WINDOW_SIZE = 1L<<WINDOW_BITS;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] windows;
+	private final long length;
+	private long pos;
+
+	/**
+	 * @param avro the file
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public MappedSeekableInput (File avro) throws IOException {
+		file = new RandomAccessFile(avro, "r");
+		try {
+			length = file.length();
+			FileChannel channel = file.getChannel();
+			windows = new MappedByteBuffer[(int) ((length+WINDOW_SIZE-1)>>>WINDOW_BITS)];
+			for (int i = 0; i<windows.length; ++i) {
+				long start = (long) i<<WINDOW_BITS;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, length-start));
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		pos = 0;
+	}
+
+	@Override
+	public void seek (long p) throws IOException {
+		if (p < 0 || p > length)
+			throw new IOException("Position "+p+" is outside of the file.");
+		pos = p;
+	}
+
+	@Override
+	public long tell () {
+		return pos;
+	}
+
+	@Override
+	public long length () {
+		return length;
+	}
+
+	@Override
+	public int read (byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (pos >= length) return -1;
+
+		// read up to the end of the current window (the next call continues in the next window)
+		MappedByteBuffer window = windows[(int) (pos>>>WINDOW_BITS)];
+		int offset = (int) (pos & (WINDOW_SIZE-1));
+		int n = Math.min(len, window.limit()-offset);
+		window.position(offset);
+		window.get(b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close () throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,252 @@
+package org.opensky.tools;
+
+import org.apache.avro.util.Utf8;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+/**
+ * Mutable flyweight for OpenSky messages with primitive accessors. It is
+ * filled by {@link FlyweightDatumReader} without allocating objects per
+ * record: strings are read into reused Utf8 buffers and nullable doubles
+ * are stored as primitives with a presence flag (check has*() before
+ * reading them).
+ *
+ * The raw message can be accessed as hex string view or byte-wise without
+ * converting it to a String.
+ */
+public class MessageFlyweight {
+	// presence flags of nullable fields
+	static final int SENSOR_LATITUDE = 1, SENSOR_LONGITUDE = 2, SENSOR_ALTITUDE = 4,
+			TIME_AT_SENSOR = 8, TIMESTAMP = 16, RSSI_PACKET = 32, RSSI_PREAMBLE = 64,
+			SNR = 128, CONFIDENCE = 256;
+
+	Utf8 sensor_type = new Utf8();
+	Utf8 raw = new Utf8(); // hex string
+	int present; // presence flags
+	double sensor_latitude, sensor_longitude, sensor_altitude;
+	double time_at_server, time_at_sensor, timestamp;
+	int sensor_serial;
+	double rssi_packet, rssi_preamble, snr, confidence;
+
+	/**
+	 * @return sensor type (view, changes with the next record)
+	 */
+	public Utf8 sensorType () {
+		return sensor_type;
+	}
+
+	public boolean hasSensorLatitude () {
+		return (present & SENSOR_LATITUDE) != 0;
+	}
+
+	public double sensorLatitude () {
+		return sensor_latitude;
+	}
+
+	public boolean hasSensorLongitude () {
+		return (present & SENSOR_LONGITUDE) != 0;
+	}
+
+	public double sensorLongitude () {
+		return sensor_longitude;
+	}
+
+	public boolean hasSensorAltitude () {
+		return (present & SENSOR_ALTITUDE) != 0;
+	}
+
+	public double sensorAltitude () {
+		return sensor_altitude;
+	}
+
+	/**
+	 * @return time at server in seconds
+	 */
+	public double timeAtServer () {
+		return time_at_server;
+	}
+
+	/**
+	 * @return time at server in microseconds
+	 */
+	public long timeAtServerMicros () {
+		return Math.round(time_at_server*1e6);
+	}
+
+	public boolean hasTimeAtSensor () {
+		return (present & TIME_AT_SENSOR) != 0;
+	}
+
+	public double timeAtSensor () {
+		return time_at_sensor;
+	}
+
+	public boolean hasTimestamp () {
+		return (present & TIMESTAMP) != 0;
+	}
+
+	public double timestamp () {
+		return timestamp;
+	}
+
+	/**
+	 * @return raw message as hex string (view, changes with the next record)
+	 */
+	public Utf8 rawMessage () {
+		return raw;
+	}
+
+	/**
+	 * @return length of the raw message in bytes
+	 */
+	public int rawMessageLength () {
+		return raw.getByteLength()/2;
+	}
+
+	/**
+	 * @param i index of the byte
+	 * @return i-th byte of the raw message (0-255) or -1 if it is not valid hex
+	 */
+	public int rawMessageByte (int i) {
+		return AvroStats.hexByte(raw, 2*i);
+	}
+
+	/**
+	 * Decodes the raw message into a buffer
+	 * @param dst buffer with at least {@link #rawMessageLength()} bytes
+	 * @return number of bytes or -1 if the message is not valid hex
+	 */
+	public int rawMessageBytes (byte[] dst) {
+		int n = rawMessageLength();
+		for (int i = 0; i<n; ++i) {
+			int b = rawMessageByte(i);
+			if (b < 0) return -1;
+			dst[i] = (byte) b;
+		}
+		return n;
+	}
+
+	/**
+	 * @return downlink format or -1 if the message is not valid hex
+	 */
+	public int downlinkFormat () {
+		int first = rawMessageByte(0);
+		return first < 0 ? -1 : first>>>3;
+	}
+
+	/**
+	 * @return ADS-B type code (DF17/18) or -1
+	 */
+	public int typeCode () {
+		int df = downlinkFormat();
+		if (df != 17 && df != 18) return -1;
+		int me = rawMessageByte(4);
+		return me < 0 ? -1 : me>>>3;
+	}
+
+	/**
+	 * @return icao 24-bit address (announced or recovered from the parity)
+	 *         or -1 if the message cannot be parsed
+	 */
+	public int icao24 () {
+		return BlockIndex.getIcao24(raw);
+	}
+
+	public int sensorSerialNumber () {
+		return sensor_serial;
+	}
+
+	public boolean hasRSSIPacket () {
+		return (present & RSSI_PACKET) != 0;
+	}
+
+	public double rssiPacket () {
+		return rssi_packet;
+	}
+
+	public boolean hasRSSIPreamble () {
+		return (present & RSSI_PREAMBLE) != 0;
+	}
+
+	public double rssiPreamble () {
+		return rssi_preamble;
+	}
+
+	public boolean hasSNR () {
+		return (present & SNR) != 0;
+	}
+
+	public double snr () {
+		return snr;
+	}
+
+	public boolean hasConfidence () {
+		return (present & CONFIDENCE) != 0;
+	}
+
+	public double confidence () {
+		return confidence;
+	}
+
+	/**
+	 * @param value nullable value
+	 * @param flag presence flag of the field
+	 * @return the value or 0 if it is null
+	 */
+	private double set (Double value, int flag) {
+		if (value == null) return 0;
+		present |= flag;
+		return value;
+	}
+
+	/**
+	 * @param flag presence flag of the field
+	 * @param value the value
+	 * @return the value or null if the field is not present
+	 */
+	private Double get (int flag, double value) {
+		return (present & flag) != 0 ? value : null;
+	}
+
+	/**
+	 * Copies a record into this flyweight
+	 * @param record the record
+	 */
+	public void set (ModeSEncodedMessage record) {
+		present = 0;
+		sensor_type = new Utf8(record.getSensorType().toString());
+		sensor_latitude = set(record.getSensorLatitude(), SENSOR_LATITUDE);
+		sensor_longitude = set(record.getSensorLongitude(), SENSOR_LONGITUDE);
+		sensor_altitude = set(record.getSensorAltitude(), SENSOR_ALTITUDE);
+		time_at_server = record.getTimeAtServer();
+		time_at_sensor = set(record.getTimeAtSensor(), TIME_AT_SENSOR);
+		timestamp = set(record.getTimestamp(), TIMESTAMP);
+		raw = new Utf8(record.getRawMessage().toString());
+		sensor_serial = record.getSensorSerialNumber();
+		rssi_packet = set(record.getRSSIPacket(), RSSI_PACKET);
+		rssi_preamble = set(record.getRSSIPreamble(), RSSI_PREAMBLE);
+		snr = set(record.getSNR(), SNR);
+		confidence = set(record.getConfidence(), CONFIDENCE);
+	}
+
+	/**
+	 * @param reuse record to reuse or null
+	 * @return this message as record (with copies of the strings)
+	 */
+	public ModeSEncodedMessage toRecord (ModeSEncodedMessage reuse) {
+		ModeSEncodedMessage record = reuse != null ? reuse : new ModeSEncodedMessage();
+		record.setSensorType(new Utf8(sensor_type));
+		record.setSensorLatitude(get(SENSOR_LATITUDE, sensor_latitude));
+		record.setSensorLongitude(get(SENSOR_LONGITUDE, sensor_longitude));
+		record.setSensorAltitude(get(SENSOR_ALTITUDE, sensor_altitude));
+		record.setTimeAtServer(time_at_server);
+		record.setTimeAtSensor(get(TIME_AT_SENSOR, time_at_sensor));
+		record.setTimestamp(get(TIMESTAMP, timestamp));
+		record.setRawMessage(new Utf8(raw));
+		record.setSensorSerialNumber(sensor_serial);
+		record.setRSSIPacket(get(RSSI_PACKET, rssi_packet));
+		record.setRSSIPreamble(get(RSSI_PREAMBLE, rssi_preamble));
+		record.setSNR(get(SNR, snr));
+		record.setConfidence(get(CONFIDENCE, confidence));
+		return record;
+	}
+}
@@ -0,0 +1,76 @@
+package org.opensky.tools;
+
+/**
+ * Formats numbers into a char buffer without creating intermediate
+ * Strings. Used by the streaming writers for coordinates and timestamps.
+ */
+public final class NumberFormatter {
+	private static final long[] POW10 = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	private NumberFormatter () {}
+
+	/**
+	 * Writes the decimal representation of value to buf. Trailing zeros of
+	 * the fraction are omitted.
+	 * @param value the value to format
+	 * @param decimals maximum number of decimals (0-9)
+	 * @param buf target buffer (needs at least 30 free chars)
+	 * @param off position in buf where to start writing
+	 * @return position in buf after the last written char
+	 */
+	public static int format (double value, int decimals, char[] buf, int off) {
+		if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value)*POW10[decimals] >= 9e18) {
+			String str = Double.toString(value);
+			str.getChars(0, str.length(), buf, off);
+			return off+str.length();
+		}
+
+		long scaled = Math.round(Math.abs(value)*POW10[decimals]);
+		if (value < 0 && scaled != 0) buf[off++] = '-';
+		off = format(scaled/POW10[decimals], buf, off);
+
+		long fraction = scaled%POW10[decimals];
+		if (fraction == 0) return off;
+
+		// remove trailing zeros
+		while (fraction%10 == 0) {
+			fraction /= 10;
+			--decimals;
+		}
+		buf[off++] = '.';
+		for (int i = decimals-1; i >= 0; --i) {
+			buf[off+i] = (char) ('0'+fraction%10);
+			fraction /= 10;
+		}
+		return off+decimals;
+	}
+
+	/**
+	 * Writes the decimal representation of value to buf.
+	 * @param value the value to format
+	 * @param buf target buffer (needs at least 20 free chars)
+	 * @param off position in buf where to start writing
+	 * @return position in buf after the last written char
+	 */
+	public static int format (long value, char[] buf, int off) {
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				String str = Long.toString(value);
+				str.getChars(0, str.length(), buf, off);
+				return off+str.length();
+			}
+			buf[off++] = '-';
+			value = -value;
+		}
+
+		int len = 1;
+		for (long v = value/10; v > 0; v /= 10) ++len;
+		for (int i = len-1; i >= 0; --i) {
+			buf[off+i] = (char) ('0'+value%10);
+			value /= 10;
+		}
+		return off+len;
+	}
+}
@@ -0,0 +1,520 @@
+package org.opensky.tools;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.file.SeekableInput;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reader for one or more OpenSky avro files (e.g., as selected by an
+ * {@link AvroCatalog}) which are read one after another.
+ *
+ * Only records matching the {@link RecordFilter} are returned. If a file
+ * has a {@link BlockIndex}, blocks which cannot match the filter are
+ * skipped without decompressing them. With a projection, only the fields
+ * needed by the tool and the filter are deserialized. Files are read
+ * through memory mappings (see {@link MappedSeekableInput}).
+ *
+ * Blocks are decompressed and deserialized by a pool of threads (see
+ * {@link ParallelBlockReader} and {@link #setThreads(int)}) and returned
+ * in the order of the file.
+ *
+ * Files sorted by timeAtServer (as written by AvroSort) are marked with
+ * the meta data {@link #META_SORTED}. For these files, the reader finds
+ * the start of the filter's time range by a binary search on the sync
+ * markers and stops after the first record past its end.
+ */
+public class OskyReader {
+	public static final String META_SORTED = "osky.sorted";
+
+	/**
+	 * Additional filter for blocks of indexed files, e.g., by area
+	 */
+	public interface BlockFilter {
+		/**
+		 * @param index the index of the current file
+		 * @param block number of the block in the index
+		 * @return false if the block can be skipped
+		 */
+		boolean accept (BlockIndex index, int block);
+	}
+
+	private final ProjectionDatumReader datumReader;
+	private final List<File> files;
+	private int current; // index of the current file
+	private Boolean sorted_override; // null if meta data is used
+
+	// current file
+	private File avro;
+	private DataFileReader<ModeSEncodedMessage> reader; // null after the last file
+	private BlockIndex index; // null if there is no index
+	private boolean sorted; // by timeAtServer
+	private int block; // current block in index
+	private long remaining; // records left in current block
+	private boolean started, done;
+
+	// parallel decoding
+	private int threads;
+	private ExecutorService pool; // created on first use
+	private int pool_size;
+	private ParallelBlockReader parallel; // null if the current file is read sequentially
+	private ModeSEncodedMessage[] records; // decoded records of the current block
+	private int pos; // next record in records
+
+	// filters
+	private RecordFilter filter;
+	private String[] projection; // null for all fields
+	private double start, end; // time bounds of the filter
+	private BlockFilter block_filter;
+
+	// look-ahead
+	private ModeSEncodedMessage next; // next matching record or null
+	private ModeSEncodedMessage spare; // record for reuse
+
+	// statistics
+	private long blocks_read, blocks_skipped;
+	private int indexed_files;
+
+	/**
+	 * @param avro the avro file
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	public OskyReader (File avro) throws IOException {
+		this(Collections.singletonList(avro));
+	}
+
+	/**
+	 * @param files the avro files in the order they should be read
+	 * @throws IOException if the first file or its index cannot be read
+	 */
+	public OskyReader (List<File> files) throws IOException {
+		this.files = files;
+		datumReader = new ProjectionDatumReader();
+		current = -1;
+		threads = Runtime.getRuntime().availableProcessors();
+		setFilter(null);
+		blocks_read = blocks_skipped = 0;
+		indexed_files = 0;
+		openNext();
+	}
+
+	/**
+	 * Closes the current file and opens the next one
+	 * @return false if there are no more files
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	private boolean openNext () throws IOException {
+		closeParallel();
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+		if (++current >= files.size()) return false;
+
+		avro = files.get(current);
+		reader = new DataFileReader<ModeSEncodedMessage>(open(avro), datumReader);
+		index = BlockIndex.read(avro);
+		if (index != null) ++indexed_files;
+		sorted = sorted_override != null ? sorted_override :
+			"timeAtServer".equals(reader.getMetaString(META_SORTED));
+		block = -1;
+		remaining = 0;
+		started = done = false;
+		return true;
+	}
+
+	/**
+	 * @param avro the avro file
+	 * @return memory mapped input or buffered input if the file cannot be mapped
+	 * @throws IOException if the file cannot be opened
+	 */
+	private static SeekableInput open (File avro) throws IOException {
+		try {
+			return new MappedSeekableInput(avro);
+		} catch (IOException e) {
+			// e.g., not enough address space
+			return new SeekableFileInput(avro);
+		}
+	}
+
+	/**
+	 * @return true if the current file is sorted by timeAtServer
+	 */
+	public boolean isSorted () {
+		return sorted;
+	}
+
+	/**
+	 * Overrides the meta data of the files, e.g., for files which are known
+	 * to be sorted but have been written by other tools
+	 * @param sorted true if the files are sorted by timeAtServer
+	 */
+	public void setSorted (boolean sorted) {
+		this.sorted_override = sorted;
+		this.sorted = sorted;
+	}
+
+	/**
+	 * Sets the number of threads decompressing and deserializing blocks.
+	 * Takes effect with the next file.
+	 * @param threads number of threads (default: number of processors),
+	 *                1 reads all blocks in the calling thread
+	 */
+	public void setThreads (int threads) {
+		if (threads < 1) throw new IllegalArgumentException("Number of threads must be positive.");
+		this.threads = threads;
+	}
+
+	/**
+	 * Only return messages matching the given filter
+	 * @param filter the filter or null for all messages
+	 */
+	public void setFilter (RecordFilter filter) {
+		this.filter = filter == null ? RecordFilter.ALL : filter;
+		double[] bounds = this.filter.getTimeBounds();
+		start = bounds[0];
+		end = bounds[1];
+		updateProjection();
+	}
+
+	/**
+	 * Only deserialize the given fields of the records (see {@link ProjectionDatumReader}).
+	 * Fields used by the filter are added automatically.
+	 * @param fields names of the fields or null for all fields
+	 */
+	public void setProjection (String... fields) {
+		this.projection = fields;
+		updateProjection();
+	}
+
+	private void updateProjection () {
+		if (projection == null) {
+			datumReader.setProjection(null);
+			return;
+		}
+		Set<String> fields = new HashSet<String>(Arrays.asList(projection));
+		fields.addAll(filter.getFields());
+		fields.add("timeAtServer"); // for seeking in sorted files
+		datumReader.setProjection(fields);
+	}
+
+	/**
+	 * Only return blocks accepted by the given filter (only for files with index).
+	 * The filter is called right before the records of the block would be returned,
+	 * i.e., it may depend on the records returned so far. Blocks which are already
+	 * decoded by other threads are discarded if the filter rejects them.
+	 * @param filter the block filter or null
+	 */
+	public void setBlockFilter (BlockFilter filter) {
+		this.block_filter = filter;
+	}
+
+	/**
+	 * @return true if at least one of the files read so far had an up-to-date index
+	 */
+	public boolean hasIndex () {
+		return indexed_files > 0;
+	}
+
+	/**
+	 * @param block number of the block in the index
+	 * @return false if the block definitely contains no matching message
+	 */
+	private boolean matches (int block) {
+		return mayMatch(block) && (block_filter == null || block_filter.accept(index, block));
+	}
+
+	/**
+	 * @param block number of the block in the index
+	 * @return false if the block definitely contains no message matching the record filter
+	 */
+	private boolean mayMatch (int block) {
+		if (index.getCount(block) == 0) return false;
+		return filter == RecordFilter.ALL || filter.mayMatch(index.getSummary(block));
+	}
+
+	/**
+	 * Finds the next sync marker. This is much faster than
+	 * DataFileReader.sync() which reads the file byte by byte.
+	 * @param file the avro file
+	 * @param sync the sync marker of the file
+	 * @param pos position to start the search
+	 * @return start of the block after the marker or -1 if there is none
+	 * @throws IOException if reading fails
+	 */
+	private static long findSync (RandomAccessFile file, byte[] sync, long pos) throws IOException {
+		byte[] buf = new byte[64*1024];
+		long base = pos; // file position of buf[0]
+		int keep = 0, n;
+		file.seek(pos);
+		while ((n = file.read(buf, keep, buf.length-keep)) > 0) {
+			int len = keep+n;
+			for (int i = 0; i+sync.length <= len; ++i) {
+				int j = 0;
+				while (j < sync.length && buf[i+j] == sync[j]) ++j;
+				if (j == sync.length) return base+i+sync.length;
+			}
+
+			// keep the tail in case the marker spans two reads
+			keep = Math.min(len, sync.length-1);
+			System.arraycopy(buf, len-keep, buf, 0, keep);
+			base += len-keep;
+		}
+		return -1;
+	}
+
+	/**
+	 * Seeks to the last block which starts before the filter start time
+	 * (binary search on the sync markers, sorted files only)
+	 * @return position of the block
+	 * @throws IOException if reading fails
+	 */
+	private long seekStart () throws IOException {
+		RandomAccessFile file = new RandomAccessFile(avro, "r");
+		// first record of the block at lo is before start, first records
+		// of all blocks at or after hi are not
+		long lo = reader.previousSync(), hi = file.length();
+		try {
+			// the header ends with the sync marker
+			byte[] sync = new byte[16];
+			file.seek(lo-sync.length);
+			file.readFully(sync);
+
+			ModeSEncodedMessage record = null;
+			while (hi - lo > 1) {
+				long mid = lo + (hi-lo)/2;
+				long block = findSync(file, sync, mid);
+				if (block < 0 || block >= hi) {
+					hi = mid;
+					continue;
+				}
+
+				reader.seek(block);
+				record = reader.next(record);
+				if (record.getTimeAtServer() < start) lo = block;
+				else hi = mid;
+			}
+		} finally {
+			file.close();
+		}
+		reader.seek(lo);
+		return lo;
+	}
+
+	/**
+	 * Starts decoding the blocks of the current file in the thread pool
+	 * @param header end of the file header
+	 * @param start position of the first block which should be read
+	 * @throws IOException if the file cannot be opened
+	 */
+	private void openParallel (long header, long start) throws IOException {
+		if (pool != null && pool_size != threads) {
+			pool.shutdown();
+			pool = null;
+		}
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread (Runnable r) {
+					// do not keep the JVM alive if the reader is not closed
+					Thread thread = new Thread(r, "OskyReader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pool_size = threads;
+		}
+
+		// the workers need their own datum reader, the shared one is changed between files
+		ProjectionDatumReader workerReader = new ProjectionDatumReader(datumReader.getProjection());
+		workerReader.setSchema(reader.getSchema());
+
+		ParallelBlockReader.Selector selector = null;
+		if (index != null) {
+			selector = new ParallelBlockReader.Selector() {
+				@Override
+				public boolean accept (long offset, long count) {
+					int block = index.findBlock(offset);
+					if (block < 0) return true; // not in the index
+					// in sorted files, all following blocks are after the end
+					if (mayMatch(block) && !(sorted && index.getMinTime(block) > end)) return true;
+					++blocks_skipped;
+					return false;
+				}
+			};
+		}
+
+		parallel = new ParallelBlockReader(open(avro), header, start, reader.getMetaString("avro.codec"),
+				workerReader, pool, 2*threads, selector);
+		records = null;
+	}
+
+	/**
+	 * Stops decoding the blocks of the current file
+	 * @throws IOException if the file cannot be closed
+	 */
+	private void closeParallel () throws IOException {
+		if (parallel != null) parallel.close();
+		parallel = null;
+		records = null;
+	}
+
+	/**
+	 * Reads the next record of the current file
+	 * @param reuse record to reuse or null
+	 * @return the record or null at the end of the file (or time filter)
+	 * @throws IOException if reading fails
+	 */
+	private ModeSEncodedMessage read (ModeSEncodedMessage reuse) throws IOException {
+		if (done) return null;
+
+		if (!started) {
+			started = true;
+			long header = reader.previousSync(), first = header;
+			if (index == null && sorted && start > Double.NEGATIVE_INFINITY) first = seekStart();
+			if (threads > 1 && ParallelBlockReader.isSupported(reader.getMetaString("avro.codec")))
+				openParallel(header, first);
+		}
+
+		ModeSEncodedMessage record;
+		if (parallel != null) {
+			while (records == null || pos == records.length) {
+				ParallelBlockReader.Block decoded = parallel.next();
+				if (decoded == null) return null;
+				if (index != null) {
+					int block = index.findBlock(decoded.offset);
+					if (block >= 0 && block_filter != null && !block_filter.accept(index, block)) {
+						++blocks_skipped;
+						continue;
+					}
+					++blocks_read;
+				}
+				records = decoded.records;
+				pos = 0;
+			}
+			record = records[pos++];
+		}
+		else {
+			record = readSequential(reuse);
+			if (record == null) return null;
+		}
+
+		// all following records are after the end
+		if (sorted && record.getTimeAtServer() > end) {
+			done = true;
+			closeParallel();
+			return null;
+		}
+		return record;
+	}
+
+	/**
+	 * Reads the next record of the current file in the calling thread
+	 * @param reuse record to reuse or null
+	 * @return the record or null at the end of the file (or time filter)
+	 * @throws IOException if reading fails
+	 */
+	private ModeSEncodedMessage readSequential (ModeSEncodedMessage reuse) throws IOException {
+		if (index == null) {
+			if (!reader.hasNext()) return null;
+		}
+		else {
+			while (remaining == 0) {
+				if (++block >= index.size()) return null;
+
+				// all following blocks are after the end
+				if (sorted && index.getMinTime(block) > end) {
+					done = true;
+					return null;
+				}
+
+				if (!matches(block)) {
+					++blocks_skipped;
+					continue;
+				}
+
+				// previousSync() is already at the start of the following block
+				// after all records of the previous block have been read
+				if (reader.previousSync() != index.getOffset(block))
+					reader.seek(index.getOffset(block));
+				remaining = index.getCount(block);
+				++blocks_read;
+			}
+			--remaining;
+		}
+
+		return reader.next(reuse);
+	}
+
+	public boolean hasNext () {
+		try {
+			while (next == null && reader != null) {
+				ModeSEncodedMessage record = read(spare);
+				if (record == null) openNext();
+				else if (filter.matches(record)) next = record;
+				else spare = record;
+			}
+		} catch (IOException e) {
+			throw new AvroRuntimeException(e);
+		}
+		return next != null;
+	}
+
+	/**
+	 * @param reuse record to reuse or null
+	 * @return the next record
+	 */
+	public ModeSEncodedMessage next (ModeSEncodedMessage reuse) {
+		if (!hasNext()) throw new NoSuchElementException();
+		ModeSEncodedMessage record = next;
+		next = null;
+		// the returned record is used by the caller until its next call
+		spare = reuse != record ? reuse : null;
+		return record;
+	}
+
+	public ModeSEncodedMessage next () {
+		return next(null);
+	}
+
+	public Schema getSchema () {
+		return ModeSEncodedMessage.getClassSchema();
+	}
+
+	/**
+	 * @return number of blocks read (only files with index)
+	 */
+	public long getNumberOfBlocksRead () {
+		return blocks_read;
+	}
+
+	/**
+	 * @return number of blocks skipped by the filters (only files with index)
+	 */
+	public long getNumberOfBlocksSkipped () {
+		return blocks_skipped;
+	}
+
+	public void close () throws IOException {
+		closeParallel();
+		if (reader != null) reader.close();
+		reader = null;
+		if (pool != null) pool.shutdownNow();
+		pool = null;
+	}
+}
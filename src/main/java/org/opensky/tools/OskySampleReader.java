@@ -3,7 +3,6 @@ package org.opensky.tools;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.specific.SpecificDatumReader;
 import org.opensky.avro.v2.ModeSEncodedMessage;
 import org.opensky.example.ExampleDecoder;
 
@@ -31,9 +30,9 @@ public class OskySampleReader {
 		String filename = args[0];
 		int numRead = Integer.parseInt(args[1]);
 
-		// open AVRO file with pre-compiled Schema class
+		// open AVRO file (v2 or compact v3 schema, read as v2 records)
 		File f = new File(filename);
-		DatumReader<ModeSEncodedMessage> datumReader = new SpecificDatumReader<ModeSEncodedMessage>(ModeSEncodedMessage.class);
+		DatumReader<ModeSEncodedMessage> datumReader = new ProjectionDatumReader();
 		DataFileReader<ModeSEncodedMessage> fileReader = new DataFileReader<ModeSEncodedMessage>(
 				f, datumReader);
 		
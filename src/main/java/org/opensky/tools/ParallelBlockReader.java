@@ -0,0 +1,229 @@
+package org.opensky.tools;
+
+import org.apache.avro.file.SeekableInput;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks of an avro file and decompresses and deserializes them
+ * in a thread pool. The blocks are located by their headers (record count
+ * and size) and sync markers in the calling thread, which is cheap, and
+ * delivered in the order of the file. At most a fixed number of blocks is
+ * in flight, i.e., the futures of the pending blocks form a bounded
+ * reorder buffer.
+ *
+ * Only the codecs "null" and "deflate" are supported (see {@link #isSupported(String)}).
+ */
+public class ParallelBlockReader {
+
+	/**
+	 * Decides which blocks are read
+	 */
+	public interface Selector {
+		/**
+		 * @param offset position of the block in the file
+		 * @param count number of records in the block
+		 * @return false if the block should be skipped without decompressing it
+		 */
+		boolean accept (long offset, long count);
+	}
+
+	/**
+	 * A decoded block
+	 */
+	public static class Block {
+		public final long offset; // position in the file
+		public final ModeSEncodedMessage[] records;
+
+		Block (long offset, ModeSEncodedMessage[] records) {
+			this.offset = offset;
+			this.records = records;
+		}
+	}
+
+	/**
+	 * Decompresses and deserializes a block
+	 */
+	private class Decoder implements Callable<Block> {
+		private final long offset;
+		private final byte[] data;
+		private final int count;
+
+		Decoder (long offset, byte[] data, int count) {
+			this.offset = offset;
+			this.data = data;
+			this.count = count;
+		}
+
+		@Override
+		public Block call () throws Exception {
+			byte[] raw = deflate ? inflate(data) : data;
+			BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(raw, null);
+			ModeSEncodedMessage[] records = new ModeSEncodedMessage[count];
+			for (int i = 0; i<count; ++i)
+				records[i] = datumReader.read(null, decoder);
+			return new Block(offset, records);
+		}
+	}
+
+	private final SeekableInput in;
+	private final byte[] sync;
+	private final boolean deflate;
+	private final DatumReader<ModeSEncodedMessage> datumReader;
+	private final ExecutorService pool;
+	private final int depth;
+	private final Selector selector;
+
+	private final LinkedList<Future<Block>> pending; // in file order
+	private final byte[] buf = new byte[1];
+	private boolean eof;
+
+	/**
+	 * @param codec the codec of the file
+	 * @return true if blocks of this codec can be read
+	 */
+	public static boolean isSupported (String codec) {
+		return codec == null || codec.equals("null") || codec.equals("deflate");
+	}
+
+	/**
+	 * @param in the avro file
+	 * @param header end of the file header (the header ends with the sync marker)
+	 * @param start position of the first block which should be read
+	 * @param codec codec of the file (see {@link #isSupported(String)})
+	 * @param datumReader reader for the records (used concurrently, must already know the file's schema)
+	 * @param pool threads for decompression and deserialization
+	 * @param depth max. number of blocks in flight
+	 * @param selector decides which blocks are read or null for all blocks
+	 * @throws IOException if the sync marker cannot be read or the start position cannot be reached
+	 */
+	public ParallelBlockReader (SeekableInput in, long header, long start, String codec,
+			DatumReader<ModeSEncodedMessage> datumReader, ExecutorService pool, int depth, Selector selector) throws IOException {
+		if (!isSupported(codec))
+			throw new IllegalArgumentException("Unsupported codec "+codec+".");
+		this.in = in;
+		sync = new byte[16];
+		in.seek(header-sync.length);
+		readFully(sync, 0, sync.length);
+		this.deflate = "deflate".equals(codec);
+		this.datumReader = datumReader;
+		this.pool = pool;
+		this.depth = Math.max(1, depth);
+		this.selector = selector;
+		pending = new LinkedList<Future<Block>>();
+		in.seek(start);
+		eof = start >= in.length();
+	}
+
+	/**
+	 * @param data deflated data (without zlib header)
+	 * @return the inflated data
+	 */
+	private static byte[] inflate (byte[] data) throws DataFormatException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data);
+			byte[] out = new byte[Math.max(1024, data.length*4)];
+			int len = 0;
+			while (!inflater.finished()) {
+				if (len == out.length) out = Arrays.copyOf(out, out.length*2);
+				int n = inflater.inflate(out, len, out.length-len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				len += n;
+			}
+			return len == out.length ? out : Arrays.copyOf(out, len);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private void readFully (byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0) throw new EOFException("Unexpected end of avro file.");
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * @return next variable-length zig-zag long of the file
+	 */
+	private long readLong () throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			readFully(buf, 0, 1);
+			value |= (long) (buf[0] & 0x7f) << shift;
+			if ((buf[0] & 0x80) == 0) return (value >>> 1) ^ -(value & 1);
+		}
+		throw new IOException("Invalid block header.");
+	}
+
+	/**
+	 * Submits blocks until enough blocks are in flight or the file ends
+	 */
+	private void fill () throws IOException {
+		byte[] marker = new byte[sync.length];
+		while (!eof && pending.size() < depth) {
+			long offset = in.tell();
+			long count = readLong(), size = readLong();
+			if (count < 0 || count > Integer.MAX_VALUE || size < 0 || size > Integer.MAX_VALUE)
+				throw new IOException("Invalid block header at position "+offset+".");
+
+			if (selector == null || selector.accept(offset, count)) {
+				byte[] data = new byte[(int) size];
+				readFully(data, 0, data.length);
+				pending.add(pool.submit(new Decoder(offset, data, (int) count)));
+			}
+			else in.seek(in.tell()+size);
+
+			readFully(marker, 0, marker.length);
+			if (!Arrays.equals(marker, sync))
+				throw new IOException("Invalid sync marker at position "+(in.tell()-sync.length)+".");
+			eof = in.tell() >= in.length();
+		}
+	}
+
+	/**
+	 * @return next block in file order or null at the end of the file
+	 * @throws IOException if the file cannot be read or a block cannot be decoded
+	 */
+	public Block next () throws IOException {
+		fill();
+		Future<Block> future = pending.poll();
+		if (future == null) return null;
+		// keep the threads busy while waiting
+		fill();
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while decoding blocks.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Cannot decode block: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Cancels all pending blocks and closes the file
+	 */
+	public void close () throws IOException {
+		for (Future<Block> future : pending) future.cancel(true);
+		pending.clear();
+		in.close();
+	}
+}
@@ -0,0 +1,264 @@
+package org.opensky.tools;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.util.Utf8;
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Datum reader for OpenSky messages which only deserializes the fields of
+ * a projection. All other fields of the file are skipped in the decoder
+ * and not set in the returned records, i.e., they keep their initial
+ * value (null or 0) in new records.
+ * Strings are read into the Utf8 objects of reused records.
+ *
+ * Fields of the projection which are missing in the file are set to
+ * their default value or null. Numeric fields are converted if the type
+ * in the file differs from the type of {@link ModeSEncodedMessage}.
+ * Files with the compact v3 schema ({@link CompactMessage}) are read
+ * as v2 records, i.e., raw messages are converted to hex strings, times
+ * in microseconds to seconds and sensor types to strings.
+ */
+public class ProjectionDatumReader implements DatumReader<ModeSEncodedMessage> {
+	private static final Schema SCHEMA = ModeSEncodedMessage.getClassSchema();
+
+	// conversion from the type in the file to the type in ModeSEncodedMessage
+	private enum Conversion { INT, LONG, FLOAT, DOUBLE, MICROS_TO_SECONDS, BYTES_TO_HEX }
+
+	private Set<String> projection; // null for all fields
+	private Schema writer;
+
+	// plan for the current writer schema
+	private Schema[] types; // writer schema of each field
+	private int[] positions; // position in ModeSEncodedMessage or -1 to skip
+	private Conversion[] conversions; // null if the value is not converted
+	private int[] missing; // projected positions which are not in the file
+	private Object[] defaults; // default values of missing fields
+
+	/**
+	 * Reader for all fields
+	 */
+	public ProjectionDatumReader () {
+		this((Collection<String>) null);
+	}
+
+	/**
+	 * @param fields names of the fields which should be read
+	 * @throws IllegalArgumentException if ModeSEncodedMessage has no such field
+	 */
+	public ProjectionDatumReader (String... fields) {
+		this(Arrays.asList(fields));
+	}
+
+	/**
+	 * @param fields names of the fields which should be read or null for all fields
+	 * @throws IllegalArgumentException if ModeSEncodedMessage has no such field
+	 */
+	public ProjectionDatumReader (Collection<String> fields) {
+		this.writer = SCHEMA;
+		setProjection(fields);
+	}
+
+	/**
+	 * Changes the projection, e.g., between files
+	 * @param fields names of the fields which should be read or null for all fields
+	 * @throws IllegalArgumentException if ModeSEncodedMessage has no such field
+	 */
+	public void setProjection (Collection<String> fields) {
+		if (fields != null) {
+			for (String field : fields)
+				if (SCHEMA.getField(field) == null)
+					throw new IllegalArgumentException("Unknown field "+field+".");
+			projection = new HashSet<String>(fields);
+		}
+		else projection = null;
+		compile();
+	}
+
+	/**
+	 * @return names of the fields which are read or null for all fields
+	 */
+	public Set<String> getProjection () {
+		return projection;
+	}
+
+	@Override
+	public void setSchema (Schema schema) {
+		writer = schema;
+		compile();
+	}
+
+	/**
+	 * @param schema a schema
+	 * @return the numeric type of the schema (or its non-null branch) or null
+	 */
+	private static Schema.Type numericType (Schema schema) {
+		if (schema.getType() == Schema.Type.UNION) {
+			for (Schema branch : schema.getTypes())
+				if (branch.getType() != Schema.Type.NULL) return numericType(branch);
+			return null;
+		}
+		switch (schema.getType()) {
+			case INT: case LONG: case FLOAT: case DOUBLE: return schema.getType();
+			default: return null;
+		}
+	}
+
+	/**
+	 * @param schema a schema
+	 * @return true if the schema (or all its non-null branches) can be read as string
+	 */
+	private static boolean isString (Schema schema) {
+		switch (schema.getType()) {
+			case STRING: case ENUM: return true;
+			case UNION:
+				for (Schema branch : schema.getTypes())
+					if (branch.getType() != Schema.Type.NULL && !isString(branch)) return false;
+				return true;
+			default: return false;
+		}
+	}
+
+	/**
+	 * @param schema a schema
+	 * @return true if the schema is null or a union with null
+	 */
+	private static boolean isNullable (Schema schema) {
+		if (schema.getType() == Schema.Type.NULL) return true;
+		if (schema.getType() != Schema.Type.UNION) return false;
+		for (Schema branch : schema.getTypes())
+			if (branch.getType() == Schema.Type.NULL) return true;
+		return false;
+	}
+
+	/**
+	 * Creates the plan for reading the current writer schema
+	 */
+	private void compile () {
+		if (writer.getType() != Schema.Type.RECORD)
+			throw new AvroTypeException("Expected record but found "+writer.getType()+".");
+
+		int n = writer.getFields().size();
+		types = new Schema[n];
+		positions = new int[n];
+		conversions = new Conversion[n];
+		boolean[] found = new boolean[SCHEMA.getFields().size()];
+		for (int i = 0; i<n; ++i) {
+			Field field = writer.getFields().get(i);
+			Field target = SCHEMA.getField(field.name());
+			types[i] = field.schema();
+			positions[i] = -1;
+			if (target == null || projection != null && !projection.contains(field.name()))
+				continue;
+
+			positions[i] = target.pos();
+			found[target.pos()] = true;
+			Schema.Type from = numericType(field.schema()), to = numericType(target.schema());
+			if (to == Schema.Type.DOUBLE && CompactMessage.isMicros(field.schema()))
+				conversions[i] = Conversion.MICROS_TO_SECONDS;
+			else if (isString(target.schema()) && field.schema().getType() == Schema.Type.BYTES)
+				conversions[i] = Conversion.BYTES_TO_HEX;
+			else if (from != to) {
+				if (from == null || to == null)
+					throw new AvroTypeException("Cannot read "+field.schema()+" as "+target.schema()+
+							" (field "+field.name()+").");
+				conversions[i] = Conversion.valueOf(to.name());
+			}
+			else if (to == null && isString(target.schema()) && !isString(field.schema()))
+				throw new AvroTypeException("Cannot read "+field.schema()+" as "+target.schema()+
+						" (field "+field.name()+").");
+		}
+
+		// projected fields which are not in the file
+		int cnt = 0;
+		int[] tmp = new int[found.length];
+		for (Field field : SCHEMA.getFields())
+			if (!found[field.pos()] && (projection == null || projection.contains(field.name())))
+				tmp[cnt++] = field.pos();
+		missing = Arrays.copyOf(tmp, cnt);
+		defaults = new Object[cnt];
+		for (int i = 0; i<cnt; ++i) {
+			Field field = SCHEMA.getFields().get(missing[i]);
+			if (field.defaultVal() != null)
+				defaults[i] = SpecificData.get().getDefaultValue(field);
+			else if (!isNullable(field.schema()))
+				throw new AvroTypeException("Field "+field.name()+" is missing and has no default value.");
+		}
+	}
+
+	/**
+	 * @param schema writer schema of the value
+	 * @param in the decoder
+	 * @param old value of a reused record or null
+	 * @return the value
+	 */
+	private static Object readValue (Schema schema, Decoder in, Object old) throws IOException {
+		switch (schema.getType()) {
+			case NULL: in.readNull(); return null;
+			case BOOLEAN: return in.readBoolean();
+			case INT: return in.readInt();
+			case LONG: return in.readLong();
+			case FLOAT: return in.readFloat();
+			case DOUBLE: return in.readDouble();
+			case STRING: return in.readString(old instanceof Utf8 ? (Utf8) old : null);
+			case ENUM:
+				String symbol = schema.getEnumSymbols().get(in.readEnum());
+				return old instanceof Utf8 ? ((Utf8) old).set(symbol) : new Utf8(symbol);
+			case UNION: return readValue(schema.getTypes().get(in.readIndex()), in, old);
+			default: return new GenericDatumReader<Object>(schema).read(null, in);
+		}
+	}
+
+	/**
+	 * @param value a number or null
+	 * @param conversion the numeric conversion
+	 * @return the converted number
+	 */
+	private static Object convert (Object value, Conversion conversion) {
+		if (value == null) return null;
+		Number number = (Number) value;
+		switch (conversion) {
+			case INT: return number.intValue();
+			case LONG: return number.longValue();
+			case FLOAT: return number.floatValue();
+			default: return number.doubleValue();
+		}
+	}
+
+	@Override
+	public ModeSEncodedMessage read (ModeSEncodedMessage reuse, Decoder in) throws IOException {
+		ModeSEncodedMessage record = reuse != null ? reuse : new ModeSEncodedMessage();
+		for (int i = 0; i<types.length; ++i) {
+			int pos = positions[i];
+			if (pos < 0) {
+				GenericDatumReader.skip(types[i], in);
+				continue;
+			}
+			Object value, old = record.get(pos);
+			Conversion conversion = conversions[i];
+			if (conversion == Conversion.MICROS_TO_SECONDS)
+				value = CompactMessage.toSeconds(in.readLong());
+			else if (conversion == Conversion.BYTES_TO_HEX)
+				value = CompactMessage.readHex(in, old instanceof Utf8 ? (Utf8) old : null);
+			else {
+				value = readValue(types[i], in, old);
+				if (conversion != null) value = convert(value, conversion);
+			}
+			record.put(pos, value);
+		}
+		for (int i = 0; i<missing.length; ++i)
+			record.put(missing[i], defaults[i]);
+		return record;
+	}
+}
@@ -0,0 +1,189 @@
+package org.opensky.tools;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.file.SeekableInput;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares reading avro files through the buffered {@link SeekableFileInput}
+ * used by Avro with the {@link MappedSeekableInput}, both for sequential
+ * reads of the whole file and for reads of random blocks located by the
+ * {@link BlockIndex}. Records are decoded with the {@link FlyweightDatumReader}
+ * to keep the decoding cost low. The file should be in the page cache
+ * (the first round of each input is a warm-up).
+ */
+public class ReadBenchmark {
+
+	/**
+	 * @param avro the avro file
+	 * @param mapped true for a memory mapped input
+	 * @return the input
+	 */
+	private static SeekableInput open (File avro, boolean mapped) throws IOException {
+		return mapped ? new MappedSeekableInput(avro) : new SeekableFileInput(avro);
+	}
+
+	/**
+	 * Reads all records of the file
+	 * @return number of records
+	 */
+	private static long readSequential (File avro, boolean mapped) throws IOException {
+		DataFileReader<MessageFlyweight> reader =
+				new DataFileReader<MessageFlyweight>(open(avro, mapped), new FlyweightDatumReader());
+		long cnt = 0;
+		try {
+			MessageFlyweight msg = null;
+			while (reader.hasNext()) {
+				msg = reader.next(msg);
+				++cnt;
+			}
+		} finally {
+			reader.close();
+		}
+		return cnt;
+	}
+
+	/**
+	 * Reads all records of the given blocks
+	 * @return number of records
+	 */
+	private static long readBlocks (File avro, boolean mapped, BlockIndex index, int[] blocks) throws IOException {
+		DataFileReader<MessageFlyweight> reader =
+				new DataFileReader<MessageFlyweight>(open(avro, mapped), new FlyweightDatumReader());
+		long cnt = 0;
+		try {
+			MessageFlyweight msg = null;
+			for (int block : blocks) {
+				reader.seek(index.getOffset(block));
+				for (long i = 0; i<index.getCount(block); ++i) {
+					msg = reader.next(msg);
+					++cnt;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return cnt;
+	}
+
+	/**
+	 * Runs a benchmark several times and prints the median time
+	 * @param name name of the benchmark
+	 * @param bytes bytes read per round (for the throughput)
+	 */
+	private static void measure (String name, File avro, boolean mapped, BlockIndex index, int[] blocks,
+			int rounds, long bytes) throws IOException {
+		long[] times = new long[rounds];
+		long records = 0;
+		for (int i = -1; i<rounds; ++i) {
+			long start = System.nanoTime();
+			records = blocks == null ? readSequential(avro, mapped) : readBlocks(avro, mapped, index, blocks);
+			if (i >= 0) times[i] = System.nanoTime()-start; // first round is warm-up
+		}
+		Arrays.sort(times);
+		double median = times[rounds/2]/1e9;
+		System.out.format(Locale.ENGLISH, "%-20s %-6s %8.1f ms %10.0f records/s %8.1f MB/s\n",
+				name, mapped ? "mmap" : "file", median*1000, records/median, bytes/median/1024/1024);
+	}
+
+	/**
+	 * Prints help for command line options
+	 * @param opts command line options
+	 */
+	private static void printHelp(Options opts) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				"ReadBenchmark [options] avro-file",
+				"\nCompares buffered and memory mapped reading of OpenSky avro files\nhttp://www.opensky-network.org\n\n",
+				opts, "");
+	}
+
+	public static void main(String[] args) {
+
+		// define command line options
+		Options opts = new Options();
+		opts.addOption("h", "help", false, "print this message" );
+		opts.addOption("r", "rounds", true, "number of measured rounds (default: 5)" );
+		opts.addOption("b", "blocks", true, "number of random blocks read per round (default: 1000)" );
+
+		// parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		int rounds = 5, num_blocks = 1000;
+		File avro = null;
+		try {
+			cmd = parser.parse(opts, args);
+
+			// parse arguments
+			try {
+				if (cmd.hasOption("r")) rounds = Integer.parseInt(cmd.getOptionValue("r"));
+				if (cmd.hasOption("b")) num_blocks = Integer.parseInt(cmd.getOptionValue("b"));
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid arguments: "+e.getMessage());
+			}
+			if (rounds < 1 || num_blocks < 1)
+				throw new ParseException("Number of rounds and blocks must be positive.");
+
+			// print help
+			if (cmd.hasOption("h")) {
+				printHelp(opts);
+				System.exit(0);
+			}
+
+			// get filename
+			if (cmd.getArgList().size() != 1)
+				throw new ParseException("No avro file given or invalid arguments.");
+			avro = new File(cmd.getArgList().get(0));
+		} catch (ParseException e) {
+			// parsing failed
+			System.err.println(e.getMessage()+"\n");
+			printHelp(opts);
+			System.exit(1);
+		}
+
+		// check if file exists
+		try {
+			if(!avro.exists() || avro.isDirectory() || !avro.canRead())
+				throw new FileNotFoundException("Avro file not found or cannot be read.");
+		} catch (FileNotFoundException e) {
+			System.err.println("Error: "+e.getMessage()+"\n");
+			System.exit(1);
+		}
+
+		try {
+			BlockIndex index = BlockIndex.read(avro);
+			if (index == null) {
+				System.err.println("No index found, indexing "+avro.getPath()+" (see AvroIndex).");
+				index = BlockIndex.build(avro, 1024, 3);
+			}
+
+			// random blocks (same for both inputs)
+			Random random = new Random(42);
+			int[] blocks = new int[num_blocks];
+			long block_bytes = 0;
+			for (int i = 0; i<num_blocks; ++i) {
+				blocks[i] = random.nextInt(index.size());
+				long next = blocks[i]+1 < index.size() ? index.getOffset(blocks[i]+1) : avro.length();
+				block_bytes += next-index.getOffset(blocks[i]);
+			}
+
+			System.out.println("File: "+avro.getPath()+" ("+avro.length()/1024+" kB, "+index.size()+" blocks)\n");
+			for (boolean mapped : new boolean[] {false, true})
+				measure("sequential", avro, mapped, null, null, rounds, avro.length());
+			for (boolean mapped : new boolean[] {false, true})
+				measure(num_blocks+" random blocks", avro, mapped, index, blocks, rounds, block_bytes);
+		} catch (Exception e) {
+			System.err.println("Something went wrong: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
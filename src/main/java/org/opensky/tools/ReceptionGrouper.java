@@ -0,0 +1,130 @@
+package org.opensky.tools;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Groups receptions of the same transmission by different sensors.
+ * Receptions are matched on the raw message within a time window on
+ * timeAtServer (streaming hash join). Groups are handed out in the order
+ * they were opened as soon as the window is closed, so memory is bounded
+ * by the number of transmissions within one window.
+ * Note: We assume, that messages are more or less ordered by time
+ */
+public class ReceptionGrouper {
+
+	/**
+	 * All receptions of one transmission. Unknown values are NaN.
+	 */
+	public static class Group {
+		public String rawMessage;
+		public double first; // timeAtServer of first reception
+		public int size; // number of receptions
+		public int[] sensor;
+		public double[] timeAtServer;
+		public double[] timeAtSensor;
+		public double[] timestamp;
+		public double[] rssi;
+
+		private Group (String rawMessage, double first) {
+			this.rawMessage = rawMessage;
+			this.first = first;
+			this.size = 0;
+			sensor = new int[4];
+			timeAtServer = new double[4];
+			timeAtSensor = new double[4];
+			timestamp = new double[4];
+			rssi = new double[4];
+		}
+
+		private boolean contains (int serial) {
+			for (int i = 0; i<size; ++i)
+				if (sensor[i] == serial) return true;
+			return false;
+		}
+
+		private void add (int serial, double time_at_server, Double time_at_sensor, Double ts, Double rssi) {
+			if (size == sensor.length) {
+				sensor = Arrays.copyOf(sensor, size*2);
+				timeAtServer = Arrays.copyOf(timeAtServer, size*2);
+				timeAtSensor = Arrays.copyOf(timeAtSensor, size*2);
+				timestamp = Arrays.copyOf(timestamp, size*2);
+				this.rssi = Arrays.copyOf(this.rssi, size*2);
+			}
+			sensor[size] = serial;
+			timeAtServer[size] = time_at_server;
+			timeAtSensor[size] = time_at_sensor != null ? time_at_sensor : Double.NaN;
+			timestamp[size] = ts != null ? ts : Double.NaN;
+			this.rssi[size] = rssi != null ? rssi : Double.NaN;
+			++size;
+		}
+	}
+
+	private final double window;
+	private final HashMap<String, Group> open;
+	private final ArrayDeque<Group> queue;
+
+	/**
+	 * @param window maximum time between first and last reception of a
+	 *               transmission in seconds
+	 */
+	public ReceptionGrouper (double window) {
+		this.window = window;
+		open = new HashMap<String, Group>();
+		queue = new ArrayDeque<Group>();
+	}
+
+	/**
+	 * Adds a reception. If the same sensor already received this message
+	 * within the window, the message is considered a new transmission.
+	 * @param raw raw message
+	 * @param sensor sensor serial number
+	 * @param timeAtServer unix timestamp of reception at server
+	 * @param timeAtSensor unix timestamp of reception at sensor or null
+	 * @param timestamp rolling timestamp of sensor or null
+	 * @param rssi signal strength or null
+	 */
+	public void add (String raw, int sensor, double timeAtServer, Double timeAtSensor, Double timestamp, Double rssi) {
+		Group group = open.get(raw);
+		if (group == null || group.contains(sensor) || timeAtServer - group.first > window) {
+			group = new Group(raw, timeAtServer);
+			open.put(raw, group);
+			queue.add(group);
+		}
+		group.add(sensor, timeAtServer, timeAtSensor, timestamp, rssi);
+	}
+
+	/**
+	 * @param now current timeAtServer
+	 * @return the oldest group whose window is closed or null if there is none
+	 */
+	public Group poll (double now) {
+		Group group = queue.peek();
+		if (group == null || now - group.first <= window) return null;
+		return remove();
+	}
+
+	/**
+	 * Use this to flush all groups at the end of the input.
+	 * @return the oldest group or null if there are no more groups
+	 */
+	public Group poll () {
+		return queue.isEmpty() ? null : remove();
+	}
+
+	/**
+	 * @return number of groups currently held in memory
+	 */
+	public int size () {
+		return queue.size();
+	}
+
+	private Group remove () {
+		Group group = queue.poll();
+		// the raw message might already belong to a newer group
+		if (open.get(group.rawMessage) == group)
+			open.remove(group.rawMessage);
+		return group;
+	}
+}
@@ -0,0 +1,765 @@
+package org.opensky.tools;
+
+import org.opensky.avro.v2.ModeSEncodedMessage;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Filter for OpenSky messages compiled from expressions such as
+ *
+ * <pre>
+ * time in [1500000000, 1500003600] and icao in {3c6444, 4b1805} and df = 17 and tc in 9..18 and snr &gt; 10
+ * </pre>
+ *
+ * Fields: time (timeAtServer), sensor (serial number), icao (hex), df
+ * (downlink format), tc (ADS-B type code, DF17/18 only), snr, rssi and
+ * confidence. Comparisons: =, !=, &lt;, &lt;=, &gt;, &gt;=, "in [a, b]",
+ * "in a..b" (both inclusive) and "in {a, b, ...}" (not for time, snr, rssi
+ * and confidence). They can be combined with and, or, not and parentheses.
+ * Messages without the field (e.g., tc of a DF11 or a missing snr) do not
+ * match any comparison, including != and not applied to a single
+ * comparison (e.g., "snr != 10" does not match messages without snr).
+ *
+ * The expression is compiled into a tree of predicates on primitive values
+ * with the cheapest ones evaluated first. Sets of icao 24-bit addresses or
+ * sensors are stored as {@link IntSet}. Blocks of indexed files and files
+ * of a catalog can be skipped if the filter cannot match their {@link Summary}.
+ */
+public abstract class RecordFilter {
+
+	/**
+	 * Filter matching all messages
+	 */
+	public static final RecordFilter ALL = new RecordFilter() {
+		public boolean matches (ModeSEncodedMessage record) {
+			return true;
+		}
+
+		public boolean mayMatch (Summary summary) {
+			return true;
+		}
+
+		int cost () {
+			return 0;
+		}
+
+		public String toString () {
+			return "all";
+		}
+	};
+
+	/**
+	 * What is known about a set of messages, e.g., a block of a {@link BlockIndex}
+	 */
+	public interface Summary {
+		double getMinTime ();
+		double getMaxTime ();
+
+		/**
+		 * @param serial sensor serial number
+		 * @return false if there are definitely no messages of the sensor
+		 */
+		boolean mightContainSensor (int serial);
+
+		/**
+		 * @param icao24 icao 24-bit address
+		 * @return false if there are definitely no messages of the aircraft
+		 */
+		boolean mightContainIcao24 (int icao24);
+	}
+
+	/**
+	 * @param record the message
+	 * @return true if the message matches the filter
+	 */
+	public abstract boolean matches (ModeSEncodedMessage record);
+
+	/**
+	 * @param summary summary of a set of messages
+	 * @return false if none of the messages can match the filter
+	 */
+	public abstract boolean mayMatch (Summary summary);
+
+	/**
+	 * @return estimated cost of {@link #matches(ModeSEncodedMessage)}
+	 */
+	abstract int cost ();
+
+	/**
+	 * @return time range {start, end} (inclusive, may be infinite) which
+	 *         contains all matching messages
+	 */
+	public double[] getTimeBounds () {
+		return new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+	}
+
+	/**
+	 * @return sensors of all matching messages or null if not restricted
+	 */
+	public IntSet getSensors () {
+		return null;
+	}
+
+	/**
+	 * @return names of the fields of ModeSEncodedMessage used by the filter
+	 *         (see {@link ProjectionDatumReader})
+	 */
+	public Set<String> getFields () {
+		Set<String> fields = new HashSet<String>();
+		addFields(fields);
+		return fields;
+	}
+
+	/**
+	 * @param fields set to which the names of the used fields are added
+	 */
+	void addFields (Set<String> fields) {}
+
+	/**
+	 * @return the field if the filter is a single comparison, otherwise null
+	 */
+	Field getField () {
+		return null;
+	}
+
+	/**
+	 * Field of a message as primitive value
+	 */
+	private static abstract class Field {
+		final String name;
+		final String column; // field of ModeSEncodedMessage
+		final int cost;
+		final boolean integral;
+
+		Field (String name, String column, int cost, boolean integral) {
+			this.name = name;
+			this.column = column;
+			this.cost = cost;
+			this.integral = integral;
+		}
+
+		/**
+		 * @param record the message
+		 * @return the value or NaN if the message does not have this field
+		 */
+		abstract double get (ModeSEncodedMessage record);
+
+		/**
+		 * @param value the value
+		 * @return the value as written in expressions
+		 */
+		String format (double value) {
+			if (integral) return Integer.toString((int) value);
+			return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+		}
+
+		/**
+		 * @param token value as written in expressions
+		 * @return the value
+		 */
+		double parse (String token) {
+			if (integral) return Integer.parseInt(token);
+			double value = Double.parseDouble(token);
+			if (Double.isNaN(value) || Double.isInfinite(value))
+				throw new NumberFormatException("not a finite number: "+token);
+			return value;
+		}
+	}
+
+	private static double orNaN (Double value) {
+		return value == null ? Double.NaN : value;
+	}
+
+	private static final Field TIME = new Field("time", "timeAtServer", 1, false) {
+		double get (ModeSEncodedMessage record) {
+			return orNaN(record.getTimeAtServer());
+		}
+	};
+
+	private static final Field SENSOR = new Field("sensor", "sensorSerialNumber", 1, true) {
+		double get (ModeSEncodedMessage record) {
+			Integer serial = record.getSensorSerialNumber();
+			return serial == null ? Double.NaN : serial;
+		}
+	};
+
+	private static final Field SNR = new Field("snr", "SNR", 1, false) {
+		double get (ModeSEncodedMessage record) {
+			return orNaN(record.getSNR());
+		}
+	};
+
+	private static final Field RSSI = new Field("rssi", "RSSIPacket", 1, false) {
+		double get (ModeSEncodedMessage record) {
+			return orNaN(record.getRSSIPacket());
+		}
+	};
+
+	private static final Field CONFIDENCE = new Field("confidence", "confidence", 1, false) {
+		double get (ModeSEncodedMessage record) {
+			return orNaN(record.getConfidence());
+		}
+	};
+
+	private static final Field DF = new Field("df", "rawMessage", 2, true) {
+		double get (ModeSEncodedMessage record) {
+			int first = AvroStats.hexByte(record.getRawMessage(), 0);
+			return first < 0 ? Double.NaN : first>>>3;
+		}
+	};
+
+	private static final Field TC = new Field("tc", "rawMessage", 3, true) {
+		double get (ModeSEncodedMessage record) {
+			int first = AvroStats.hexByte(record.getRawMessage(), 0);
+			if (first>>>3 != 17 && first>>>3 != 18) return Double.NaN;
+			int me = AvroStats.hexByte(record.getRawMessage(), 8);
+			return me < 0 ? Double.NaN : me>>>3;
+		}
+	};
+
+	private static final Field ICAO24 = new Field("icao", "rawMessage", 10, true) {
+		double get (ModeSEncodedMessage record) {
+			int icao24 = BlockIndex.getIcao24(record.getRawMessage());
+			return icao24 < 0 ? Double.NaN : icao24;
+		}
+
+		String format (double value) {
+			return String.format("%06x", (int) value);
+		}
+
+		double parse (String token) {
+			int icao24 = Integer.parseInt(token, 16);
+			if (icao24 < 0 || icao24 > 0xffffff)
+				throw new NumberFormatException("icao24 out of range: "+token);
+			return icao24;
+		}
+	};
+
+	private static final Field[] FIELDS = {TIME, SENSOR, ICAO24, DF, TC, SNR, RSSI, CONFIDENCE};
+
+	/**
+	 * Field within a range, e.g., time in [a, b] or snr &gt; 10
+	 */
+	private static class Range extends RecordFilter {
+		private final Field field;
+		private final double min, max;
+		private final boolean min_open, max_open;
+
+		Range (Field field, double min, boolean min_open, double max, boolean max_open) {
+			this.field = field;
+			this.min = min;
+			this.max = max;
+			this.min_open = min_open;
+			this.max_open = max_open;
+		}
+
+		public boolean matches (ModeSEncodedMessage record) {
+			double v = field.get(record);
+			// comparisons with NaN are always false
+			return (min_open ? v > min : v >= min) && (max_open ? v < max : v <= max);
+		}
+
+		public boolean mayMatch (Summary summary) {
+			if (field != TIME) return true;
+			return summary.getMaxTime() >= min && summary.getMinTime() <= max;
+		}
+
+		int cost () {
+			return field.cost;
+		}
+
+		void addFields (Set<String> fields) {
+			fields.add(field.column);
+		}
+
+		Field getField () {
+			return field;
+		}
+
+		public double[] getTimeBounds () {
+			if (field != TIME) return super.getTimeBounds();
+			return new double[] {min, max};
+		}
+
+		public String toString () {
+			if (min == Double.NEGATIVE_INFINITY)
+				return field.name+(max_open ? " < " : " <= ")+field.format(max);
+			if (max == Double.POSITIVE_INFINITY)
+				return field.name+(min_open ? " > " : " >= ")+field.format(min);
+			return field.name+" in ["+field.format(min)+", "+field.format(max)+"]";
+		}
+	}
+
+	/**
+	 * Integral field in a set, e.g., icao in {3c6444, 4b1805}
+	 */
+	private static class Member extends RecordFilter {
+		private final Field field;
+		private final IntSet values;
+
+		Member (Field field, IntSet values) {
+			this.field = field;
+			this.values = values;
+		}
+
+		public boolean matches (ModeSEncodedMessage record) {
+			double v = field.get(record);
+			return v == (int) v && values.contains((int) v);
+		}
+
+		public boolean mayMatch (Summary summary) {
+			if (field == SENSOR) {
+				for (int i = 0; i<values.size(); ++i)
+					if (summary.mightContainSensor(values.get(i))) return true;
+				return false;
+			}
+			if (field == ICAO24) {
+				for (int i = 0; i<values.size(); ++i)
+					if (summary.mightContainIcao24(values.get(i))) return true;
+				return false;
+			}
+			return true;
+		}
+
+		int cost () {
+			return field.cost;
+		}
+
+		void addFields (Set<String> fields) {
+			fields.add(field.column);
+		}
+
+		Field getField () {
+			return field;
+		}
+
+		public IntSet getSensors () {
+			return field == SENSOR ? values : null;
+		}
+
+		public String toString () {
+			if (values.size() == 1) return field.name+" = "+field.format(values.get(0));
+			StringBuilder str = new StringBuilder(field.name).append(" in {");
+			for (int i = 0; i<values.size(); ++i) {
+				if (i > 0) str.append(", ");
+				str.append(field.format(values.get(i)));
+			}
+			return str.append("}").toString();
+		}
+	}
+
+	private static final Comparator<RecordFilter> BY_COST = new Comparator<RecordFilter>() {
+		public int compare (RecordFilter a, RecordFilter b) {
+			return a.cost() < b.cost() ? -1 : a.cost() == b.cost() ? 0 : 1;
+		}
+	};
+
+	private static class And extends RecordFilter {
+		private final RecordFilter[] filters; // cheapest first
+		private final int cost;
+
+		And (List<RecordFilter> filters) {
+			Collections.sort(filters, BY_COST);
+			this.filters = filters.toArray(new RecordFilter[filters.size()]);
+			int sum = 0;
+			for (RecordFilter filter : filters) sum += filter.cost();
+			cost = sum;
+		}
+
+		public boolean matches (ModeSEncodedMessage record) {
+			for (RecordFilter filter : filters)
+				if (!filter.matches(record)) return false;
+			return true;
+		}
+
+		public boolean mayMatch (Summary summary) {
+			for (RecordFilter filter : filters)
+				if (!filter.mayMatch(summary)) return false;
+			return true;
+		}
+
+		int cost () {
+			return cost;
+		}
+
+		void addFields (Set<String> fields) {
+			for (RecordFilter filter : filters) filter.addFields(fields);
+		}
+
+		public double[] getTimeBounds () {
+			double[] bounds = super.getTimeBounds();
+			for (RecordFilter filter : filters) {
+				double[] other = filter.getTimeBounds();
+				bounds[0] = Math.max(bounds[0], other[0]);
+				bounds[1] = Math.min(bounds[1], other[1]);
+			}
+			return bounds;
+		}
+
+		public IntSet getSensors () {
+			IntSet sensors = null;
+			for (RecordFilter filter : filters) {
+				IntSet other = filter.getSensors();
+				if (other == null) continue;
+				if (sensors == null) sensors = other;
+				else {
+					IntSet both = new IntSet();
+					for (int i = 0; i<other.size(); ++i)
+						if (sensors.contains(other.get(i))) both.add(other.get(i));
+					sensors = both;
+				}
+			}
+			return sensors;
+		}
+
+		public String toString () {
+			StringBuilder str = new StringBuilder();
+			for (RecordFilter filter : filters) {
+				if (str.length() > 0) str.append(" and ");
+				if (filter instanceof Or) str.append("(").append(filter).append(")");
+				else str.append(filter);
+			}
+			return str.toString();
+		}
+	}
+
+	private static class Or extends RecordFilter {
+		private final RecordFilter[] filters; // cheapest first
+		private final int cost;
+
+		Or (List<RecordFilter> filters) {
+			Collections.sort(filters, BY_COST);
+			this.filters = filters.toArray(new RecordFilter[filters.size()]);
+			int sum = 0;
+			for (RecordFilter filter : filters) sum += filter.cost();
+			cost = sum;
+		}
+
+		public boolean matches (ModeSEncodedMessage record) {
+			for (RecordFilter filter : filters)
+				if (filter.matches(record)) return true;
+			return false;
+		}
+
+		public boolean mayMatch (Summary summary) {
+			for (RecordFilter filter : filters)
+				if (filter.mayMatch(summary)) return true;
+			return false;
+		}
+
+		int cost () {
+			return cost;
+		}
+
+		void addFields (Set<String> fields) {
+			for (RecordFilter filter : filters) filter.addFields(fields);
+		}
+
+		public double[] getTimeBounds () {
+			double[] bounds = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+			for (RecordFilter filter : filters) {
+				double[] other = filter.getTimeBounds();
+				bounds[0] = Math.min(bounds[0], other[0]);
+				bounds[1] = Math.max(bounds[1], other[1]);
+			}
+			return bounds;
+		}
+
+		public IntSet getSensors () {
+			IntSet sensors = new IntSet();
+			for (RecordFilter filter : filters) {
+				IntSet other = filter.getSensors();
+				if (other == null) return null;
+				sensors.addAll(other);
+			}
+			return sensors;
+		}
+
+		public String toString () {
+			StringBuilder str = new StringBuilder();
+			for (RecordFilter filter : filters) {
+				if (str.length() > 0) str.append(" or ");
+				str.append(filter);
+			}
+			return str.toString();
+		}
+	}
+
+	private static class Not extends RecordFilter {
+		private final RecordFilter filter;
+		private final Field field; // field of a single comparison, must be present
+
+		Not (RecordFilter filter) {
+			this.filter = filter;
+			this.field = filter.getField();
+		}
+
+		public boolean matches (ModeSEncodedMessage record) {
+			if (field != null && Double.isNaN(field.get(record))) return false;
+			return !filter.matches(record);
+		}
+
+		public boolean mayMatch (Summary summary) {
+			// a summary cannot tell that all messages match
+			return true;
+		}
+
+		int cost () {
+			return filter.cost();
+		}
+
+		void addFields (Set<String> fields) {
+			filter.addFields(fields);
+		}
+
+		public String toString () {
+			return "not ("+filter+")";
+		}
+	}
+
+	/**
+	 * @param filters filters (null or {@link #ALL} are ignored)
+	 * @return filter matching messages which match all given filters
+	 */
+	public static RecordFilter and (RecordFilter... filters) {
+		List<RecordFilter> list = new ArrayList<RecordFilter>();
+		for (RecordFilter filter : filters) {
+			if (filter == null || filter == ALL) continue;
+			if (filter instanceof And) Collections.addAll(list, ((And) filter).filters);
+			else list.add(filter);
+		}
+		if (list.isEmpty()) return ALL;
+		if (list.size() == 1) return list.get(0);
+		return new And(list);
+	}
+
+	/**
+	 * @param filters filters (null filters are ignored)
+	 * @return filter matching messages which match at least one of the given filters
+	 */
+	public static RecordFilter or (RecordFilter... filters) {
+		List<RecordFilter> list = new ArrayList<RecordFilter>();
+		for (RecordFilter filter : filters) {
+			if (filter == null) continue;
+			if (filter == ALL) return ALL;
+			if (filter instanceof Or) Collections.addAll(list, ((Or) filter).filters);
+			else list.add(filter);
+		}
+		if (list.isEmpty()) return ALL;
+		if (list.size() == 1) return list.get(0);
+		return new Or(list);
+	}
+
+	/**
+	 * @param start start time in seconds (inclusive) or null
+	 * @param end end time in seconds (inclusive) or null
+	 * @return filter for the time range or null if both are null
+	 */
+	public static RecordFilter time (Double start, Double end) {
+		if (start == null && end == null) return null;
+		return new Range(TIME, start == null ? Double.NEGATIVE_INFINITY : start, false,
+				end == null ? Double.POSITIVE_INFINITY : end, false);
+	}
+
+	/**
+	 * @param icao24 hex string of the icao 24-bit address or null
+	 * @return filter for the aircraft or null
+	 */
+	public static RecordFilter icao24 (String icao24) {
+		if (icao24 == null) return null;
+		IntSet values = new IntSet();
+		values.add((int) ICAO24.parse(icao24));
+		return new Member(ICAO24, values);
+	}
+
+	/**
+	 * @param sensor sensor serial number or null
+	 * @return filter for the sensor or null
+	 */
+	public static RecordFilter sensor (Integer sensor) {
+		if (sensor == null) return null;
+		IntSet values = new IntSet();
+		values.add(sensor);
+		return new Member(SENSOR, values);
+	}
+
+	/**
+	 * Splits an expression into tokens
+	 * @param expr the expression
+	 * @return names, values and operators
+	 */
+	private static List<String> tokenize (String expr) {
+		List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while (i < expr.length()) {
+			char c = expr.charAt(i);
+			if (Character.isWhitespace(c)) ++i;
+			else if (expr.startsWith("..", i) || expr.startsWith("!=", i) ||
+					expr.startsWith("<=", i) || expr.startsWith(">=", i)) {
+				tokens.add(expr.substring(i, i+2));
+				i += 2;
+			}
+			else if ("()[]{},=<>".indexOf(c) >= 0) {
+				tokens.add(String.valueOf(c));
+				++i;
+			}
+			else if (Character.isLetterOrDigit(c) || c == '-' || c == '.' || c == '_') {
+				int j = i+1;
+				while (j < expr.length() && (Character.isLetterOrDigit(expr.charAt(j)) || expr.charAt(j) == '_' ||
+						expr.charAt(j) == '.' && !expr.startsWith("..", j)))
+					++j;
+				tokens.add(expr.substring(i, j));
+				i = j;
+			}
+			else throw new IllegalArgumentException("Unexpected character '"+c+"' in filter.");
+		}
+		return tokens;
+	}
+
+	/**
+	 * Recursive descent parser for filter expressions
+	 */
+	private static class Parser {
+		private final List<String> tokens;
+		private int pos;
+
+		Parser (List<String> tokens) {
+			this.tokens = tokens;
+			this.pos = 0;
+		}
+
+		private String peek () {
+			return pos < tokens.size() ? tokens.get(pos) : null;
+		}
+
+		private boolean accept (String token) {
+			if (token.equalsIgnoreCase(peek())) {
+				++pos;
+				return true;
+			}
+			return false;
+		}
+
+		private String next () {
+			if (pos >= tokens.size())
+				throw new IllegalArgumentException("Unexpected end of filter.");
+			return tokens.get(pos++);
+		}
+
+		private void expect (String token) {
+			String found = next();
+			if (!token.equals(found))
+				throw new IllegalArgumentException("Expected '"+token+"' but found '"+found+"' in filter.");
+		}
+
+		// expr := term ('or' term)*
+		RecordFilter expr () {
+			List<RecordFilter> terms = new ArrayList<RecordFilter>();
+			terms.add(term());
+			while (accept("or")) terms.add(term());
+			return or(terms.toArray(new RecordFilter[terms.size()]));
+		}
+
+		// term := factor ('and' factor)*
+		private RecordFilter term () {
+			List<RecordFilter> factors = new ArrayList<RecordFilter>();
+			factors.add(factor());
+			while (accept("and")) factors.add(factor());
+			return and(factors.toArray(new RecordFilter[factors.size()]));
+		}
+
+		// factor := 'not' factor | '(' expr ')' | comparison
+		private RecordFilter factor () {
+			if (accept("not")) {
+				RecordFilter filter = factor();
+				return filter instanceof Not ? ((Not) filter).filter : new Not(filter);
+			}
+			if (accept("(")) {
+				RecordFilter filter = expr();
+				expect(")");
+				return filter;
+			}
+			return comparison();
+		}
+
+		private double value (Field field) {
+			String token = next();
+			try {
+				return field.parse(token);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value '"+token+"' for "+field.name+" in filter.");
+			}
+		}
+
+		// comparison := field op value | field 'in' ('[' value ',' value ']' | value '..' value | '{' value (',' value)* '}')
+		private RecordFilter comparison () {
+			String name = next();
+			Field field = null;
+			for (Field f : FIELDS)
+				if (f.name.equalsIgnoreCase(name)) field = f;
+			if ("icao24".equalsIgnoreCase(name)) field = ICAO24;
+			if (field == null)
+				throw new IllegalArgumentException("Unknown field '"+name+"' in filter.");
+
+			double inf = Double.POSITIVE_INFINITY;
+			String op = next().toLowerCase(Locale.ENGLISH);
+			if (op.equals("=") || op.equals("!=")) {
+				double v = value(field);
+				RecordFilter filter;
+				if (field.integral) {
+					IntSet values = new IntSet();
+					values.add((int) v);
+					filter = new Member(field, values);
+				}
+				else filter = new Range(field, v, false, v, false);
+				return op.equals("=") ? filter : new Not(filter);
+			}
+			if (op.equals("<")) return new Range(field, -inf, false, value(field), true);
+			if (op.equals("<=")) return new Range(field, -inf, false, value(field), false);
+			if (op.equals(">")) return new Range(field, value(field), true, inf, false);
+			if (op.equals(">=")) return new Range(field, value(field), false, inf, false);
+			if (!op.equals("in"))
+				throw new IllegalArgumentException("Unknown operator '"+op+"' in filter.");
+
+			if (accept("[")) {
+				double min = value(field);
+				expect(",");
+				double max = value(field);
+				expect("]");
+				return new Range(field, min, false, max, false);
+			}
+			if (accept("{")) {
+				if (!field.integral)
+					throw new IllegalArgumentException("Sets are not supported for "+field.name+" in filter.");
+				IntSet values = new IntSet();
+				do values.add((int) value(field)); while (accept(","));
+				expect("}");
+				return new Member(field, values);
+			}
+			double min = value(field);
+			expect("..");
+			return new Range(field, min, false, value(field), false);
+		}
+	}
+
+	/**
+	 * Compiles a filter expression (see class description)
+	 * @param expr the expression
+	 * @return the filter
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	public static RecordFilter parse (String expr) {
+		Parser parser = new Parser(tokenize(expr));
+		RecordFilter filter = parser.expr();
+		if (parser.peek() != null)
+			throw new IllegalArgumentException("Unexpected '"+parser.peek()+"' in filter.");
+		return filter;
+	}
+}
@@ -0,0 +1,194 @@
+package org.opensky.tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Merging t-digest for estimating quantiles with a fixed amount of
+ * memory. Values are buffered and merged into centroids ordered by mean.
+ * A centroid at quantile q may hold at most 4*n*q*(1-q)/compression
+ * values, so quantiles near 0 and 1 are more accurate than the median.
+ * Digests can be merged.
+ */
+public class TDigest {
+	private final double compression;
+
+	// centroids ordered by mean
+	private double[] mean, weight;
+	private int size;
+	private double total; // sum of weights of centroids
+
+	// values not yet merged into centroids
+	private final double[] buffer;
+	private int buffer_size;
+
+	private double min, max;
+
+	/**
+	 * @param compression accuracy parameter, number of centroids is in the order of compression
+	 */
+	public TDigest (double compression) {
+		this.compression = compression;
+		int capacity = (int) Math.ceil(compression*6)+10;
+		mean = new double[capacity];
+		weight = new double[capacity];
+		size = 0;
+		total = 0;
+		buffer = new double[(int) Math.ceil(compression*5)];
+		buffer_size = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a value to the digest
+	 * @param value the value (NaN is ignored)
+	 */
+	public void add (double value) {
+		if (Double.isNaN(value)) return;
+		if (value < min) min = value;
+		if (value > max) max = value;
+		buffer[buffer_size++] = value;
+		if (buffer_size == buffer.length) compress();
+	}
+
+	/**
+	 * Merges buffered values and centroids
+	 */
+	private void compress () {
+		if (buffer_size == 0) return;
+		Arrays.sort(buffer, 0, buffer_size);
+		merge(buffer, null, buffer_size);
+		buffer_size = 0;
+	}
+
+	/**
+	 * Merges sorted (weighted) values into the centroids
+	 * @param values sorted values
+	 * @param weights weights of the values or null for weight 1
+	 * @param n number of values
+	 */
+	private void merge (double[] values, double[] weights, int n) {
+		double new_total = total;
+		for (int i = 0; i<n; ++i) new_total += weights == null ? 1 : weights[i];
+
+		double[] new_mean = new double[Math.max(mean.length, size+n)];
+		double[] new_weight = new double[new_mean.length];
+		int new_size = 0;
+		double so_far = 0; // weight of completed centroids
+
+		int i = 0, j = 0;
+		while (i < size || j < n) {
+			double m, w;
+			if (j >= n || (i < size && mean[i] <= values[j])) {
+				m = mean[i];
+				w = weight[i++];
+			}
+			else {
+				m = values[j];
+				w = weights == null ? 1 : weights[j];
+				++j;
+			}
+
+			if (new_size > 0) {
+				double cur = new_weight[new_size-1];
+				double q = (so_far + (cur+w)/2)/new_total;
+				if (cur+w <= 4*new_total*q*(1-q)/compression) {
+					new_mean[new_size-1] += (m-new_mean[new_size-1])*w/(cur+w);
+					new_weight[new_size-1] = cur+w;
+					continue;
+				}
+				so_far += cur;
+			}
+			new_mean[new_size] = m;
+			new_weight[new_size++] = w;
+		}
+
+		mean = new_mean;
+		weight = new_weight;
+		size = new_size;
+		total = new_total;
+	}
+
+	/**
+	 * Adds all values of another digest to this digest
+	 * @param other the other digest
+	 */
+	public void merge (TDigest other) {
+		compress();
+		other.compress();
+		if (other.size == 0) return;
+		merge(other.mean, other.weight, other.size);
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * @return number of values added to the digest
+	 */
+	public long count () {
+		return Math.round(total) + buffer_size;
+	}
+
+	/**
+	 * @param q the quantile (0-1)
+	 * @return estimated value at quantile q or NaN if the digest is empty
+	 */
+	public double quantile (double q) {
+		compress();
+		if (size == 0) return Double.NaN;
+		if (size == 1) return mean[0];
+
+		double rank = q*total;
+		if (rank <= weight[0]/2)
+			return min + (mean[0]-min)*rank/(weight[0]/2);
+
+		// interpolate between the centers of the centroids
+		double center = weight[0]/2;
+		for (int i = 1; i<size; ++i) {
+			double next = center + (weight[i-1]+weight[i])/2;
+			if (rank <= next)
+				return mean[i-1] + (mean[i]-mean[i-1])*(rank-center)/(next-center);
+			center = next;
+		}
+
+		double last = weight[size-1]/2;
+		return mean[size-1] + (max-mean[size-1])*Math.min(1, (rank-center)/last);
+	}
+
+	/**
+	 * @return number of centroids
+	 */
+	public int getNumberOfCentroids () {
+		compress();
+		return size;
+	}
+
+	public void write (DataOutput out) throws IOException {
+		compress();
+		out.writeDouble(compression);
+		out.writeDouble(min);
+		out.writeDouble(max);
+		out.writeInt(size);
+		for (int i = 0; i<size; ++i) {
+			out.writeDouble(mean[i]);
+			out.writeDouble(weight[i]);
+		}
+	}
+
+	public static TDigest read (DataInput in) throws IOException {
+		TDigest digest = new TDigest(in.readDouble());
+		digest.min = in.readDouble();
+		digest.max = in.readDouble();
+		int size = in.readInt();
+		double[] mean = new double[size], weight = new double[size];
+		for (int i = 0; i<size; ++i) {
+			mean[i] = in.readDouble();
+			weight[i] = in.readDouble();
+		}
+		digest.merge(mean, weight, size);
+		return digest;
+	}
+}
@@ -0,0 +1,192 @@
+package org.opensky.tools;
+
+import java.util.Arrays;
+
+/**
+ * Growable buffer for the coordinates of a track. Latitude and longitude
+ * are stored as int in 1e-7 decimal degrees, the altitude as float and the
+ * time as float seconds since the first point, i.e., 16 bytes per point.
+ *
+ * If a tolerance is set, the track is simplified while points are added
+ * (sliding window). The last point of the buffer is kept tentatively and
+ * replaced by the next point as long as all points since the previous
+ * point of the buffer are within the tolerance of the line to the new
+ * point. Otherwise, the tentative point is kept and the new point becomes
+ * the tentative point. The window is limited to MAX_WINDOW points.
+ */
+public class TrackBuffer {
+	private static final int MAX_WINDOW = 256;
+	private static final double EARTH_RADIUS = 6371000.0; // in meters
+
+	private int[] lat, lon;
+	private float[] alt;
+	private float[] time; // seconds since time_base
+	private double time_base; // unix timestamp of the first point
+	private int size;
+
+	// for simplification
+	private final double tolerance; // in meters, 0 means no simplification
+	private boolean tentative; // true if last point may be replaced
+	private double[] window; // lon, lat, alt of points since the last fixed point (grows up to MAX_WINDOW)
+	private int window_size;
+	private long added; // number of points added before simplification
+
+	public TrackBuffer () {
+		this(16, 0);
+	}
+
+	/**
+	 * @param capacity initial capacity
+	 * @param tolerance max. deviation of the simplified track in meters
+	 *                  (0 disables simplification)
+	 */
+	public TrackBuffer (int capacity, double tolerance) {
+		lat = new int[capacity];
+		lon = new int[capacity];
+		alt = new float[capacity];
+		time = new float[capacity];
+		size = 0;
+		this.tolerance = tolerance;
+		tentative = false;
+		window = null; // allocated on the first point
+		window_size = 0;
+		added = 0;
+	}
+
+	/**
+	 * Appends a point unless it equals the last point of the track
+	 * @param longitude in decimal degrees
+	 * @param latitude in decimal degrees
+	 * @param altitude in meters
+	 * @param timestamp unix timestamp in seconds
+	 * @return false if the point was a duplicate and has not been added
+	 */
+	public boolean add (double longitude, double latitude, double altitude, double timestamp) {
+		int ilat = (int) Math.round(latitude*1e7);
+		int ilon = (int) Math.round(longitude*1e7);
+		float falt = (float) altitude;
+
+		if (size > 0 && lat[size-1] == ilat && lon[size-1] == ilon && alt[size-1] == falt)
+			return false;
+
+		++added;
+		if (tolerance > 0) {
+			if (tentative && window_size < MAX_WINDOW && isWithinTolerance(longitude, latitude, altitude)) {
+				// replace tentative point
+				--size;
+			}
+			else window_size = 0;
+
+			if (window == null) window = new double[4*3];
+			else if (window_size*3 == window.length)
+				window = Arrays.copyOf(window, Math.min(window.length*2, MAX_WINDOW*3));
+			window[window_size*3] = longitude;
+			window[window_size*3+1] = latitude;
+			window[window_size*3+2] = altitude;
+			++window_size;
+			tentative = size > 0;
+		}
+
+		if (size == lat.length) {
+			int capacity = size + (size>>1) + 1;
+			lat = Arrays.copyOf(lat, capacity);
+			lon = Arrays.copyOf(lon, capacity);
+			alt = Arrays.copyOf(alt, capacity);
+			time = Arrays.copyOf(time, capacity);
+		}
+		if (size == 0) time_base = timestamp;
+		lat[size] = ilat;
+		lon[size] = ilon;
+		alt[size] = falt;
+		time[size] = (float) (timestamp-time_base);
+		++size;
+		return true;
+	}
+
+	/**
+	 * Removes all points but the last one, e.g., if only the current
+	 * position is needed. Later duplicates of this point are still detected.
+	 */
+	public void retainLast () {
+		if (size <= 1) return;
+		lat[0] = lat[size-1];
+		lon[0] = lon[size-1];
+		alt[0] = alt[size-1];
+		time[0] = time[size-1];
+		size = 1;
+		tentative = false;
+		window_size = 0;
+	}
+
+	/**
+	 * Checks whether all points in the window are within the tolerance of
+	 * the line from the last fixed point to the given point
+	 */
+	private boolean isWithinTolerance (double longitude, double latitude, double altitude) {
+		// fixed point is the one before the tentative point
+		double lat0 = lat[size-2]/1e7, lon0 = lon[size-2]/1e7, alt0 = alt[size-2];
+
+		// local equirectangular projection around the fixed point
+		double fx = Math.cos(Math.toRadians(lat0))*Math.toRadians(1)*EARTH_RADIUS;
+		double fy = Math.toRadians(1)*EARTH_RADIUS;
+		double px = (longitude-lon0)*fx, py = (latitude-lat0)*fy, pz = altitude-alt0;
+		double len2 = px*px+py*py+pz*pz;
+		double tol2 = tolerance*tolerance;
+
+		for (int i = 0; i<window_size; ++i) {
+			double qx = (window[i*3]-lon0)*fx, qy = (window[i*3+1]-lat0)*fy, qz = window[i*3+2]-alt0;
+			double t = len2 > 0 ? (qx*px+qy*py+qz*pz)/len2 : 0;
+			t = Math.max(0, Math.min(1, t));
+			double dx = qx-t*px, dy = qy-t*py, dz = qz-t*pz;
+			if (dx*dx+dy*dy+dz*dz > tol2) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of points added to the buffer (without duplicates)
+	 *         before simplification
+	 */
+	public long getNumberOfAddedPoints () {
+		return added;
+	}
+
+	/**
+	 * @return number of points in the buffer
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return longitude in decimal degrees
+	 */
+	public double getLongitude (int i) {
+		return lon[i]/1e7;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return latitude in decimal degrees
+	 */
+	public double getLatitude (int i) {
+		return lat[i]/1e7;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return altitude in meters
+	 */
+	public double getAltitude (int i) {
+		return alt[i];
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return unix timestamp in seconds
+	 */
+	public double getTime (int i) {
+		return time_base+time[i];
+	}
+}
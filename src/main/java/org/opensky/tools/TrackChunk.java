@@ -0,0 +1,308 @@
+package org.opensky.tools;
+
+import org.sqlite.Function;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A chunk of consecutive positions of one flight as stored in the tracks
+ * table of Avro2SQLite.
+ *
+ * Points are stored as time in microseconds, latitude and longitude in
+ * 1e-7 decimal degrees and altitude in decimeters. The encoded chunk is a
+ * sequence of zigzag varints holding the difference of each value to the
+ * value of the previous point (the first point is relative to 0). Unknown
+ * altitudes are encoded as Integer.MIN_VALUE.
+ *
+ * Typical tracks need 6-8 bytes per point in this encoding.
+ */
+public class TrackChunk {
+	private static final int NO_ALTITUDE = Integer.MIN_VALUE;
+
+	private long[] time;
+	private int[] lat, lon, alt;
+	private int size;
+
+	public TrackChunk () {
+		this(64);
+	}
+
+	public TrackChunk (int capacity) {
+		time = new long[capacity];
+		lat = new int[capacity];
+		lon = new int[capacity];
+		alt = new int[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Appends a point to this chunk
+	 * @param time unix timestamp in seconds
+	 * @param latitude in decimal degrees
+	 * @param longitude in decimal degrees
+	 * @param altitude in meters or null if unknown
+	 */
+	public void add (double time, double latitude, double longitude, Double altitude) {
+		if (size == this.time.length) {
+			int capacity = size*2;
+			this.time = Arrays.copyOf(this.time, capacity);
+			lat = Arrays.copyOf(lat, capacity);
+			lon = Arrays.copyOf(lon, capacity);
+			alt = Arrays.copyOf(alt, capacity);
+		}
+		this.time[size] = Math.round(time*1e6);
+		lat[size] = (int) Math.round(latitude*1e7);
+		lon[size] = (int) Math.round(longitude*1e7);
+		alt[size] = altitude != null ? (int) Math.round(altitude*1e1) : NO_ALTITUDE;
+		++size;
+	}
+
+	/**
+	 * Removes all points from this chunk
+	 */
+	public void clear () {
+		size = 0;
+	}
+
+	/**
+	 * @return number of points in this chunk
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return unix timestamp of the i-th point in seconds
+	 */
+	public double getTime (int i) {
+		return time[i]/1e6;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return unix timestamp of the i-th point in microseconds
+	 */
+	public long getTimeMicros (int i) {
+		return time[i];
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return latitude of the i-th point in decimal degrees
+	 */
+	public double getLatitude (int i) {
+		return lat[i]/1e7;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return longitude of the i-th point in decimal degrees
+	 */
+	public double getLongitude (int i) {
+		return lon[i]/1e7;
+	}
+
+	/**
+	 * @param i index of the point
+	 * @return altitude of the i-th point in meters or null if unknown
+	 */
+	public Double getAltitude (int i) {
+		return alt[i] != NO_ALTITUDE ? alt[i]/1e1 : null;
+	}
+
+	/**
+	 * @return minimum latitude of all points in decimal degrees
+	 */
+	public double getMinLatitude () {
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i<size; ++i) min = Math.min(min, lat[i]);
+		return min/1e7;
+	}
+
+	/**
+	 * @return maximum latitude of all points in decimal degrees
+	 */
+	public double getMaxLatitude () {
+		int max = Integer.MIN_VALUE;
+		for (int i = 0; i<size; ++i) max = Math.max(max, lat[i]);
+		return max/1e7;
+	}
+
+	/**
+	 * @return minimum longitude of all points in decimal degrees
+	 */
+	public double getMinLongitude () {
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i<size; ++i) min = Math.min(min, lon[i]);
+		return min/1e7;
+	}
+
+	/**
+	 * @return maximum longitude of all points in decimal degrees
+	 */
+	public double getMaxLongitude () {
+		int max = Integer.MIN_VALUE;
+		for (int i = 0; i<size; ++i) max = Math.max(max, lon[i]);
+		return max/1e7;
+	}
+
+	/**
+	 * @return minimum known altitude in meters or null if no altitude is known
+	 */
+	public Double getMinAltitude () {
+		Integer min = null;
+		for (int i = 0; i<size; ++i)
+			if (alt[i] != NO_ALTITUDE && (min == null || alt[i] < min)) min = alt[i];
+		return min != null ? min/1e1 : null;
+	}
+
+	/**
+	 * @return maximum known altitude in meters or null if no altitude is known
+	 */
+	public Double getMaxAltitude () {
+		Integer max = null;
+		for (int i = 0; i<size; ++i)
+			if (alt[i] != NO_ALTITUDE && (max == null || alt[i] > max)) max = alt[i];
+		return max != null ? max/1e1 : null;
+	}
+
+	/**
+	 * @return the delta encoded points of this chunk
+	 */
+	public byte[] encode () {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size*8);
+		long last_time = 0, last_lat = 0, last_lon = 0, last_alt = 0;
+		for (int i = 0; i<size; ++i) {
+			writeVarint(out, time[i]-last_time);
+			writeVarint(out, lat[i]-last_lat);
+			writeVarint(out, lon[i]-last_lon);
+			writeVarint(out, alt[i]-last_alt);
+			last_time = time[i];
+			last_lat = lat[i];
+			last_lon = lon[i];
+			last_alt = alt[i];
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes an encoded chunk and appends its points to this chunk
+	 * @param data points as returned by {@link #encode()}
+	 * @return this chunk
+	 */
+	public TrackChunk append (byte[] data) {
+		int[] pos = new int[1];
+		long last_time = 0, last_lat = 0, last_lon = 0, last_alt = 0;
+		while (pos[0] < data.length) {
+			last_time += readVarint(data, pos);
+			last_lat += readVarint(data, pos);
+			last_lon += readVarint(data, pos);
+			last_alt += readVarint(data, pos);
+
+			add(0, 0, 0, null);
+			time[size-1] = last_time;
+			lat[size-1] = (int) last_lat;
+			lon[size-1] = (int) last_lon;
+			alt[size-1] = (int) last_alt;
+		}
+		return this;
+	}
+
+	/**
+	 * @param data points as returned by {@link #encode()}
+	 * @return the decoded chunk
+	 */
+	public static TrackChunk decode (byte[] data) {
+		return new TrackChunk(Math.max(1, data.length/6)).append(data);
+	}
+
+	/**
+	 * Reads the whole track of a flight from a database created by Avro2SQLite
+	 * @param conn connection to the database
+	 * @param flight id of the flight
+	 * @return all points of the flight in order
+	 * @throws SQLException if the tracks table cannot be read
+	 */
+	public static TrackChunk readTrack (Connection conn, long flight) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT data FROM tracks WHERE flight = ? ORDER BY seq");
+		try {
+			stmt.setLong(1, flight);
+			ResultSet rs = stmt.executeQuery();
+			TrackChunk track = new TrackChunk();
+			while (rs.next())
+				track.append(rs.getBytes(1));
+			return track;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Registers the SQL function track_json(data) with the connection. It
+	 * expands a chunk to a JSON array of [time, latitude, longitude, altitude]
+	 * arrays which can be turned into rows with json_each(), e.g.
+	 * SELECT flight, json_extract(value, '$[0]') AS time FROM tracks, json_each(track_json(data))
+	 * @param conn connection to the database
+	 * @throws SQLException if the function cannot be registered
+	 */
+	public static void registerFunctions (Connection conn) throws SQLException {
+		Function.create(conn, "track_json", new Function() {
+			@Override
+			protected void xFunc() throws SQLException {
+				if (args() != 1) {
+					error("track_json expects one argument");
+					return;
+				}
+				byte[] data = value_blob(0);
+				if (data == null) {
+					result();
+					return;
+				}
+				result(decode(data).toJson());
+			}
+		});
+	}
+
+	/**
+	 * @return JSON array of [time, latitude, longitude, altitude] arrays
+	 */
+	public String toJson () {
+		StringBuilder json = new StringBuilder(size*48);
+		json.append('[');
+		for (int i = 0; i<size; ++i) {
+			if (i > 0) json.append(',');
+			json.append(String.format(Locale.ENGLISH, "[%.6f,%.7f,%.7f,", getTime(i), getLatitude(i), getLongitude(i)));
+			json.append(alt[i] != NO_ALTITUDE ? Double.toString(getAltitude(i)) : "null");
+			json.append(']');
+		}
+		return json.append(']').toString();
+	}
+
+	private static void writeVarint (ByteArrayOutputStream out, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.write((int) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		out.write((int) zigzag);
+	}
+
+	private static long readVarint (byte[] data, int[] pos) {
+		long zigzag = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[pos[0]++];
+			zigzag |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+}